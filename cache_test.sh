@@ -0,0 +1,12 @@
+#!/bin/sh
+
+# fill an empty .erj cache, then load every module from it in a new JVM
+top=`pwd`
+path=$top/src/main/erl/preloaded/ebin:$top/src/main/erl
+dir=`mktemp -d` || exit 1
+cd $dir &&
+java -cp $top/erjang-0.1.jar -Derjpath=$path erjang.beam.Compiler &&
+java -cp $top/erjang-0.1.jar -Derjpath=$path erjang.beam.Compiler -check
+status=$?
+rm -rf $dir
+exit $status
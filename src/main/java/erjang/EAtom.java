@@ -39,16 +39,30 @@ public class EAtom extends EObject implements CharSequence {
 	private final String value;
 	public final int hash;
 
+	/** dense, assigned in the order atoms are interned; see EAtomSwitch */
+	public final int id;
+
+	/** the first four chars, so most compares need not look at value */
+	private final long order;
+
 	@Override
 	int compare_same(EObject rhs) {
 		return compareTo((EAtom) rhs);
 	}
 	
 	private static ConcurrentHashMap<String, EAtom> interns = new ConcurrentHashMap<String, EAtom>();
+	private static int next_id;
 
-	private EAtom(String name) {
+	private EAtom(String name, int id) {
 		this.value = name;
 		this.hash = name.hashCode();
+		this.id = id;
+
+		long o = 0;
+		for (int i = 0; i < 4; i++) {
+			o = (o << 16) | (i < name.length() ? name.charAt(i) : 0);
+		}
+		this.order = o;
 	}
 
 	@Override
@@ -125,10 +139,14 @@ public class EAtom extends EObject implements CharSequence {
 
 		EAtom res = interns.get(name);
 		if (res == null) {
-			EAtom new_val = new EAtom(name);
-			do {
-				res = interns.putIfAbsent(name, new_val);
-			} while (res == null);
+			// under a lock, so that ids stay dense
+			synchronized (interns) {
+				res = interns.get(name);
+				if (res == null) {
+					res = new EAtom(name, next_id++);
+					interns.put(name, res);
+				}
+			}
 		}
 
 		return res;
@@ -174,6 +192,17 @@ public class EAtom extends EObject implements CharSequence {
 	 * @return
 	 */
 	public int compareTo(EAtom other) {
+		if (this == other)
+			return 0;
+
+		// unsigned, as the chars are
+		long o1 = order + Long.MIN_VALUE;
+		long o2 = other.order + Long.MIN_VALUE;
+		if (o1 < o2)
+			return -1;
+		if (o1 > o2)
+			return 1;
+
 		return value.compareTo(other.value);
 	}
 
@@ -0,0 +1,101 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang;
+
+import java.util.Arrays;
+
+/**
+ * Maps the atoms of a <code>select_val</code> to their case numbers,
+ * 0..n-1, so that compiled code can <code>tableswitch</code> on the
+ * result. Atom ids are only known at run time, which is why this is
+ * built by the module's class initializer rather than by the compiler.
+ */
+public final class EAtomSwitch {
+
+	private final int min;
+
+	/** when the ids are close: the case of id-min, or -1 */
+	private final int[] direct;
+
+	/** otherwise: linear probing on id, at most 1/4 full */
+	private final int[] keys;
+	private final int[] cases;
+	private final int mask;
+
+	public EAtomSwitch(EAtom[] atoms) {
+		int lo = Integer.MAX_VALUE, hi = Integer.MIN_VALUE;
+		for (EAtom a : atoms) {
+			lo = Math.min(lo, a.id);
+			hi = Math.max(hi, a.id);
+		}
+
+		if (atoms.length == 0 || hi - lo < 4 * atoms.length + 16) {
+			min = lo;
+			direct = new int[atoms.length == 0 ? 0 : hi - lo + 1];
+			Arrays.fill(direct, -1);
+			for (int i = atoms.length - 1; i >= 0; i--) {
+				direct[atoms[i].id - lo] = i;
+			}
+			keys = cases = null;
+			mask = 0;
+
+		} else {
+			int size = Integer.highestOneBit(atoms.length * 4 - 1) << 1;
+			min = 0;
+			direct = null;
+			keys = new int[size];
+			cases = new int[size];
+			mask = size - 1;
+			Arrays.fill(keys, -1);
+			for (int i = 0; i < atoms.length; i++) {
+				int h = atoms[i].id & mask;
+				while (keys[h] != -1 && keys[h] != atoms[i].id) {
+					h = (h + 1) & mask;
+				}
+				if (keys[h] == -1) {
+					keys[h] = atoms[i].id;
+					cases[h] = i;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the case number of <code>term</code>, or -1 if it is not
+	 *         one of the atoms
+	 */
+	public int index(EObject term) {
+		if (!(term instanceof EAtom))
+			return -1;
+		int id = ((EAtom) term).id;
+
+		if (direct != null) {
+			int i = id - min;
+			return (i >= 0 && i < direct.length) ? direct[i] : -1;
+		}
+
+		for (int h = id & mask;; h = (h + 1) & mask) {
+			int k = keys[h];
+			if (k == id)
+				return cases[h];
+			if (k == -1)
+				return -1;
+		}
+	}
+}
@@ -18,128 +18,311 @@
 
 package erjang;
 
-public class EBinMatchState {
+import java.math.BigInteger;
+
+/**
+ * The match context of a binary match, as left in a register by
+ * <code>bs_start_match2</code>. Compiled code calls the
+ * <code>bs_*</code> methods below with the size, unit and flags of each
+ * segment as constants, so that the byte-aligned case reduces to a few
+ * array reads once the JIT has inlined them.
+ */
+public class EBinMatchState extends EObject {
 
 	public static final EAtom ATOM_ALL = EAtom.intern("all");
+	public static final EAtom ATOM_START = EAtom.intern("start");
+
+	/** segment flags, as in the <code>{field_flags,N}</code> operands */
+	public static final int BSF_LITTLE = 2;
+	public static final int BSF_SIGNED = 4;
+	public static final int BSF_NATIVE = 16;
 
 	public final EBitString bin;
+
+	/** the backing array of <code>bin</code>, and its bits in there */
+	private final byte[] data;
+	private final int offset;
+	private final int size;
+
+	/** current position, relative to <code>offset</code> */
 	int bit_pos;
 
+	/** slot 0 is the start of the match, bs_save2 N uses slot N+1 */
+	private int[] save_offsets;
+
 	public int bitsLeft() {
-		return bin.bitCount() - bit_pos;
+		return size - bit_pos;
 	}
 
 	public EBitString binary() {
 		return bin;
 	}
 
-	public static EBinMatchState bs_start_match2(EObject obj) {
+	public static EBinMatchState bs_start_match2(EObject obj, int slots) {
+		if (obj instanceof EBinMatchState) {
+			EBinMatchState ms = (EBinMatchState) obj;
+			if (ms.save_offsets.length < slots + 1) {
+				ms.save_offsets = new int[slots + 1];
+			}
+			ms.save_offsets[0] = ms.bit_pos;
+			return ms;
+		}
+
 		EBitString bs;
 		if ((bs = obj.testBinString()) == null)
 			return null;
-		return new EBinMatchState(bs);
+		return new EBinMatchState(bs, slots);
 	}
 
-	public EBinMatchState(EBitString binary) {
+	public EBinMatchState(EBitString binary, int slots) {
 		this.bin = binary;
+		this.data = binary.data;
+		this.offset = binary.bitOff;
+		this.size = binary.bits;
 		this.bit_pos = 0;
+		this.save_offsets = new int[slots + 1];
 	}
 
-	public EBitString bs_get_binary2(EObject spec, int flags) {
-
-		if (spec == ATOM_ALL) {
-
-			EBitString result = bin.substring(bit_pos, bitsLeft());
-			bit_pos += result.bitCount();
-			return result;
+	public EBinMatchState(EBitString binary) {
+		this(binary, 0);
+	}
 
+	/** yields a sub binary from the start of the match */
+	public static EObject bs_context_to_binary(EObject obj) {
+		if (obj instanceof EBinMatchState) {
+			EBinMatchState ms = (EBinMatchState) obj;
+			int start = ms.save_offsets[0];
+			return ms.sub(start, ms.size - start);
 		}
+		return obj;
+	}
 
-		throw new Error("unknown spec: " + spec);
-
-		// return null;
+	public void bs_save2(int slot) {
+		save_offsets[slot] = bit_pos;
 	}
 
-	public EInteger bs_get_integer2(int size, int flags) {
+	public void bs_restore2(int slot) {
+		bit_pos = save_offsets[slot];
+	}
 
-		if (flags != 0) {
-			throw new Error("unhandled flags: " + flags);
-		}
+	/** the number of bits in a segment, or -1 if it is not valid */
+	public static int bits(EObject count, int unit) {
+		ESmall sz;
+		if ((sz = count.testSmall()) == null || sz.value < 0)
+			return -1;
+		long bits = (long) sz.value * unit;
+		return bits > Integer.MAX_VALUE ? -1 : (int) bits;
+	}
 
-		if (size == 0) {
-			return ESmall.ZERO;
-		}
+	public EInteger bs_get_integer2(EObject count, int unit, int flags) {
+		return bs_get_integer2(bits(count, unit), flags);
+	}
 
-		if (size < 0 || bin.bitCount() >= (bit_pos + size)) {
+	public EInteger bs_get_integer2(int bits, int flags) {
+		if (bits < 0 || bits > size - bit_pos)
 			return null;
-		}
 
-		if (size <= 32) {
-			ESmall res = new ESmall(bin.intBitsAt(bit_pos, size));
-			bit_pos += size;
-			return res;
+		int pos = offset + bit_pos;
+		bit_pos += bits;
+
+		if (bits <= 32 && ((pos | bits) & 7) == 0) {
+			// the common case: whole bytes, at a byte boundary
+			int idx = pos >> 3;
+			int val = 0;
+			if ((flags & BSF_LITTLE) == 0) {
+				for (int i = 0; i < bits; i += 8) {
+					val = (val << 8) | (data[idx++] & 0xff);
+				}
+			} else {
+				for (int i = 0; i < bits; i += 8) {
+					val |= (data[idx++] & 0xff) << i;
+				}
+			}
+
+			if (bits == 32) {
+				return (flags & BSF_SIGNED) == 0 ? ERT.box(val & 0xffffffffL)
+						: ERT.box(val);
+			} else if ((flags & BSF_SIGNED) != 0 && bits != 0) {
+				val = (val << (32 - bits)) >> (32 - bits);
+			}
+			return ERT.box(val);
 		}
 
-		if (size <= 64) {
-			EInteger res = ERT.box(bin.longBitsAt(bit_pos, size));
-			bit_pos += size;
-			return res;
+		if (bits <= 64) {
+			long val = (flags & BSF_LITTLE) == 0 ? longAt(pos, bits)
+					: littleAt(pos, bits);
+			if (bits == 64 && val < 0 && (flags & BSF_SIGNED) == 0) {
+				return ERT.box(BigInteger.valueOf(val).add(
+						BigInteger.ONE.shiftLeft(64)));
+			} else if ((flags & BSF_SIGNED) != 0 && bits != 64) {
+				val = (val << (64 - bits)) >> (64 - bits);
+			}
+			return ERT.box(val);
 		}
 
-		throw new NotImplemented();
+		BigInteger val = BigInteger.ZERO;
+		if ((flags & BSF_LITTLE) == 0) {
+			for (int i = 0; i < bits; i += 8) {
+				int n = Math.min(8, bits - i);
+				val = val.shiftLeft(n).or(
+						BigInteger.valueOf(longAt(pos + i, n)));
+			}
+		} else {
+			for (int i = 0; i < bits; i += 8) {
+				int n = Math.min(8, bits - i);
+				val = val.or(BigInteger.valueOf(longAt(pos + i, n))
+						.shiftLeft(i));
+			}
+		}
+		if ((flags & BSF_SIGNED) != 0 && val.testBit(bits - 1)) {
+			val = val.subtract(BigInteger.ONE.shiftLeft(bits));
+		}
+		return ERT.box(val);
 	}
 
-	public EBitString bs_match_string(int bits, EBitString ebs) {
-		int size = ebs.bitCount();
+	public EDouble bs_get_float2(EObject count, int unit, int flags) {
+		return bs_get_float2(bits(count, unit), flags);
+	}
 
-		// do we have bits enough in the input
-		if (size > bitsLeft()) {
+	public EDouble bs_get_float2(int bits, int flags) {
+		if ((bits != 32 && bits != 64) || bits > size - bit_pos)
 			return null;
-		}
 
-		int limit = size;
+		int pos = offset + bit_pos;
+		long raw = (flags & BSF_LITTLE) == 0 ? longAt(pos, bits) : littleAt(
+				pos, bits);
 
-		for (int pos = 0; pos < limit; pos += 8) {
-
-			int rest = Math.min(8, limit - pos);
+		double val = bits == 32 ? Float.intBitsToFloat((int) raw) : Double
+				.longBitsToDouble(raw);
+		if (Double.isNaN(val) || Double.isInfinite(val))
+			return null;
 
-			int oc1 = 0xff & bin.intBitsAt(pos, rest);
-			int oc2 = 0xff & ebs.intBitsAt(pos, rest);
+		bit_pos += bits;
+		return new EDouble(val);
+	}
 
-			if (oc1 != oc2)
+	public EBitString bs_get_binary2(EObject count, int unit, int flags) {
+		if (count == ATOM_ALL) {
+			int bits = size - bit_pos;
+			if (unit > 1 && (bits % unit) != 0)
 				return null;
+			return bs_get_binary2(bits, flags);
 		}
+		return bs_get_binary2(bits(count, unit), flags);
+	}
 
-		return ebs;
+	public EBitString bs_get_binary2(int bits, int flags) {
+		if (bits < 0 || bits > size - bit_pos)
+			return null;
+		EBitString res = sub(bit_pos, bits);
+		bit_pos += bits;
+		return res;
+	}
 
+	public EObject bs_skip_bits2(EObject count, int unit, int flags) {
+		int bits;
+		if (count == ATOM_ALL) {
+			bits = size - bit_pos;
+			if (unit > 1 && (bits % unit) != 0)
+				return null;
+		} else {
+			bits = bits(count, unit);
+		}
+		return bs_skip_bits2(bits);
 	}
 
-	public EObject bs_skip_bits2(EObject count_o, int bits, int flags) {
-		EInteger count;
-		if ((count = count_o.testInteger()) == null) {
-			// throw badarg?
+	public EObject bs_skip_bits2(int bits) {
+		if (bits < 0 || bits > size - bit_pos)
 			return null;
-		}
-		
-		int bitsWanted = bits * count.intValue();
+		bit_pos += bits;
+		return ERT.TRUE;
+	}
 
-		if (bitsLeft() < bitsWanted) {
+	public EBitString bs_match_string(int bits, EBitString ebs) {
+		if (bits > size - bit_pos)
 			return null;
+
+		int pos = offset + bit_pos;
+		int other = ebs.bitOff;
+		if (((pos | other) & 7) == 0) {
+			int idx = pos >> 3, oidx = other >> 3;
+			int i = 0;
+			for (; i + 8 <= bits; i += 8) {
+				if (data[idx++] != ebs.data[oidx++])
+					return null;
+			}
+			if (i < bits && longAt(pos + i, bits - i) != bitsAt(ebs.data,
+					other + i, bits - i))
+				return null;
+		} else {
+			for (int i = 0; i < bits; i += 8) {
+				int n = Math.min(8, bits - i);
+				if (longAt(pos + i, n) != bitsAt(ebs.data, other + i, n))
+					return null;
+			}
 		}
 
-		bit_pos += bitsWanted;
+		bit_pos += bits;
+		return ebs;
+	}
 
-		return ERT.TRUE;
+	public EObject bs_test_unit(int unit) {
+		if (((size - bit_pos) % unit) == 0)
+			return ERT.TRUE;
+		return null;
 	}
-	
-	public EObject bs_test_unit(int size) {
-		throw new NotImplemented();
+
+	/** yields TRUE if exactly <code>bits</code> are left */
+	public EObject bs_test_tail2(int bits) {
+		if (size - bit_pos == bits)
+			return ERT.TRUE;
+		return null;
 	}
 
 	/** yields TRUE if we are at the end */
 	public EObject bs_test_tail2() {
-		if (bit_pos == bin.bitCount())
-			return ERT.TRUE;
-		return null;
+		return bs_test_tail2(0);
+	}
+
+	/** <code>bits</code> bits from position <code>pos</code>, without copying */
+	private EBitString sub(int pos, int bits) {
+		pos += offset;
+		if (((pos | bits) & 7) == 0)
+			return new EBinary(data, pos >> 3, bits >> 3);
+		return new EBitString(data, pos, bits);
+	}
+
+	/** up to 64 bits at absolute bit position <code>pos</code>, big-endian */
+	private long longAt(int pos, int bits) {
+		return bitsAt(data, pos, bits);
+	}
+
+	/**
+	 * up to 64 bits, where the whole bytes come first and least significant
+	 * first, and any remaining bits are the most significant ones
+	 */
+	private long littleAt(int pos, int bits) {
+		long val = 0;
+		int i = 0;
+		for (; i + 8 <= bits; i += 8) {
+			val |= bitsAt(data, pos + i, 8) << i;
+		}
+		if (i < bits) {
+			val |= bitsAt(data, pos + i, bits - i) << i;
+		}
+		return val;
+	}
+
+	private static long bitsAt(byte[] data, int pos, int bits) {
+		long val = 0;
+		while (bits > 0) {
+			int bit = pos & 7;
+			int n = Math.min(8 - bit, bits);
+			int b = (data[pos >> 3] & 0xff) >> (8 - bit - n);
+			val = (val << n) | (b & ((1 << n) - 1));
+			pos += n;
+			bits -= n;
+		}
+		return val;
 	}
 }
@@ -177,18 +177,18 @@ public class EBitString extends EObject {
 		return bits;
 	}
 
-	public EBitString substring(int bitOff) {
-		if (bitOff < 0 || bitOff > bitCount()) {
+	public EBitString substring(int pos) {
+		if (pos < 0 || pos > bitCount()) {
 			throw new IllegalArgumentException("offset out of range");
 		}
-		return new EBitString(data, bitOff + bitOff, bitCount() - bitOff);
+		return new EBitString(data, bitOff + pos, bitCount() - pos);
 	}
 
-	public EBitString substring(int bitOff, int len) {
-		if (bitOff < 0 || bitOff + len > bitCount()) {
+	public EBitString substring(int pos, int len) {
+		if (pos < 0 || pos + len > bitCount()) {
 			throw new IllegalArgumentException("offset out of range");
 		}
-		return new EBitString(data, bitOff + bitOff, len);
+		return new EBitString(data, bitOff + pos, len);
 	}
 
 	public int bitAt(int bitPos) {
@@ -205,7 +205,7 @@ public class EBitString extends EObject {
 
 	public int intBitsAt(int bitPos, int bitLength) {
 
-		if (bitOff + bitPos + bitLength > this.bits) {
+		if (bitPos + bitLength > this.bits) {
 			throw new IllegalArgumentException(
 					"reading beyond end of BitString");
 		}
@@ -260,7 +260,7 @@ public class EBitString extends EObject {
 
 			// the byte
 			int val = 0x0ff & (int) data[bitPos >> 3];
-			res = val >> (8 - len);
+			res = (res << len) | (val >> (8 - len));
 
 			bitLength -= len;
 			bitPos += len;
@@ -342,7 +342,7 @@ public class EBitString extends EObject {
 
 			// the byte
 			int val = 0x0ff & (int) data[bitPos >> 3];
-			res = val >> (8 - len);
+			res = (res << len) | (val >> (8 - len));
 
 			bitLength -= len;
 			bitPos += len;
@@ -19,37 +19,261 @@
 
 package erjang;
 
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * 
+ * Writes the segments of a <code>&lt;&lt;...&gt;&gt;</code> expression
+ * into a binary whose size the compiler has already computed, so that
+ * each segment is written in place, once.
+ * <p>
+ * <code>bs_append</code> extends an existing binary instead. The result
+ * is {@link Appendable}, and remembers how much of its buffer has been
+ * claimed, so that appending to the newest binary of a buffer needs no
+ * copy. Buffers grow by doubling, which makes a loop like
+ * <code>Acc1 = &lt;&lt;Acc/binary, X&gt;&gt;</code> linear rather than
+ * quadratic.
  */
 public class EBitStringBuilder {
 
+	/** a binary that may be extended in place, see bs_append */
+	static final class Appendable extends EBinary {
+		/** bits of the buffer claimed so far, by this or a later binary */
+		final AtomicInteger used;
+
+		Appendable(byte[] data, int byteOff, int byteLength,
+				AtomicInteger used) {
+			super(data, byteOff, byteLength);
+			this.used = used;
+		}
+	}
+
+	/** smallest buffer, in bytes, for an appendable binary */
+	static final int MIN_APPEND_CAPACITY = 64;
+
+	private final byte[] data;
+	private final EBitString bs;
+
+	/** write position, in bits from the start of data */
+	private int pos;
+
 	/**
 	 * @param size
+	 *            in bytes
 	 * @param flags
 	 */
 	public EBitStringBuilder(int size, int flags) {
-		// TODO Auto-generated constructor stub
+		if (size < 0)
+			throw ERT.badarg();
+		data = new byte[size];
+		bs = new EBinary(data, 0, size);
+	}
+
+	private EBitStringBuilder(byte[] data, int pos, EBitString bs) {
+		this.data = data;
+		this.pos = pos;
+		this.bs = bs;
+	}
+
+	public static EBitStringBuilder bs_init_bits(int bits, int flags) {
+		if (bits < 0)
+			throw ERT.badarg();
+		if ((bits & 7) == 0)
+			return new EBitStringBuilder(bits >> 3, flags);
+		byte[] data = new byte[(bits + 7) >> 3];
+		return new EBitStringBuilder(data, 0, new EBitString(data, 0, bits));
+	}
+
+	/**
+	 * Start appending <code>bits</code> bits to <code>acc</code>; in place
+	 * if nothing has been appended to acc's buffer past acc itself.
+	 */
+	public static EBitStringBuilder bs_append(EObject acc, int bits, int unit,
+			int flags) {
+		EBitString bin;
+		if ((bin = acc.testBinString()) == null || bits < 0
+				|| (unit > 1 && bin.bits % unit != 0))
+			throw ERT.badarg(acc);
+
+		int size = bin.bits + bits;
+		if (((bin.bitOff | size) & 7) == 0 && bin instanceof Appendable) {
+			Appendable app = (Appendable) bin;
+			int end = bin.bitOff + bin.bits;
+			if (bin.data.length * 8 >= end + bits
+					&& app.used.compareAndSet(end, end + bits)) {
+				return new EBitStringBuilder(bin.data, end, new Appendable(
+						bin.data, bin.bitOff >> 3, size >> 3, app.used));
+			}
+		}
+
+		if ((size & 7) != 0) {
+			EBitStringBuilder res = bs_init_bits(size, flags);
+			res.put_bits(bin, bin.bits);
+			return res;
+		}
+
+		// start a new buffer, with room to grow
+		int capacity = Math.max(MIN_APPEND_CAPACITY, 2 * (size >> 3));
+		byte[] data = new byte[capacity];
+		EBitStringBuilder res = new EBitStringBuilder(data, 0, new Appendable(
+				data, 0, size >> 3, new AtomicInteger(size)));
+		res.put_bits(bin, bin.bits);
+		return res;
+	}
+
+	/**
+	 * Like bs_append, but the compiler has made sure that
+	 * <code>acc</code> is not seen by anyone else.
+	 */
+	public static EBitStringBuilder bs_private_append(EObject acc, int bits,
+			int unit, int flags) {
+		return bs_append(acc, bits, unit, flags);
 	}
 
 	/** return bitstring under construction */
 	public EBitString bitstring() {
-		throw new NotImplemented();
+		return bs;
+	}
+
+	/** the number of bits in a segment */
+	static int bits(EObject size, int unit) {
+		ESmall sz;
+		if ((sz = size.testSmall()) == null || sz.value < 0)
+			throw ERT.badarg(size);
+		long bits = (long) sz.value * unit;
+		if (bits > Integer.MAX_VALUE)
+			throw ERT.badarg(size);
+		return (int) bits;
+	}
+
+	public void put_integer(EObject value, EObject size, int unit, int flags) {
+		put_integer(value, bits(size, unit), flags);
+	}
+
+	public void put_integer(EObject value, int bits, int flags) {
+		EInteger val;
+		if ((val = value.testInteger()) == null)
+			throw ERT.badarg(value);
+
+		if (bits <= 64 && val instanceof ESmall) {
+			put_long(((ESmall) val).value, bits, flags);
+			return;
+		}
+
+		BigInteger big = val.bigintValue();
+		if ((flags & EBinMatchState.BSF_LITTLE) == 0) {
+			for (int i = bits; i > 0; i -= 8) {
+				int n = Math.min(8, i);
+				put_long(big.shiftRight(i - n).intValue(), n, 0);
+			}
+		} else {
+			for (int i = 0; i < bits; i += 8) {
+				int n = Math.min(8, bits - i);
+				put_long(big.shiftRight(i).intValue(), n, 0);
+			}
+		}
+	}
+
+	/** the low <code>bits</code> bits of val, at most 64 */
+	private void put_long(long val, int bits, int flags) {
+		if ((flags & EBinMatchState.BSF_LITTLE) == 0) {
+			if (((pos | bits) & 7) == 0) {
+				int idx = (pos + bits) >> 3;
+				for (int i = 0; i < bits; i += 8) {
+					data[--idx] = (byte) (val >> i);
+				}
+				pos += bits;
+			} else {
+				put_bits(val, bits);
+			}
+		} else {
+			int i = 0;
+			for (; i + 8 <= bits; i += 8) {
+				put_bits(val >> i, 8);
+			}
+			if (i < bits) {
+				put_bits(val >> i, bits - i);
+			}
+		}
+	}
+
+	private void put_bits(long val, int bits) {
+		while (bits > 0) {
+			int bit = pos & 7;
+			int n = Math.min(8 - bit, bits);
+			int b = (int) (val >>> (bits - n)) & ((1 << n) - 1);
+			int shift = 8 - bit - n;
+			int mask = ((1 << n) - 1) << shift;
+			data[pos >> 3] = (byte) ((data[pos >> 3] & ~mask) | (b << shift));
+			pos += n;
+			bits -= n;
+		}
+	}
+
+	public void put_float(EObject value, EObject size, int unit, int flags) {
+		put_float(value, bits(size, unit), flags);
 	}
-	
-	public void put_integer(EObject value, int flags) {
-		throw new NotImplemented();
+
+	public void put_float(EObject value, int bits, int flags) {
+		ENumber num;
+		if ((num = value.testNumber()) == null)
+			throw ERT.badarg(value);
+		put_float(num.doubleValue(), bits, flags);
 	}
 
-	public void put_integer(EObject value, int size, int flags) {
-		throw new NotImplemented();
+	public void put_float(double value, int bits, int flags) {
+		if (bits == 64) {
+			put_long(Double.doubleToRawLongBits(value), 64, flags);
+		} else if (bits == 32) {
+			put_long(Float.floatToRawIntBits((float) value), 32, flags);
+		} else {
+			throw ERT.badarg(new EDouble(value));
+		}
 	}
 
 	public void put_string(EString str) {
-		throw new NotImplemented();
+		int len = str.data.length - str.off;
+		if ((pos & 7) == 0) {
+			System.arraycopy(str.data, str.off, data, pos >> 3, len);
+			pos += len * 8;
+		} else {
+			for (int i = 0; i < len; i++) {
+				put_bits(str.data[str.off + i], 8);
+			}
+		}
+	}
+
+	public void put_bitstring(EObject value, EObject size, int unit, int flags) {
+		EBitString str;
+		if ((str = value.testBinString()) == null)
+			throw ERT.badarg(value);
+
+		int bits;
+		if (size == EBinMatchState.ATOM_ALL) {
+			bits = str.bits;
+			if (unit > 1 && bits % unit != 0)
+				throw ERT.badarg(value);
+		} else {
+			bits = bits(size, unit);
+			if (bits > str.bits)
+				throw ERT.badarg(value);
+		}
+
+		put_bits(str, bits);
 	}
 
-	public void put_bitstring(EBitString str, EAtom how, int flags) {
-		throw new NotImplemented();
+	/** copy the first <code>bits</code> bits of str */
+	private void put_bits(EBitString str, int bits) {
+		int from = str.bitOff;
+		if (((pos | from) & 7) == 0) {
+			System.arraycopy(str.data, from >> 3, data, pos >> 3, bits >> 3);
+			pos += bits & ~7;
+			from += bits & ~7;
+			bits &= 7;
+		}
+		for (; bits > 0; bits -= 8, from += 8) {
+			int n = Math.min(8, bits);
+			put_bits(str.intBitsAt(from - str.bitOff, n), n);
+		}
 	}
 }
@@ -133,7 +133,7 @@ public abstract class EFun extends EObject implements Opcodes {
 	}
 
 	@SuppressWarnings("unchecked")
-	static Class<? extends EFun> get_fun_class(int arity) {
+	static synchronized Class<? extends EFun> get_fun_class(int arity) {
 
 		String self_type = EFUN_TYPE.getInternalName() + arity;
 
@@ -215,7 +215,7 @@ public abstract class EFun extends EObject implements Opcodes {
 
 	static Map<Integer, Constructor<? extends EFun>> handlers = new HashMap<Integer, Constructor<? extends EFun>>();
 
-	static EFun get_fun_with_handler(int arity, EFunHandler handler) {
+	static synchronized EFun get_fun_with_handler(int arity, EFunHandler handler) {
 		Constructor<? extends EFun> h = handlers.get(arity);
 
 		if (h == null) {
@@ -282,6 +282,9 @@ public abstract class EFun extends EObject implements Opcodes {
 	}
 
 	public static byte[] weave(byte[] data) {
+		if (ERT.USE_THREADS)
+			return data;
+		
 		ClassWeaver w = new ClassWeaver(data, new Compiler.ErjangDetector("/xx/"));
 		for (ClassInfo ci : w.getClassInfos()) {
 			ETuple.dump(ci.className, ci.bytes);
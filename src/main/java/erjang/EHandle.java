@@ -38,6 +38,16 @@ public abstract class EHandle extends EObject {
 		task().mbox_send(msg);
 	}
 
+	/**
+	 * Send without pausing; for callers that are not processes, such as
+	 * timers.
+	 * 
+	 * @param msg
+	 */
+	public void sendb(EObject msg) {
+		task().mbox_send(msg);
+	}
+
 	/**
 	 * @param self
 	 * @param result
@@ -42,7 +42,7 @@ public class EInternalPID extends EPID {
 	
 	@Override
 	public void send(EObject msg) throws Pausable {
-		drvTask.mbox.put(msg);
+		drvTask.mbox_send(msg);
 	}
 	
 	/* (non-Javadoc)
@@ -60,6 +60,11 @@ public class EInternalPID extends EPID {
 	int r_compare_same(EInternalPID lhs) {
 		return drvTask.id - lhs.drvTask.id;
 	}
+
+	@Override
+	public int hashCode() {
+		return drvTask.id;
+	}
 	
 
 	/* (non-Javadoc)
@@ -78,6 +83,22 @@ public class EInternalPID extends EPID {
 		drvTask.set_group_leader(group_leader);
 	}
 
+	/* (non-Javadoc)
+	 * @see erjang.EPID#process_info(erjang.EObject)
+	 */
+	@Override
+	public EObject process_info(EObject spec) {
+		return drvTask.process_info(spec);
+	}
+
+	/* (non-Javadoc)
+	 * @see erjang.EPID#check_process_code(erjang.EAtom)
+	 */
+	@Override
+	public boolean check_process_code(EAtom module) {
+		return EModule.check_process_code(drvTask, module);
+	}
+
 	/**
 	 * @return
 	 */
@@ -19,6 +19,7 @@
 
 package erjang;
 
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 
@@ -28,7 +29,7 @@ public class ELocalNode extends EAbstractNode {
     private int serial = 0;
     private int pidCount = 1;
     private int portCount = 1;
-    private int refId[];
+    private final AtomicLong refCount = new AtomicLong(1);
 
     
     protected ELocalNode() {
@@ -59,29 +60,18 @@ public class ELocalNode extends EAbstractNode {
         serial = 0;
         pidCount = 1;
         portCount = 1;
-        refId = new int[3];
-        refId[0] = 1;
-        refId[1] = 0;
-        refId[2] = 0;
     }
 
 
-    public synchronized ERef createRef() {
-        final ERef r = new ERef(node, refId, creation);
-
-        // increment ref ids (3 ints: 18 + 32 + 32 bits)
-        refId[0]++;
-        if (refId[0] > 0x3ffff) {
-            refId[0] = 0;
-
-            refId[1]++;
-            if (refId[1] == 0) {
-                refId[2]++;
-            }
-        }
-
-        return r;
+    /**
+     * Lock free, as every monitor needs a ref.
+     */
+    public ERef createRef() {
+        final long n = refCount.getAndIncrement();
 
+        // ref ids are 3 ints: 18 + 32 + 32 bits
+        return new ERef(node, new int[] { (int) (n & 0x3ffff),
+                (int) (n >>> 18), (int) (n >>> 50) }, creation);
 	}
 	
 }
@@ -6,7 +6,7 @@
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- *  
+ *
  *     http://www.apache.org/licenses/LICENSE-2.0
  *
  * Unless required by applicable law or agreed to in writing, software
@@ -18,51 +18,339 @@
 
 package erjang;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import kilim.PauseReason;
+import kilim.Pausable;
+import kilim.Task;
 
 /**
- * 
+ * An unbounded multi-producer, single-consumer process mailbox, with a save
+ * pointer as needed for selective receive.
+ *
+ * Messages form a singly linked list, one node per message. Senders append
+ * without locking by swapping the <code>tail</code> and then linking the
+ * previous tail to the new node, so sending never blocks. The owning process
+ * walks the list from <code>head</code> with the save pointer, so that
+ * <code>loop_rec</code>, <code>loop_rec_end</code> and
+ * <code>remove_message</code> work on any position in the queue.
+ *
+ * Only <code>put</code>, <code>size</code> and the scheduler's
+ * <code>isValid</code> may be called from other processes; everything else
+ * belongs to the owner.
  */
-public class EMBox {
+public class EMBox implements PauseReason {
+
+	static final class Node {
+		/** null once the message is removed */
+		EObject msg;
+		volatile Node next;
+
+		Node(EObject msg) {
+			this.msg = msg;
+		}
+	}
+
+	private final ETask<?> owner;
+
+	/** sentinel; head.next is the oldest message */
+	private final Node head = new Node(null);
+	private volatile Node tail = head;
+	private volatile int length;
+
+	// field updaters in stead of atomic objects; there is a mailbox per
+	// process, and most of them are idle
+	private static final AtomicReferenceFieldUpdater<EMBox, Node> tail_updater = AtomicReferenceFieldUpdater
+			.newUpdater(EMBox.class, Node.class, "tail");
+	private static final AtomicIntegerFieldUpdater<EMBox> length_updater = AtomicIntegerFieldUpdater
+			.newUpdater(EMBox.class, "length");
+
+	/** set by the owner before it waits, so senders know to wake it */
+	private volatile boolean waiting;
+
+	/** true during a wait with a timeout */
+	private volatile boolean timed;
+
+	/** wakes the owner when a timed wait ends */
+	private ETimerWheel.Timer wakeup;
+
+	/**
+	 * When the current receive times out; 0 if it has not waited yet. A
+	 * receive waits again after each message that does not match, and its
+	 * timeout counts from the first wait, until remove or reset ends it.
+	 */
+	private long deadline;
+
+	/** the node before the message that loop_rec looks at */
+	private Node save = head;
+
+	/**
+	 * Messages after <code>mark</code> arrived after <code>mark_ref</code>
+	 * was made, so a receive that only accepts messages containing
+	 * <code>mark_ref</code> can start scanning there.
+	 */
+	private Node mark;
+	private EObject mark_ref;
+
+	EMBox(ETask<?> owner) {
+		this.owner = owner;
+	}
+
+	/**
+	 * Append a message; never blocks.
+	 *
+	 * @param msg
+	 */
+	public void put(EObject msg) {
+		Node n = new Node(msg);
+		Node prev = tail_updater.getAndSet(this, n);
+		prev.next = n;
+		length_updater.incrementAndGet(this);
+
+		if (waiting) {
+			waiting = false;
+			owner.wake();
+		}
+	}
+
+	/**
+	 * @return number of messages in the queue
+	 */
+	public int size() {
+		return length;
+	}
 
-	private static final EAtom am_interrupted = EAtom.intern("interrupted");
-	ConcurrentLinkedQueue<EObject> queue = new ConcurrentLinkedQueue<EObject>();
+	/**
+	 * @return true if a message has arrived that loop_rec has not yet seen
+	 */
+	public boolean has_new() {
+		return peek() != null;
+	}
 
 	/**
-	 * @return
+	 * @return the message at the save pointer, or null if the messages have
+	 *         all been scanned
 	 */
 	public EObject peek() {
-		return queue.peek();
+		Node n;
+		while ((n = save.next) != null) {
+			if (n.msg != null)
+				return n.msg;
+
+			// a removed message that was last in the queue
+			Node next = n.next;
+			if (next == null)
+				return null;
+			unlink(save, n, next);
+		}
+		return null;
+	}
+
+	/** loop_rec_end: move on to the next message */
+	public void advance() {
+		Node n = save.next;
+		if (n != null)
+			save = n;
+	}
+
+	/**
+	 * remove_message: remove the message at the save pointer, and reset the
+	 * save pointer and the timeout for the next receive.
+	 */
+	public void remove() {
+		Node n = save.next;
+		if (n == null || n.msg == null)
+			throw new IllegalStateException("no current message");
+
+		n.msg = null;
+		length_updater.decrementAndGet(this);
+
+		// the last node may be getting a successor right now, so it stays
+		// in the list until then; peek skips it
+		Node next = n.next;
+		if (next != null)
+			unlink(save, n, next);
+
+		save = head;
+		end_receive();
+	}
+
+	private void unlink(Node prev, Node n, Node next) {
+		prev.next = next;
+		if (mark == n)
+			mark = prev;
+	}
+
+	/**
+	 * Remove the oldest message of the form <code>{Tag, Key, ...}</code>;
+	 * used outside of receive, e.g. by demonitor(Ref, [flush]).
+	 *
+	 * @return true if a message was removed
+	 */
+	public boolean remove_first(EObject tag, EObject key) {
+		Node prev = head;
+		Node n;
+		while ((n = prev.next) != null) {
+			ETuple t;
+			if (n.msg != null && (t = n.msg.testTuple()) != null
+					&& t.arity() >= 2 && t.elm(1) == tag
+					&& t.elm(2).equals(key)) {
+				n.msg = null;
+				length_updater.decrementAndGet(this);
+				Node next = n.next;
+				if (next != null)
+					unlink(prev, n, next);
+				save = head;
+				return true;
+			}
+			prev = n;
+		}
+		return false;
+	}
+
+	/** timeout: reset the save pointer and the timeout for the next receive */
+	public void reset() {
+		save = head;
+		end_receive();
+	}
+
+	private void end_receive() {
+		deadline = 0;
+		if (wakeup != null)
+			wakeup.cancel();
+	}
+
+	/**
+	 * @param timeoutMillis
+	 * @return when the current receive times out, counting from now if this
+	 *         is its first wait
+	 */
+	long deadline(long timeoutMillis) {
+		if (deadline == 0)
+			deadline = System.currentTimeMillis() + timeoutMillis;
+		return deadline;
+	}
+
+	/**
+	 * Remember the current end of the queue; called when <code>ref</code> is
+	 * made.
+	 *
+	 * @param ref
+	 */
+	public void mark(EObject ref) {
+		mark = tail;
+		mark_ref = ref;
+	}
+
+	/**
+	 * Start a receive that only accepts messages containing <code>ref</code>
+	 * at the position recorded when it was made.
+	 *
+	 * @param ref
+	 */
+	public void set_mark(EObject ref) {
+		if (save == head && mark_ref == ref) {
+			save = mark;
+		}
+	}
+
+	/**
+	 * Pause the owner until a message arrives that loop_rec has not yet seen.
+	 *
+	 * @throws Pausable
+	 */
+	public void untilHasMessage() throws Pausable {
+		while (!await_begin()) {
+			Task.pause(this);
+			owner.check_exit();
+		}
+		waiting = false;
 	}
 
 	/**
-	 * @param proc 
-	 * 
+	 * Like {@link #untilHasMessage()}, for a receive with a timeout. The
+	 * timer starts at the first wait of the receive; later waits of the same
+	 * receive get what is left of it.
+	 *
+	 * @param timeoutMillis
+	 * @return true if a message arrived, false on timeout
+	 * @throws Pausable
 	 */
-	public void wait_forever(EProc proc) {
-		while (queue.isEmpty()) {
-			synchronized (this) {
-				try {
-					wait();
-				} catch (InterruptedException e) {
-					proc.check_exit();
+	public boolean untilHasMessage(long timeoutMillis) throws Pausable {
+		if (has_new())
+			return true;
+		if (timeoutMillis <= 0)
+			return false;
+
+		if (wakeup == null) {
+			wakeup = new ETimerWheel.Timer() {
+				protected void on_timeout() {
+					owner.wake();
+				}
+			};
+		}
+		if (deadline == 0) {
+			deadline(timeoutMillis);
+			owner.timer_wheel().schedule(wakeup, timeoutMillis);
+		}
+		timed = true;
+
+		boolean ended = false;
+		try {
+			while (!await_begin()) {
+				if (!wakeup.is_pending()) {
+					ended = true;
+					return false;
 				}
+				Task.pause(this);
+				owner.check_exit();
 			}
+			ended = true;
+			return true;
+		} finally {
+			waiting = false;
+			timed = false;
+			// killed while waiting; nobody will end this receive
+			if (!ended)
+				end_receive();
 		}
 	}
 
-	public void send(EObject msg) {
-		queue.add(msg);
-		synchronized (this) {
-			notify();
+	/**
+	 * Announce that the owner is about to wait.
+	 *
+	 * @return true if there is no need to wait after all
+	 */
+	boolean await_begin() {
+		waiting = true;
+		return has_new();
+	}
+
+	/**
+	 * Like {@link #has_new()}, but without unlinking removed messages, so
+	 * that it can be called from other threads than the owner's.
+	 */
+	private boolean has_unseen() {
+		for (Node n = save.next; n != null; n = n.next) {
+			if (n.msg != null)
+				return true;
 		}
+		return false;
 	}
 
 	/**
-	 * 
+	 * Called by the scheduler after the owner has paused; if the reason to
+	 * pause went away meanwhile, the owner is resumed. This runs on a
+	 * worker thread while the owner may already be running elsewhere, so
+	 * it only reads the queue.
 	 */
-	public void remove_one() {
-		queue.remove();
+	public boolean isValid(Task t) {
+		if (has_unseen())
+			return false;
+		if (timed && !wakeup.is_pending())
+			return false;
+		return owner.pstate != ETask.State.EXIT_SIG;
 	}
 
 }
@@ -18,7 +18,6 @@
 
 package erjang;
 
-import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
@@ -26,26 +25,34 @@ import java.lang.reflect.Modifier;
 import java.math.BigInteger;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import kilim.Pausable;
 
 import sun.tools.java.Imports;
 
-import erjang.beam.ClassRepo;
 import erjang.beam.Compiler;
-import erjang.beam.DirClassRepo;
 
 public abstract class EModule {
 
-	static private Map<EAtom, ModuleInfo> infos = new HashMap<EAtom, ModuleInfo>();
+	/**
+	 * Link table; one {@link ModuleInfo} per module name, made on first
+	 * reference. Lookups take no lock, since every dynamic call (apply,
+	 * spawn, erlang:function_exported) goes through here.
+	 */
+	static private ConcurrentHashMap<EAtom, ModuleInfo> infos = new ConcurrentHashMap<EAtom, ModuleInfo>();
 
+	/**
+	 * The binding of one {M,F,A}. Every {@link Import} field that refers
+	 * to it is a call site: generated code reads the field and calls
+	 * through it, so as long as the field is kept pointing at the current
+	 * export, each site stays monomorphic and the JIT can inline the
+	 * callee behind a type check. Exporting a new value (i.e. loading a
+	 * new version of the module) re-targets all of them.
+	 */
 	static class FunctionInfo {
 		private final FunID fun;
 
@@ -57,17 +64,14 @@ public abstract class EModule {
 		}
 
 		EModule defining_module;
-		EFun resolved_value;
-		Collection<Field> resolve_points = new TreeSet<Field>(new Comparator<Field>() {
-
-			@Override
-			public int compare(Field o1, Field o2) {
-				if (o1==o2) return 0;
-				int c1 = o1.getDeclaringClass().getName().compareTo(o2.getDeclaringClass().getName());
-				if (c1 != 0) return c1;
-				int c2 = o1.getName().compareTo(o2.getName());
-				return c2;
-			}});
+		volatile EFun resolved_value;
+
+		/**
+		 * Import fields bound to this function. Old and new versions of an
+		 * importing module have fields of the same class and name, both of
+		 * which must be re-targeted; so these are kept by identity.
+		 */
+		List<Field> resolve_points = new ArrayList<Field>();
 
 		/**
 		 * @param ref
@@ -75,23 +79,48 @@ public abstract class EModule {
 		 * @throws IllegalArgumentException
 		 */
 		synchronized boolean add_import(final Field ref) throws Exception {
-			resolve_points.add(ref);
+			if (!resolve_points.contains(ref))
+				resolve_points.add(ref);
 			if (resolved_value != null) {
 				//System.out.println("binding "+fun+" "+resolved_value+" -> "+ref);
 				ref.set(null, resolved_value);
 				return true;
 			} else {
-				Object h = EFun.get_fun_with_handler(fun.arity,
+				ref.set(null, stub());
+			}
+			return false;
+		}
+
+		/**
+		 * The module that <code>ref</code> belongs to is being purged.
+		 */
+		synchronized void remove_import(Field ref) {
+			resolve_points.remove(ref);
+		}
+
+		private EFun stub;
+
+		/**
+		 * What import fields point to while nothing is exported; loads the
+		 * module on the first call.
+		 */
+		private EFun stub() {
+			if (stub == null) {
+				stub = EFun.get_fun_with_handler(fun.arity,
 						new EFunHandler() {
 							public EObject invoke(EProc proc, EObject[] args) 
 								throws Pausable
 							{
-								EFun found = null;
-								try {
-									ERT.load(fun.module);
-									found = EModule.resolve(fun);
-								} catch (Throwable ex) {
-									System.out.println("unable to load module for "+fun);
+								// the field is re-targeted once the function
+								// is exported, but callers may still hold on
+								// to this stub.
+								EFun found = resolved_value;
+								if (found == null) {
+									try {
+										found = load_and_resolve(fun);
+									} catch (Throwable ex) {
+										System.out.println("unable to load module for "+fun);
+									}
 								}
 								
 								if (found == null) {
@@ -101,9 +130,8 @@ public abstract class EModule {
 								}
 							}
 						});
-				ref.set(null, h);
 			}
-			return false;
+			return stub;
 		}
 
 		/**
@@ -122,8 +150,26 @@ public abstract class EModule {
 		}
 
 		/**
-		 * @return
+		 * Un-export, unless a later version of the module has exported it
+		 * again already.
 		 * 
+		 * @param definer
+		 */
+		synchronized void remove_export(EModule definer) throws Exception {
+			if (defining_module != definer)
+				return;
+
+			this.resolved_value = null;
+			this.defining_module = null;
+
+			EFun h = stub();
+			for (Field f : resolve_points) {
+				f.set(null, h);
+			}
+		}
+
+		/**
+		 * @return
 		 */
 		public EFun resolve() {
 			return resolved_value;
@@ -137,10 +183,20 @@ public abstract class EModule {
 		}
 	}
 
+	/**
+	 * A module has at most two versions loaded: the current one, which
+	 * fully qualified calls go to, and the old one, which processes that
+	 * were running it when a new version was loaded may still be running.
+	 * The old one must be purged before yet another version is loaded.
+	 * <p>
+	 * Module <code>erlang</code> is loaded once, and is never replaced,
+	 * deleted or purged: the compiler calls its bifs directly.
+	 */
 	static class ModuleInfo {
 
 		private final EAtom name;
-		private EModule module;
+		private volatile EModule module;
+		private volatile EModule old_module;
 
 		/**
 		 * @param module
@@ -149,23 +205,15 @@ public abstract class EModule {
 			this.name = module;
 		}
 
-		Map<FunID, FunctionInfo> binding_points = new HashMap<FunID, FunctionInfo>();
+		ConcurrentHashMap<FunID, FunctionInfo> binding_points = new ConcurrentHashMap<FunID, FunctionInfo>();
 
-		/**
-		 * @param fun
-		 * @param ref
-		 * @return
-		 * @throws Exception
-		 */
-		public boolean add_import(FunID fun, Field ref) throws Exception {
-			FunctionInfo info = get_function_info(fun);
-			return info.add_import(ref);
-		}
-
-		private synchronized FunctionInfo get_function_info(FunID fun) {
+		private FunctionInfo get_function_info(FunID fun) {
 			FunctionInfo info = binding_points.get(fun);
 			if (info == null) {
-				binding_points.put(fun, info = new FunctionInfo(fun));
+				FunctionInfo new_info = new FunctionInfo(fun);
+				info = binding_points.putIfAbsent(fun, new_info);
+				if (info == null)
+					info = new_info;
 			}
 			return info;
 		}
@@ -181,10 +229,90 @@ public abstract class EModule {
 		}
 
 		/**
-		 * @param eModule
+		 * Make <code>m</code> the current version, and the current one old.
+		 * Callers only see <code>m</code> once its annotations have all been
+		 * read; if that fails, the current version stays as it is.
+		 * 
+		 * @param m
 		 */
-		public void setModule(EModule eModule) {
-			this.module = eModule;
+		synchronized void install(EModule m) throws Exception {
+			if (module != null && name == AM_ERLANG)
+				throw ERT.badarg(name);
+			if (old_module != null)
+				throw new ErlangError(ERT.AM_NOT_PURGED, name);
+
+			boolean read = false;
+			try {
+				m.read_annotations();
+				read = true;
+			} finally {
+				if (!read)
+					m.unlink();
+			}
+
+			old_module = module;
+			module = m;
+
+			for (Map.Entry<FunID, EFun> ent : m.exported.entrySet()) {
+				FunID fun = ent.getKey();
+				get_module_info(fun.module).add_export(m, fun, ent.getValue());
+			}
+
+			// un-export what the previous version exported, and this one
+			// does not
+			if (old_module != null) {
+				for (FunID fun : old_module.exported.keySet()) {
+					if (!m.exported.containsKey(fun))
+						get_function_info(fun).remove_export(old_module);
+				}
+			}
+		}
+
+		/**
+		 * erlang:delete_module/1; the current version becomes old, and
+		 * nothing is exported any more.
+		 * 
+		 * @return false if there is no current version
+		 */
+		synchronized boolean delete() throws Exception {
+			if (module == null)
+				return false;
+			if (old_module != null || name == AM_ERLANG)
+				throw ERT.badarg(name);
+			old_module = module;
+			module = null;
+			for (FunID fun : old_module.exported.keySet()) {
+				get_function_info(fun).remove_export(old_module);
+			}
+			return true;
+		}
+
+		/**
+		 * erlang:purge_module/1; forget the old version, so that its class
+		 * loader can go once no process runs it any more.
+		 * 
+		 * @return false if there is no old version
+		 */
+		synchronized boolean purge() {
+			if (name == AM_ERLANG)
+				throw ERT.badarg(name);
+			EModule m = old_module;
+			if (m == null)
+				return false;
+			old_module = null;
+			m.unlink();
+			return true;
+		}
+
+		/**
+		 * Load the module, unless some version of it is loaded already.
+		 * Serialized, so that processes hitting the same unresolved import
+		 * at once load it only once.
+		 */
+		synchronized void ensure_loaded() throws IOException {
+			if (module == null) {
+				ERT.load(name);
+			}
 		}
 
 		/**
@@ -205,38 +333,66 @@ public abstract class EModule {
 
 	}
 
+	/** the import fields this version has linked */
+	private final Map<Field, FunctionInfo> imported = new HashMap<Field, FunctionInfo>();
+
+	/** the functions this version exports; published when it is installed */
+	private final Map<FunID, EFun> exported = new HashMap<FunID, EFun>();
+
 	boolean add_import(FunID fun, Field ref) throws Exception {
-		return get_module_info(fun.module).add_import(fun, ref);
+		FunctionInfo info = get_module_info(fun.module).get_function_info(fun);
+		imported.put(ref, info);
+		return info.add_import(ref);
+	}
+
+	/**
+	 * Stop re-targeting this version's import fields. Called once it has
+	 * been purged.
+	 */
+	private void unlink() {
+		for (Map.Entry<Field, FunctionInfo> ent : imported.entrySet()) {
+			ent.getValue().remove_import(ent.getKey());
+		}
+		imported.clear();
 	}
 
 	private static ModuleInfo get_module_info(EAtom module) {
-		ModuleInfo mi;
-		synchronized (infos) {
-			mi = infos.get(module);
-			if (mi == null) {
-				infos.put(module, mi = new ModuleInfo(module));
-			}
+		ModuleInfo mi = infos.get(module);
+		if (mi == null) {
+			ModuleInfo new_mi = new ModuleInfo(module);
+			mi = infos.putIfAbsent(module, new_mi);
+			if (mi == null)
+				mi = new_mi;
 		}
 		return mi;
 	}
 
+	/**
+	 * Resolve <code>fun</code>, loading its module first if no version of
+	 * it is loaded yet.
+	 */
+	static EFun load_and_resolve(FunID fun) throws IOException {
+		ModuleInfo mi = get_module_info(fun.module);
+		mi.ensure_loaded();
+		return mi.resolve(fun);
+	}
+
 	void add_export(FunID fun, EFun value) throws Exception {
-		get_module_info(fun.module).add_export(this, fun, value);
+		exported.put(fun, value);
 	}
 
 	// static private Map<EAtom, EModule> modules = new HashMap<EAtom,
 	// EModule>();
 
 	private static final EAtom AM_BADARG = EAtom.intern("badarg");
+	private static final EAtom AM_ERLANG = EAtom.intern("erlang");
 
 	public EModule() {
-		// TODO: handle if there is a module of this name already!
-		// modules.put(EAtom.intern(this.module_name()), this);
-
-		get_module_info(EAtom.intern(module_name())).setModule(this);
-
+		ModuleInfo mi = get_module_info(EAtom.intern(module_name()));
 		try {
-			read_annotations();
+			mi.install(this);
+		} catch (ErlangError e) {
+			throw e;
 		} catch (Exception e) {
 			throw new Error(e);
 		}
@@ -387,44 +543,21 @@ public abstract class EModule {
 
 	/**
 	 * @param mod
-	 * @param classData
+	 * @param bin
+	 *            the beam file
 	 */
-	@SuppressWarnings("unchecked")
-	public static void load_module(EAtom mod, EBinary bin) {
-
-		File dir = new File("out");
-		ClassRepo repo = new DirClassRepo(dir);
-
+	public static EModule load_module(EAtom mod, EBinary bin) {
 		URL url;
 		try {
-			Compiler.compile(bin, repo);
-			repo.close();
-			url = dir.toURI().toURL();
+			url = Compiler.compile(mod.getName(), bin).toURI().toURL();
 		} catch (IOException e) {
 			throw new ErlangError(e);
 		}
 
-		String internalName = erjang.beam.Compiler.moduleClassName(mod
-				.getName());
-		String java_name = internalName.replace('/', '.');
-		EModuleLoader loader = new EModuleLoader(url);
-		Class<? extends EModule> clazz;
-		try {
-			clazz = (Class<? extends EModule>) loader.loadClass(java_name);
-		} catch (ClassNotFoundException e1) {
-			throw new Error(e1);
-		}
-		EModule mi;
-		try {
-			mi = clazz.newInstance();
-		} catch (Exception e) {
-			throw new ErlangError(AM_BADARG, mod, bin);
-		}
-
-		// mi.read_annotations();
-
+		return load_module(mod, url);
 	}
 
+	@SuppressWarnings("unchecked")
 	public static EModule load_module(EAtom mod, URL url) {
 		String internalName = erjang.beam.Compiler.moduleClassName(mod
 				.getName());
@@ -439,6 +572,9 @@ public abstract class EModule {
 		EModule mi;
 		try {
 			mi = clazz.newInstance();
+		} catch (ErlangException e) {
+			// installing it failed
+			throw e;
 		} catch (Exception e) {
 			throw new ErlangError(e);
 		}
@@ -467,4 +603,60 @@ public abstract class EModule {
 		return get_module_info(m).exports(fun);
 	}
 
+	/**
+	 * @param m
+	 * @return true if there is an old version of <code>m</code>, which must
+	 *         be purged before another version can be loaded
+	 */
+	public static boolean has_old_code(EAtom m) {
+		ModuleInfo mi = infos.get(m);
+		return mi != null && mi.old_module != null;
+	}
+
+	/**
+	 * erlang:check_process_code/2
+	 * 
+	 * @param proc
+	 * @param m
+	 * @return true if <code>proc</code> may be running the old version of
+	 *         <code>m</code>
+	 */
+	public static boolean check_process_code(EProc proc, EAtom m) {
+		ModuleInfo mi = infos.get(m);
+		EModule old = mi == null ? null : mi.old_module;
+		if (old == null)
+			return false;
+
+		Class<?> c = old.getClass();
+		return proc.runs_code(c.getClassLoader(), c.getName());
+	}
+
+	/**
+	 * erlang:purge_module/1
+	 * 
+	 * @param m
+	 * @return false if there is no old version of <code>m</code>
+	 */
+	public static boolean purge_module(EAtom m) {
+		ModuleInfo mi = infos.get(m);
+		return mi != null && mi.purge();
+	}
+
+	/**
+	 * erlang:delete_module/1
+	 * 
+	 * @param m
+	 * @return false if <code>m</code> is not loaded
+	 */
+	public static boolean delete_module(EAtom m) {
+		ModuleInfo mi = infos.get(m);
+		try {
+			return mi != null && mi.delete();
+		} catch (ErlangException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ErlangError(e);
+		}
+	}
+
 }
@@ -18,6 +18,7 @@
 
 package erjang;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -76,6 +77,27 @@ class EModuleLoader extends URLClassLoader {
 		}
 		
 		if (name.startsWith("kilim.S_")) {
+			return find_state_class(name);
+		}
+
+		return super.findClass(name);
+	}
+
+	/**
+	 * kilim's state classes are shared by all modules; each module's jar
+	 * has a copy of those it uses, and the first module to need one
+	 * defines it in the loader that erjang itself came from.
+	 */
+	private Class<?> find_state_class(String name)
+			throws ClassNotFoundException {
+		ClassLoader shared = EModuleLoader.class.getClassLoader();
+		synchronized (EModuleLoader.class) {
+			try {
+				return Class.forName(name, false, shared);
+			} catch (ClassNotFoundException e) {
+				// not defined yet
+			}
+
 			InputStream resource = super.getResourceAsStream(name.replace('.', '/')  + ".class");
 
 			if (resource == null) {
@@ -83,14 +105,17 @@ class EModuleLoader extends URLClassLoader {
 			}
 			
 			try {
-				byte[] bb = new byte[resource.available()];
-				resource.read(bb);
-				return ERT.defineClass(EModuleLoader.class.getClassLoader(), name, bb, 0, bb.length);
+				ByteArrayOutputStream bo = new ByteArrayOutputStream();
+				byte[] buf = new byte[1024];
+				int n;
+				while ((n = resource.read(buf)) > 0)
+					bo.write(buf, 0, n);
+				resource.close();
+				byte[] bb = bo.toByteArray();
+				return ERT.defineClass(shared, name, bb, 0, bb.length);
 			} catch (IOException ex) {
 				throw new Error(ex);
 			}
 		}
-
-		return super.findClass(name);
 	}
 }
@@ -47,4 +47,17 @@ public abstract class EPID extends EHandle {
 	 */
 	public abstract void set_group_leader(EPID gl);
 
+	/**
+	 * @param spec
+	 * @return a process_info item, or undefined if the process is dead
+	 */
+	public abstract EObject process_info(EObject spec);
+
+	/**
+	 * @param module
+	 * @return true if the process may be running old code of
+	 *         <code>module</code>
+	 */
+	public abstract boolean check_process_code(EAtom module);
+
 }
@@ -40,6 +40,11 @@ public abstract class EPort extends EHandle {
 		// TODO: make faster
 		return toString().compareTo(rhs.toString());
 	}
+
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
 	
 	@Override
 	public EPort testPort() {
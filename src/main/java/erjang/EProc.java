@@ -33,10 +33,35 @@ public final class EProc extends ETask<EInternalPID> {
 	public static final EObject TAIL_MARKER = new ETailMarker();
 
 	private static final EAtom am_trap_exit = EAtom.intern("trap_exit");
+	private static final EAtom am_priority = EAtom.intern("priority");
+
+	/** names of the priority levels, indexed by level */
+	private static final EAtom[] PRIORITY_NAMES = new EAtom[] {
+			EAtom.intern("max"), EAtom.intern("high"),
+			EAtom.intern("normal"), EAtom.intern("low") };
+
+	private static final EAtom am_message_queue_len = EAtom
+			.intern("message_queue_len");
+
+	/** reductions in a time slice, before the process yields */
+	public static final int REDUCTIONS = 1000;
 
 	public EFun tail;
 	public EObject arg0, arg1, arg2, arg3, arg4, arg5, arg6;
 
+	/** reductions left in this time slice; counted down by generated code */
+	public int reds = REDUCTIONS;
+
+	/**
+	 * try blocks being run in functions that call erlang:get_stacktrace/0;
+	 * while there are any, Erlang exceptions capture a stack trace. Counted
+	 * by generated code.
+	 */
+	public int trace_depth;
+
+	/** the exception last caught by a try */
+	ErlangException last_exception;
+
 	private EInternalPID self;
 
 	private EPID group_leader;
@@ -47,23 +72,34 @@ public final class EProc extends ETask<EInternalPID> {
 	 * @param array
 	 */
 	public EProc(EPID group_leader, EAtom m, EAtom f, ESeq a) {
+		this(group_leader, resolve(m, f, a.length()), a);
+	}
+
+	/**
+	 * A process that starts by calling <code>target</code> with the
+	 * arguments <code>a</code>.
+	 * 
+	 * @param group_leader
+	 * @param target
+	 * @param a
+	 */
+	public EProc(EPID group_leader, EFun target, ESeq a) {
 		self = new EInternalPID(this);
 
 		// if no group leader is given, we're our own group leader
 		this.group_leader = group_leader == null ? self : group_leader;
-		//this.run_mod = m;
-		//this.run_fun = f;
-		//this.run_args = a;
-		
-		int arity = a.length();
-		EFun target = EModule.resolve(new FunID(m,f,arity));
-		
-		if (target == null) {
-			throw new ErlangUndefined(m, f, new ESmall(arity));
-		}
 		
 		this.tail = target;
+		set_args(a);
+	}
+
+	/**
+	 * Put <code>a</code> in the argument registers, and clear the rest.
+	 */
+	private void set_args(ESeq a) {
+		int arity = a.length();
 		a = a.reverse();
+		arg0 = arg1 = arg2 = arg3 = arg4 = arg5 = arg6 = null;
 		switch (arity) {
 		default:
 			throw new NotImplemented();
@@ -83,8 +119,16 @@ public final class EProc extends ETask<EInternalPID> {
 			this.arg0 = a.head(); a = a.tail();
 		case 0:
 		}
-		
+	}
 
+	private static EFun resolve(EAtom m, EAtom f, int arity) {
+		EFun target = EModule.resolve(new FunID(m,f,arity));
+		
+		if (target == null) {
+			throw new ErlangUndefined(m, f, new ESmall(arity));
+		}
+		
+		return target;
 	}
 
 	/**
@@ -100,7 +144,8 @@ public final class EProc extends ETask<EInternalPID> {
 	 * @return
 	 */
 
-	Map<EObject, EObject> pdict = new HashMap<EObject, EObject>();
+	/** the process dictionary; made on first put */
+	private Map<EObject, EObject> pdict;
 
 	private EAtom trap_exit = ERT.FALSE;
 
@@ -110,20 +155,21 @@ public final class EProc extends ETask<EInternalPID> {
 		if (trap_exit == ERT.TRUE) {
 			// we're trapping exits, so we in stead send an {'EXIT', from,
 			// reason} to self
-			System.err.println("kill message");
 			mbox_send(ETuple.make(ERT.EXIT, from, reason));
 		} else {
-			System.err.println("kill signal");
-			// try to kill this thread
+			// the process throws ErlangExitSignal from check_exit when it
+			// next runs, at a receive or a yield
 			this.exit_reason = reason;
 			this.pstate = State.EXIT_SIG;
-			this.kill(new ErlangExitSignal(reason));
+			wake();
 		}
 	}
 
 	// private Thread runner;
 
 	public EObject put(EObject key, EObject value) {
+		if (pdict == null)
+			pdict = new HashMap<EObject, EObject>();
 		EObject res = pdict.put(key, value);
 		if (res == null)
 			return ERT.NIL;
@@ -131,7 +177,7 @@ public final class EProc extends ETask<EInternalPID> {
 	}
 
 	public EObject get(EObject key) {
-		EObject res = pdict.get(key);
+		EObject res = pdict == null ? null : pdict.get(key);
 		return (res == null) ? ERT.NIL : res;
 	}
 
@@ -140,23 +186,99 @@ public final class EProc extends ETask<EInternalPID> {
 	 */
 	public ECons get() {
 		ESeq res = ERT.NIL;
+		if (pdict == null)
+			return res;
 		for (Map.Entry<EObject, EObject> ent : pdict.entrySet()) {
-			res.cons(ETuple.make(ent.getKey(), ent.getValue()));
+			res = res.cons(ETuple.make(ent.getKey(), ent.getValue()));
 		}
 		return res;
 	}
 
+	/**
+	 * erlang:get_stacktrace/0
+	 * 
+	 * @return the trace of the exception last caught by a try, which is
+	 *         empty unless the try's function calls this
+	 */
+	public ESeq get_stacktrace() {
+		ErlangException e = last_exception;
+		return e == null ? ERT.NIL : e.getTrace();
+	}
+
 	/**
 	 * @param key
 	 * @return
 	 */
 	public EObject erase(EObject key) {
-		EObject res = pdict.remove(key);
+		EObject res = pdict == null ? null : pdict.remove(key);
 		if (res == null)
 			res = ERT.NIL;
 		return res;
 	}
 
+	/**
+	 * Thrown by {@link #hibernate(EAtom, EAtom, ESeq)} to drop the stack of
+	 * the process; caught in {@link #run_task()}. It is not an
+	 * ErlangException, so Erlang's catch and try let it through. There is
+	 * only one, and it has no stack trace.
+	 */
+	static final class Hibernate extends RuntimeException {
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	private static final Hibernate HIBERNATE = new Hibernate();
+
+	/**
+	 * erlang:hibernate/3: drop the call stack, wait for a message, and then
+	 * call <code>m:f(a...)</code>. Never returns.
+	 * 
+	 * @param m
+	 * @param f
+	 * @param a
+	 */
+	public EObject hibernate(EAtom m, EAtom f, ESeq a) {
+		return hibernate(resolve(m, f, a.length()), a);
+	}
+
+	/**
+	 * Like {@link #hibernate(EAtom, EAtom, ESeq)}, but calls
+	 * <code>target</code> when a message arrives.
+	 */
+	public EObject hibernate(EFun target, ESeq a) {
+		this.tail = target;
+		set_args(a);
+		throw HIBERNATE;
+	}
+
+	/**
+	 * erlang:check_process_code/2; is this process running code of a
+	 * module version, i.e. does it have frames of it on the stack, or is
+	 * it about to call into it?
+	 * 
+	 * @param loader
+	 *            the class loader of the module version
+	 * @param class_name
+	 *            the module's class
+	 */
+	boolean runs_code(ClassLoader loader, String class_name) {
+		EFun t = tail;
+		if (t != null && t.getClass().getClassLoader() == loader)
+			return true;
+		return has_frames_in(loader, class_name);
+	}
+
+	/**
+	 * Let go of what an idle process does not need.
+	 */
+	private void compact() {
+		if (pdict != null && pdict.isEmpty())
+			pdict = null;
+		reds = REDUCTIONS;
+	}
+
 	/**
 	 * @return
 	 */
@@ -193,11 +315,119 @@ public final class EProc extends ETask<EInternalPID> {
 			return old;
 		}
 
+		if (flag == am_priority) {
+			EAtom old = PRIORITY_NAMES[priority()];
+			for (int level = 0; level < PRIORITY_NAMES.length; level++) {
+				if (value == PRIORITY_NAMES[level]) {
+					set_priority(level);
+					return old;
+				}
+			}
+			throw ERT.badarg(flag, value);
+		}
+
+		throw new NotImplemented();
+	}
+
+	/**
+	 * erlang:link/1
+	 * 
+	 * @param other
+	 */
+	public void link(EHandle other) {
+		if (!link_to(other)) {
+			if (trap_exit == ERT.TRUE) {
+				mbox_send(ETuple.make(ERT.EXIT, other, am_noproc));
+			} else {
+				throw new ErlangError(am_noproc);
+			}
+		}
+	}
+
+	/**
+	 * erlang:monitor(process, Item)
+	 * 
+	 * @param item
+	 *            a pid, a registered name, or {RegName, Node}
+	 * @return the monitor reference, or null if item is not valid
+	 */
+	public ERef monitor(EObject item) {
+		EObject name = item;
+		ETuple2 t;
+		if ((t = ETuple2.cast(item)) != null) {
+			if (t.elem2 != ERT.getLocalNode().node())
+				throw new NotImplemented();
+			name = t.elem1;
+		}
+
+		if (name.testAtom() != null) {
+			EObject who = ERT.whereis(name);
+			EPID pid = who.testPID();
+			if (t == null) {
+				item = ETuple.make(name, ERT.getLocalNode().node());
+			}
+			if (pid == null) {
+				ERef ref = ERT.getLocalNode().createRef();
+				mbox_send(ETuple.make(am_DOWN, ref, am_process, item,
+						am_noproc));
+				return ref;
+			}
+			return monitor(pid.task(), item);
+		}
+
+		EPID pid;
+		if (t == null && (pid = item.testPID()) != null) {
+			return monitor(pid.task(), item);
+		}
+
+		return null;
+	}
+
+	/**
+	 * erlang:demonitor/2
+	 * 
+	 * @param ref
+	 * @param flush
+	 *            also remove a 'DOWN' message for ref from the mailbox
+	 * @return true if the monitor was active
+	 */
+	public boolean demonitor(ERef ref, boolean flush) {
+		boolean active = demonitor(ref);
+		if (flush) {
+			mbox().remove_first(am_DOWN, ref);
+		}
+		return active;
+	}
+
+	/**
+	 * @param spec
+	 * @return
+	 */
+	public EObject process_info(EObject spec) {
+		if (pstate == State.DONE)
+			return ERT.am_undefined;
+
+		if (spec == am_message_queue_len) {
+			return new ETuple2(am_message_queue_len, new ESmall(mbox().size()));
+		}
+
+		if (spec == am_priority) {
+			return new ETuple2(am_priority, PRIORITY_NAMES[priority()]);
+		}
+
 		throw new NotImplemented();
 	}
 
+	/**
+	 * @param n
+	 *            number of reductions to charge this process
+	 */
+	public void bump_reductions(int n) {
+		reds -= n;
+	}
+
 	@Override
-	public void execute() throws Pausable {
+	protected void run_task() throws Pausable {
 		try {
 
 			EObject result = null;
@@ -205,8 +435,20 @@ public final class EProc extends ETask<EInternalPID> {
 				this.pstate = State.RUNNING;
 
 				EObject tmp;
-				while((tmp = this.tail.go(this)) == TAIL_MARKER) {
-					/* skip */
+				while (true) {
+					try {
+						while((tmp = this.tail.go(this)) == TAIL_MARKER) {
+							/* skip */
+						}
+						break;
+					} catch (Hibernate h) {
+						// the stack is gone; wait here for a message, and
+						// then go on with this.tail
+						trace_depth = 0;
+						compact();
+						mbox().reset();
+						mbox_wait();
+					}
 				}
 				 
 				//System.out.println("proc "+this+" exited "+tmp);
@@ -218,7 +460,7 @@ public final class EProc extends ETask<EInternalPID> {
 				result = e.reason();
 
 			} catch (ErlangExitSignal e) {
-				e.printStackTrace();
+				// killed by an exit signal; nothing to report
 				result = e.reason();
 
 			} catch (Throwable e) {
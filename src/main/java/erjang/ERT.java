@@ -53,6 +53,7 @@ public class ERT {
 	public static final EAtom AM_BADMATCH = EAtom.intern("badmatch");
 	public static final EAtom AM_BADARITH = EAtom.intern("badarith");
 	public static final EAtom AM_MODULE = EAtom.intern("module");
+	public static final EAtom AM_NOT_PURGED = EAtom.intern("not_purged");
 
 	public static ECons cons(EObject h, EObject t) {
 		return t.cons(h);
@@ -175,6 +176,10 @@ public class ERT {
 	 */
 	public static ETuple2 load_module(EAtom mod, EBinary bin) {
 
+		// the old version must be purged first
+		if (EModule.has_old_code(mod))
+			return (ETuple2) ETuple.make(ErlangException.am_error, AM_NOT_PURGED);
+
 		EModule.load_module(mod, bin);
 
 		return (ETuple2) ETuple.make(AM_MODULE, mod);
@@ -182,7 +187,7 @@ public class ERT {
 
 	
 	public static ESmall box(int i) {
-		return new ESmall(i);
+		return ESmall.make(i);
 	}
 	
 	/**
@@ -198,7 +203,7 @@ public class ERT {
 		
 		int intVal = (int) longVal;
 		if (longVal == (long)intVal) {
-			return new ESmall(intVal);
+			return ESmall.make(intVal);
 		} else {
 			return new EBig(longVal);			
 		}
@@ -216,7 +221,7 @@ public class ERT {
 		if (unsigned_offset >= 0x100000000L) {
 			return new EBig(longVal);
 		} else {
-			return new ESmall((int) longVal);
+			return ESmall.make((int) longVal);
 		}
 
 	}
@@ -245,7 +250,7 @@ public class ERT {
 		if (res.compareTo(INT_MAX_AS_BIG) > 0)
 			return new EBig(res);
 
-		return new ESmall(res.intValue());
+		return ESmall.make(res.intValue());
 	}
 
 	/**
@@ -279,7 +284,7 @@ public class ERT {
 	public static final EBinary EMPTY_BINARY = new EBinary(new byte[0]);
 	public static final ByteBuffer EMPTY_BYTEBUFFER = ByteBuffer.allocate(0);
 
-	public EBitStringBuilder bs_init(int size, int flags) {
+	public static EBitStringBuilder bs_init(int size, int flags) {
 		return new EBitStringBuilder(size, flags);
 	}
 
@@ -409,11 +414,15 @@ public class ERT {
 		throw new ErlangError(am_badmatch, val);
 	}
 	
-	public static EObject decode_exception2(final ErlangException e) {
+	public static EObject decode_exception2(EProc proc,
+			final ErlangException e) {
+		proc.last_exception = e;
 		return e.getCatchValue();
 	}
 	
-	public static ETuple3 decode_exception3(final ErlangException e) {
+	public static ETuple3 decode_exception3(EProc proc,
+			final ErlangException e) {
+		proc.last_exception = e;
 		return e.getTryValue();
 	}
 	
@@ -429,35 +438,71 @@ public class ERT {
 		throw new ErlangError(ETuple.make(am_try_case_clause, val));
 	}
 	
-	static kilim.Scheduler scheduler = new kilim.Scheduler(4);
+	/**
+	 * If true, processes and ports run on (virtual) threads, and generated
+	 * code is not woven. This requires a runtime that has not been woven
+	 * either; see the <code>jar-threads</code> target in build.xml.
+	 */
+	public static final boolean USE_THREADS = Boolean.getBoolean("erjang.threads");
 	
 	public static void run(ETask<?> task) {
-		task.setScheduler(scheduler);
+		if (USE_THREADS) {
+			task.start_thread();
+			return;
+		}
+		task.setScheduler(EScheduler.next());
+		task.start();
+	}
+	
+	/**
+	 * Start <code>task</code> on the same run queue as <code>parent</code>.
+	 */
+	public static void run(ETask<?> task, ETask<?> parent) {
+		if (USE_THREADS) {
+			task.start_thread();
+			return;
+		}
+		kilim.Scheduler queue = parent.run_queue();
+		task.setScheduler(queue == null ? EScheduler.next() : queue);
 		task.start();
 	}
 	
 	/** peek mbox */
 	public static EObject receive_peek(EProc proc) {
-		return proc.mbox.peek();
+		return proc.mbox().peek();
 	}
 	
-	public static void remove_message(EProc proc) throws Pausable {
-		proc.mbox.get();
+	/**
+	 * peek mbox, in a receive where every clause matches <code>ref</code>;
+	 * messages that arrived before <code>ref</code> was made are skipped.
+	 */
+	public static EObject receive_peek(EProc proc, EObject ref) {
+		proc.mbox().set_mark(ref);
+		return proc.mbox().peek();
+	}
+	
+	public static void remove_message(EProc proc) {
+		proc.mbox().remove();
 	}
 	
 	public static void wait_forever(EProc proc) throws Pausable {
-		proc.mbox.untilHasMessage();
+		proc.mbox_wait();
 	}
 	
-	public static EObject loop_rec_end(EProc proc) {
-		EObject msg = proc.mbox.peek();
-		throw new ErlangError(am_receive_clause, msg);
+	public static void loop_rec_end(EProc proc) {
+		proc.mbox().advance();
 	}
 	
 	public static int unboxToInt(EInteger i) {
 		return i.intValue();
 	}
 
+	public static int unboxToInt(EObject i) {
+		ESmall num;
+		if ((num = i.testSmall()) == null) throw ERT.badarg(i);
+		return num.value;
+	}
+
 	public static double unboxToDouble(ENumber i) {
 		return i.doubleValue();
 	}
@@ -476,6 +521,21 @@ public class ERT {
 		p.check_exit();
 	}
 	
+	/**
+	 * Called from generated code when <code>proc</code> has used the
+	 * reductions of its time slice; lets other processes run.
+	 */
+	public static void yield(EProc proc) throws Pausable {
+		proc.reds = EProc.REDUCTIONS;
+		proc.check_exit();
+		if (USE_THREADS) {
+			Thread.yield();
+		} else {
+			kilim.Task.yield();
+		}
+		proc.check_exit();
+	}
+	
 	public static EObject func_info(EAtom mod, EAtom fun, int arity) {
 		throw new ErlangError(AM_BADMATCH);
 	}
@@ -483,11 +543,11 @@ public class ERT {
 	public static boolean wait_timeout(EProc proc, EObject howlong) throws Pausable {
 		EInteger ei;
 		if ((ei = howlong.testInteger()) == null) throw badarg(howlong);
-		return proc.mbox.untilHasMessage(ei.longValue());
+		return proc.mbox_wait(ei.longValue());
 	}
 	
-	public static void timeout() {
-		// skip //
+	public static void timeout(EProc proc) {
+		proc.mbox().reset();
 	}
 	
 	static void load(EAtom module) throws IOException {
@@ -495,6 +555,17 @@ public class ERT {
 		EModule.load_module(module, f.toURI().toURL());
 	}
 
+	/**
+	 * Compile the modules in parallel, then load them one by one, in the
+	 * given order.
+	 */
+	static void load_all(String[] modules) throws IOException {
+		File[] f = Compiler.find_and_compile_all(modules);
+		for (int i = 0; i < modules.length; i++) {
+			EModule.load_module(EAtom.intern(modules[i]), f[i].toURI().toURL());
+		}
+	}
+
 	/**
 	 * @param command
 	 * @return
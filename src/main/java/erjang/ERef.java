@@ -93,7 +93,16 @@ public class ERef extends EObject {
         return ids[0] == ref.ids[0];
     }
 
-	
+
+    /**
+     * Consistent with {@link #equals(Object)}, which compares only the first
+     * id of old style refs.
+     */
+    @Override
+    public int hashCode() {
+        return node.hashCode() * 31 + creation * 7 + ids[0];
+    }
+
 	@Override
 	int cmp_order() {
 		return 2;
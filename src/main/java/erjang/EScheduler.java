@@ -0,0 +1,435 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kilim.RingQueue;
+import kilim.Task;
+import kilim.WorkerThread;
+
+/**
+ * A run queue served by exactly one worker thread. The runtime has one of
+ * these per scheduler (by default one per core, or as given with
+ * <code>+S</code>).
+ *
+ * A spawned process starts out on its parent's run queue. A worker whose
+ * own queue is empty steals a waiting process from another queue before
+ * it goes to sleep. A worker that is already asleep is not woken to
+ * steal; instead, when a process becomes runnable on a queue that is
+ * backed up while some worker sleeps, the process is moved to that
+ * worker's queue.
+ *
+ * Within a run queue, tasks wait in one queue per priority level. A
+ * runnable <code>max</code> task always goes first, then <code>high</code>.
+ * <code>normal</code> and <code>low</code> tasks share the rest, with a
+ * <code>low</code> task getting a turn after every
+ * <code>LOW_PRIORITY_SKIP</code> <code>normal</code> ones.
+ */
+public final class EScheduler extends kilim.Scheduler {
+
+	/** backlog at which a task being scheduled moves to an idle queue */
+	private static final int MOVE_THRESHOLD = 2;
+
+	private static volatile EScheduler[] run_queues;
+	private static final AtomicInteger next_queue = new AtomicInteger();
+
+	/** number of queues whose worker found nothing to run or steal */
+	private static final AtomicInteger idle_count = new AtomicInteger();
+
+	private final int index;
+	private final ETimerWheel timers = new ETimerWheel();
+	private final PriorityRunQueue queue = new PriorityRunQueue(this);
+
+	/** kilim's list of our worker, while it waits for a task */
+	private final LinkedList<WorkerThread> waiting;
+
+	private static final Field waiting_threads;
+
+	static {
+		try {
+			waiting_threads = kilim.Scheduler.class
+					.getDeclaredField("waitingThreads");
+			waiting_threads.setAccessible(true);
+		} catch (Exception e) {
+			throw new Error("cannot reach kilim's waiting workers", e);
+		}
+	}
+
+	/** normal tasks to run before a waiting low task gets a turn */
+	private static final int LOW_PRIORITY_SKIP = 8;
+
+	private EScheduler(int index) {
+		super(1);
+		this.index = index;
+
+		// the worker thread is already running, and reads runnableTasks
+		// while holding the lock
+		synchronized (this) {
+			runnableTasks = queue;
+		}
+
+		try {
+			@SuppressWarnings("unchecked")
+			LinkedList<WorkerThread> list = (LinkedList<WorkerThread>) waiting_threads
+					.get(this);
+			waiting = list;
+		} catch (IllegalAccessException e) {
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * kilim's worker takes tasks from <code>runnableTasks</code> with
+	 * <code>get</code>, and <code>schedule</code> adds them with
+	 * <code>put</code>, both while holding the scheduler lock. Stealing
+	 * must not take another scheduler's lock while holding our own, so the
+	 * queue has its own lock, and a queue lock is never held while taking
+	 * any other lock. <code>total</code> can be read without a lock.
+	 */
+	private static final class PriorityRunQueue extends RingQueue<Task> {
+		private final EScheduler owner;
+		@SuppressWarnings("unchecked")
+		private final RingQueue<Task>[] levels = new RingQueue[ETask.PRIORITY_LOW + 1];
+		private volatile int total;
+		/** starts out true, as the worker has nothing to run */
+		private volatile boolean idle = true;
+		private int normal_run;
+
+		PriorityRunQueue(EScheduler owner) {
+			super(1);
+			this.owner = owner;
+			idle_count.incrementAndGet();
+			for (int i = 0; i < levels.length; i++) {
+				levels[i] = new RingQueue<Task>(100);
+			}
+		}
+
+		@Override
+		public synchronized boolean put(Task t) {
+			add(t);
+			return true;
+		}
+
+		synchronized void put_all(Task[] tasks, int start, int end) {
+			for (int i = start; i < end; i++) {
+				add(tasks[i]);
+			}
+		}
+
+		private void add(Task t) {
+			int level = t instanceof ETask<?> ? ((ETask<?>) t).priority()
+					: ETask.PRIORITY_NORMAL;
+			levels[level].put(t);
+			total += 1;
+			if (idle) {
+				idle = false;
+				idle_count.decrementAndGet();
+			}
+		}
+
+		/** our worker is about to run a task that it was handed */
+		synchronized void busy() {
+			if (idle) {
+				idle = false;
+				idle_count.decrementAndGet();
+			}
+		}
+
+		@Override
+		public Task get() {
+			Task t = take();
+			if (t == null && (t = steal()) == null) {
+				synchronized (this) {
+					if (total == 0 && !idle) {
+						idle = true;
+						idle_count.incrementAndGet();
+					}
+				}
+			}
+			return t;
+		}
+
+		/** take the next task to run from this queue */
+		private synchronized Task take() {
+			if (total == 0)
+				return null;
+			total -= 1;
+
+			Task t;
+			if ((t = levels[ETask.PRIORITY_MAX].get()) != null)
+				return t;
+			if ((t = levels[ETask.PRIORITY_HIGH].get()) != null)
+				return t;
+
+			RingQueue<Task> low = levels[ETask.PRIORITY_LOW];
+			if (low.size() > 0 && normal_run >= LOW_PRIORITY_SKIP) {
+				normal_run = 0;
+				return low.get();
+			}
+			if ((t = levels[ETask.PRIORITY_NORMAL].get()) != null) {
+				normal_run += 1;
+				return t;
+			}
+			normal_run = 0;
+			return low.get();
+		}
+
+		/**
+		 * Take a waiting process from the first other queue that has one,
+		 * and bind it to our scheduler. Other kilim tasks stay where they
+		 * are.
+		 */
+		private Task steal() {
+			EScheduler[] queues = run_queues;
+			if (queues == null)
+				return null;
+
+			for (int i = 1; i < queues.length; i++) {
+				PriorityRunQueue victim = queues[(owner.index + i)
+						% queues.length].queue;
+				if (victim.total == 0)
+					continue;
+				ETask<?> t = victim.give_away();
+				if (t != null) {
+					t.set_run_queue(owner);
+					return t;
+				}
+			}
+			return null;
+		}
+
+		/** remove the most urgent waiting process, for another queue */
+		private synchronized ETask<?> give_away() {
+			for (RingQueue<Task> q : levels) {
+				for (int n = q.size(); n > 0; n--) {
+					Task t = q.get();
+					if (t instanceof ETask<?>) {
+						total -= 1;
+						return (ETask<?>) t;
+					}
+					q.put(t);
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public int size() {
+			return total;
+		}
+
+		@Override
+		public synchronized boolean contains(Task t) {
+			for (RingQueue<Task> q : levels) {
+				if (q.contains(t))
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "max=" + levels[0].size() + ", high=" + levels[1].size()
+					+ ", normal=" + levels[2].size() + ", low="
+					+ levels[3].size();
+		}
+	}
+
+	/**
+	 * Start <code>count</code> schedulers. Must be called before the first
+	 * process is started, otherwise the default count is used.
+	 *
+	 * @param count
+	 */
+	public static synchronized void init(int count) {
+		if (run_queues != null)
+			throw new IllegalStateException("schedulers already started");
+		if (count < 1)
+			throw new IllegalArgumentException("need at least one scheduler");
+
+		EScheduler[] queues = new EScheduler[count];
+		for (int i = 0; i < count; i++) {
+			queues[i] = new EScheduler(i);
+		}
+		run_queues = queues;
+	}
+
+	static EScheduler[] run_queues() {
+		EScheduler[] queues = run_queues;
+		if (queues != null)
+			return queues;
+
+		synchronized (EScheduler.class) {
+			if (run_queues == null) {
+				init(default_count());
+			}
+			return run_queues;
+		}
+	}
+
+	private static int default_count() {
+		String prop = System.getProperty("erjang.schedulers");
+		if (prop != null) {
+			return Integer.parseInt(prop);
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * @return the number of schedulers
+	 */
+	public static int count() {
+		return run_queues().length;
+	}
+
+	/**
+	 * @return a run queue for a task that has no parent
+	 */
+	static EScheduler next() {
+		EScheduler[] queues = run_queues();
+		int i = next_queue.getAndIncrement() & Integer.MAX_VALUE;
+		return queues[i % queues.length];
+	}
+
+	/**
+	 * @return number of tasks waiting to run on this queue
+	 */
+	int backlog() {
+		return queue.total;
+	}
+
+	/**
+	 * @return index of this scheduler, 0 .. count()-1
+	 */
+	public int index() {
+		return index;
+	}
+
+	/**
+	 * @return the timing wheel for processes on this run queue
+	 */
+	ETimerWheel timers() {
+		return timers;
+	}
+
+	@Override
+	public void schedule(Task t) {
+		EScheduler target = this;
+
+		if (t instanceof ETask<?> && backlog() >= MOVE_THRESHOLD) {
+			EScheduler idle = find_idle();
+			if (idle != null) {
+				((ETask<?>) t).set_run_queue(idle);
+				target = idle;
+			}
+		}
+
+		target.enqueue(t);
+	}
+
+	/**
+	 * kilim's own <code>schedule</code> puts the task on the queue, and then
+	 * notifies the worker if it is waiting. But the worker marks itself as
+	 * waiting before it starts to wait, and misses a notify that comes in
+	 * between; it then sleeps with tasks on its queue. So a waiting worker
+	 * is handed the task itself instead: it looks for that under its own
+	 * lock before it waits.
+	 */
+	private void enqueue(Task t) {
+		WorkerThread w;
+		synchronized (this) {
+			w = waiting.poll();
+			if (w == null) {
+				runnableTasks.put(t);
+				return;
+			}
+		}
+		queue.busy();
+		w.addRunnableTask(t);
+	}
+
+	/**
+	 * Schedule <code>tasks[0 .. count-1]</code>, which are bound to this
+	 * queue and already marked as running, taking each queue's lock once
+	 * rather than once per task. Queues whose worker is idle each get an
+	 * equal share.
+	 * 
+	 * @param tasks
+	 * @param count
+	 */
+	void schedule_all(ETask<?>[] tasks, int count) {
+		EScheduler[] share = sharing_queues(count);
+		int start = 0;
+		for (int i = 0; i < share.length; i++) {
+			int end = (int) ((long) count * (i + 1) / share.length);
+			if (end > start) {
+				share[i].enqueue_all(tasks, start, end);
+			}
+			start = end;
+		}
+	}
+
+	private void enqueue_all(ETask<?>[] tasks, int start, int end) {
+		for (int i = start; i < end; i++) {
+			tasks[i].set_run_queue(this);
+		}
+		queue.put_all(tasks, start, end - 1);
+		// the last one wakes the worker, if it waits
+		enqueue(tasks[end - 1]);
+	}
+
+	/** this queue, followed by the idle ones if there is work to share */
+	private EScheduler[] sharing_queues(int count) {
+		if (count < MOVE_THRESHOLD || idle_count.get() == 0)
+			return new EScheduler[] { this };
+
+		EScheduler[] queues = run_queues;
+		EScheduler[] share = new EScheduler[queues.length];
+		int n = 0;
+		share[n++] = this;
+		for (int i = 1; i < queues.length; i++) {
+			EScheduler other = queues[(index + i) % queues.length];
+			if (other.queue.idle)
+				share[n++] = other;
+		}
+		return n == share.length ? share : Arrays.copyOf(share, n);
+	}
+
+	private EScheduler find_idle() {
+		if (idle_count.get() == 0)
+			return null;
+
+		EScheduler[] queues = run_queues;
+		for (int i = 1; i < queues.length; i++) {
+			EScheduler other = queues[(index + i) % queues.length];
+			if (other.queue.idle)
+				return other;
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return "EScheduler[" + index + "]";
+	}
+}
@@ -27,7 +27,22 @@ import org.objectweb.asm.Type;
 public class ESmall extends EInteger {
 
 	private static final Type ESMALL_TYPE = Type.getType(ESmall.class);
-	public static final ESmall ZERO = new ESmall(0);
+
+	/**
+	 * Shared boxes for the values that counters, indices, characters and
+	 * the like mostly take, so that arithmetic on them does not allocate.
+	 */
+	private static final int CACHE_LOW = -256;
+	private static final int CACHE_HIGH = 1024;
+	private static final ESmall[] CACHE = new ESmall[CACHE_HIGH - CACHE_LOW];
+
+	static {
+		for (int i = 0; i < CACHE.length; i++) {
+			CACHE[i] = new ESmall(i + CACHE_LOW);
+		}
+	}
+
+	public static final ESmall ZERO = make(0);
 	public final int value;
 
 	public ESmall testSmall() {
@@ -133,11 +148,14 @@ public class ESmall extends EInteger {
 	}
 
 	/**
-	 * @param arity
-	 * @return
+	 * @param value
+	 * @return a shared box if <code>value</code> is in the cached range
 	 */
-	public static ESmall make(int arity) {
-		return new ESmall(arity);
+	public static ESmall make(int value) {
+		if (value >= CACHE_LOW && value < CACHE_HIGH) {
+			return CACHE[value - CACHE_LOW];
+		}
+		return new ESmall(value);
 	}
 
 	//
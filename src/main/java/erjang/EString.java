@@ -282,7 +282,7 @@ public class EString extends ESeq implements CharSequence {
 	 */
 	@Override
 	public ESmall head() {
-		return new ESmall(data[off] & 0xff);
+		return ESmall.make(data[off] & 0xff);
 	}
 
 	@Override
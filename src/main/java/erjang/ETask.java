@@ -18,10 +18,18 @@
 
 package erjang;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
-import kilim.Mailbox;
+import kilim.ExitMsg;
 import kilim.Pausable;
 
 /**
@@ -38,7 +46,84 @@ public abstract class ETask<H extends EHandle> extends kilim.Task {
 	 */
 	public abstract H self();
 
-	private Set<EHandle> links = new TreeSet<EHandle>();
+	protected static final EAtom am_DOWN = EAtom.intern("DOWN");
+	protected static final EAtom am_process = EAtom.intern("process");
+	protected static final EAtom am_noproc = EAtom.intern("noproc");
+
+	/*
+	 * Links and monitors are changed by other tasks, so they live in
+	 * concurrent maps. An entry is claimed by whoever removes it: a task
+	 * that is done signals only the links and monitors it removes, and a
+	 * task that adds one to a task that turns out to be done takes it back
+	 * if it can, and handles the exit itself.
+	 *
+	 * Most processes never link or monitor, so the maps are made on first
+	 * use; null means empty. Once made, a map is never replaced.
+	 */
+
+	private volatile Set<EHandle> links;
+
+	/** monitors set up by this task: the monitored task, by reference */
+	private volatile Map<ERef, ETask<?>> monitors;
+
+	/** monitors on this task, by reference */
+	private volatile Map<ERef, Monitor> monitored_by;
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<ETask, Set> links_updater = AtomicReferenceFieldUpdater
+			.newUpdater(ETask.class, Set.class, "links");
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<ETask, Map> monitors_updater = AtomicReferenceFieldUpdater
+			.newUpdater(ETask.class, Map.class, "monitors");
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<ETask, Map> monitored_by_updater = AtomicReferenceFieldUpdater
+			.newUpdater(ETask.class, Map.class, "monitored_by");
+
+	private Set<EHandle> links() {
+		Set<EHandle> set = links;
+		if (set == null) {
+			links_updater.compareAndSet(this, null, Collections
+					.newSetFromMap(new ConcurrentHashMap<EHandle, Boolean>()));
+			set = links;
+		}
+		return set;
+	}
+
+	private Map<ERef, ETask<?>> monitors() {
+		Map<ERef, ETask<?>> map = monitors;
+		if (map == null) {
+			monitors_updater.compareAndSet(this, null,
+					new ConcurrentHashMap<ERef, ETask<?>>());
+			map = monitors;
+		}
+		return map;
+	}
+
+	private Map<ERef, Monitor> monitored_by() {
+		Map<ERef, Monitor> map = monitored_by;
+		if (map == null) {
+			monitored_by_updater.compareAndSet(this, null,
+					new ConcurrentHashMap<ERef, Monitor>());
+			map = monitored_by;
+		}
+		return map;
+	}
+
+	private void remove_link(EHandle h) {
+		Set<EHandle> set = links;
+		if (set != null)
+			set.remove(h);
+	}
+
+	private static final class Monitor {
+		final ETask<?> watcher;
+		final EObject item;
+
+		Monitor(ETask<?> watcher, EObject item) {
+			this.watcher = watcher;
+			this.item = item;
+		}
+	}
 
 	/**
 	 * @param task
@@ -49,17 +134,244 @@ public abstract class ETask<H extends EHandle> extends kilim.Task {
 	}
 
 	public void link_oneway(EHandle h) {
-		links.add(h);
+		links().add(h);
+	}
+
+	/**
+	 * Link this (running) task with <code>other</code>.
+	 * 
+	 * @return false if <code>other</code> is not alive
+	 */
+	public boolean link_to(EHandle other) {
+		ETask<?> task = other.task();
+		if (!task.add_link(self()))
+			return false;
+		links().add(other);
+		return true;
+	}
+
+	/**
+	 * @param other
+	 */
+	public void unlink(EHandle other) {
+		remove_link(other);
+		other.task().remove_link(self());
+	}
+
+	private boolean add_link(EHandle h) {
+		Set<EHandle> set = links();
+		set.add(h);
+		if (pstate == State.DONE && set.remove(h))
+			return false;
+		return true;
+	}
+
+	/**
+	 * Monitor <code>task</code>; if it is not alive, a 'DOWN' message with
+	 * reason <code>noproc</code> is sent right away.
+	 * 
+	 * @param item
+	 *            identifies the monitored process in the 'DOWN' message
+	 * @return the monitor reference
+	 */
+	public ERef monitor(ETask<?> task, EObject item) {
+		ERef ref = ERT.getLocalNode().createRef();
+		mbox().mark(ref);
+		Map<ERef, ETask<?>> mine = monitors();
+		mine.put(ref, task);
+		if (!task.add_monitor(ref, this, item)) {
+			mine.remove(ref);
+			mbox_send(ETuple.make(am_DOWN, ref, am_process, item, am_noproc));
+		}
+		return ref;
+	}
+
+	/**
+	 * @param ref
+	 * @return false if there was no such monitor, or it has fired
+	 */
+	public boolean demonitor(ERef ref) {
+		Map<ERef, ETask<?>> mine = monitors;
+		ETask<?> task = mine == null ? null : mine.remove(ref);
+		if (task == null)
+			return false;
+		return task.monitored_by.remove(ref) != null;
+	}
+
+	private boolean add_monitor(ERef ref, ETask<?> watcher, EObject item) {
+		Map<ERef, Monitor> map = monitored_by();
+		map.put(ref, new Monitor(watcher, item));
+		if (pstate == State.DONE && map.remove(ref) != null)
+			return false;
+		return true;
 	}
 
+	/**
+	 * Send exit signals to linked tasks, and 'DOWN' messages to monitoring
+	 * tasks. Called when the task is done.
+	 * 
+	 * @param result
+	 * @throws Pausable
+	 */
 	protected void send_exit_to_all_linked(EObject result) throws Pausable {
 		H me = self();
-		for (EHandle handle : links) {
-			handle.exit_signal(me, result);
+		Set<EHandle> set = links;
+		EHandle[] linked = new EHandle[set == null ? 0 : set.size()];
+		int count = 0;
+		for (EHandle handle : set == null ? Collections.<EHandle> emptySet()
+				: set) {
+			if (set.remove(handle)) {
+				if (count == linked.length)
+					linked = Arrays.copyOf(linked, count * 2 + 1);
+				linked[count++] = handle;
+			}
+		}
+
+		if (ERT.USE_THREADS) {
+			// each thread has to be woken by itself
+			for (int i = 0; i < count; i++) {
+				linked[i].exit_signal(me, result);
+			}
+		} else if (count > 0) {
+			send_exit_batch(me, result, linked, count);
+		}
+
+		Map<ERef, Monitor> by = monitored_by;
+		if (by == null)
+			return;
+		for (ERef ref : by.keySet()) {
+			Monitor m = by.remove(ref);
+			if (m != null) {
+				m.watcher.monitors.remove(ref);
+				m.watcher.mbox_send(ETuple.make(am_DOWN, ref, am_process,
+						m.item, result));
+			}
 		}
 	}
 
-	protected Mailbox<EObject> mbox = new Mailbox<EObject>();
+	/**
+	 * The batch of tasks to wake that the current thread is collecting,
+	 * if any; see {@link #wake()}.
+	 */
+	private static final ThreadLocal<WakeBatch> wake_batch = new ThreadLocal<WakeBatch>();
+
+	/** number of threads collecting a batch, so wake can skip the lookup */
+	private static final AtomicInteger open_batches = new AtomicInteger();
+
+	/**
+	 * Deliver exit signals to <code>linked[0 .. count-1]</code>. Each signal
+	 * goes into the target's mailbox or process state as usual, but the
+	 * targets are not woken one at a time: they are collected, and then put
+	 * on their run queues with one lock per queue.
+	 */
+	private static void send_exit_batch(EHandle from, EObject reason,
+			EHandle[] linked, int count) throws Pausable {
+		WakeBatch batch = new WakeBatch();
+		wake_batch.set(batch);
+		open_batches.incrementAndGet();
+		try {
+			// delivering a signal never pauses, so this stays on one thread
+			for (int i = 0; i < count; i++) {
+				try {
+					linked[i].exit_signal(from, reason);
+				} catch (ErlangException e) {
+					// the target is gone or cannot be signalled; go on //
+				}
+			}
+		} finally {
+			open_batches.decrementAndGet();
+			wake_batch.remove();
+		}
+		batch.flush();
+	}
+
+	/** tasks to be woken together, grouped by run queue when flushed */
+	private static final class WakeBatch {
+		private ETask<?>[] tasks = new ETask<?>[16];
+		private int count;
+
+		/** what {@link kilim.Task#resume()} does, but without scheduling */
+		void add(ETask<?> t) {
+			synchronized (t) {
+				if (t.done || t.running || t.scheduler == null)
+					return;
+				t.running = true;
+			}
+			if (count == tasks.length)
+				tasks = Arrays.copyOf(tasks, count * 2);
+			tasks[count++] = t;
+		}
+
+		void flush() {
+			EScheduler[] queues = EScheduler.run_queues();
+			ETask<?>[][] by_queue = new ETask<?>[queues.length][];
+			int[] sizes = new int[queues.length];
+
+			for (int i = 0; i < count; i++) {
+				ETask<?> t = tasks[i];
+				kilim.Scheduler s = t.scheduler;
+				if (!(s instanceof EScheduler)) {
+					s.schedule(t);
+					continue;
+				}
+				int q = ((EScheduler) s).index();
+				ETask<?>[] group = by_queue[q];
+				if (group == null) {
+					group = by_queue[q] = new ETask<?>[count - i];
+				}
+				group[sizes[q]++] = t;
+			}
+
+			for (int q = 0; q < queues.length; q++) {
+				if (sizes[q] > 0)
+					queues[q].schedule_all(by_queue[q], sizes[q]);
+			}
+		}
+	}
+
+	/*
+	 * Priority levels, as set with process_flag(priority, Level). Each run
+	 * queue keeps a queue per level; a lower number runs first.
+	 */
+	public static final int PRIORITY_MAX = 0;
+	public static final int PRIORITY_HIGH = 1;
+	public static final int PRIORITY_NORMAL = 2;
+	public static final int PRIORITY_LOW = 3;
+
+	private volatile int priority = PRIORITY_NORMAL;
+
+	/**
+	 * @return this task's priority level, one of the PRIORITY_ constants
+	 */
+	public int priority() {
+		return priority;
+	}
+
+	/**
+	 * Change the priority level; takes effect the next time the task is
+	 * scheduled.
+	 * 
+	 * @param level
+	 *            one of the PRIORITY_ constants
+	 */
+	public void set_priority(int level) {
+		if (level < PRIORITY_MAX || level > PRIORITY_LOW)
+			throw new IllegalArgumentException("priority " + level);
+		this.priority = level;
+
+		Thread t = runner;
+		if (t != null) {
+			// ignored by virtual threads
+			t.setPriority(thread_priority(level));
+		}
+	}
+
+	/** made by the first send or receive; see {@link #mbox()} */
+	private volatile EMBox mbox;
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<ETask, EMBox> mbox_updater = AtomicReferenceFieldUpdater
+			.newUpdater(ETask.class, EMBox.class, "mbox");
 
 	protected static enum State {
 		INIT, // has not started yet
@@ -69,7 +381,7 @@ public abstract class ETask<H extends EHandle> extends kilim.Task {
 		// done
 	};
 
-	protected State pstate = State.INIT;
+	protected volatile State pstate = State.INIT;
 	protected EObject exit_reason;
 
 	/**
@@ -77,7 +389,7 @@ public abstract class ETask<H extends EHandle> extends kilim.Task {
 	 */
 	public EObject mbox_peek() {
 		check_exit();
-		return mbox.peek();
+		return mbox().peek();
 	}
 
 	/**
@@ -85,30 +397,363 @@ public abstract class ETask<H extends EHandle> extends kilim.Task {
 	 * 
 	 */
 	public void mbox_wait() throws Pausable {
-		mbox.untilHasMessage();
+		if (ERT.USE_THREADS) {
+			thread_wait(0);
+		} else {
+			mbox().untilHasMessage();
+		}
 	}
 
 	/**
 	 * @param longValue
 	 */
 	public boolean mbox_wait(long timeoutMillis) throws Pausable {
-		return mbox.untilHasMessage(timeoutMillis);
+		if (timeoutMillis <= 0) {
+			return mbox().has_new();
+		} else if (ERT.USE_THREADS) {
+			return thread_wait(timeoutMillis);
+		} else {
+			return mbox().untilHasMessage(timeoutMillis);
+		}
 	}
 
 	/**
+	 * Sending never blocks, the mailbox is unbounded.
+	 * 
 	 * @param msg
-	 * @throws Pausable
 	 */
-	public void mbox_send(EObject msg) throws Pausable {
-		mbox.put(msg);
+	public void mbox_send(EObject msg) {
+		mbox().put(msg);
+	}
+
+	/**
+	 * Deliver a message from a thread that is not a process, such as an NIO
+	 * callback.
+	 * 
+	 * @param msg
+	 */
+	public void mbox_putb(EObject msg) {
+		mbox().put(msg);
+	}
+
+	/**
+	 * Make the owner of the mailbox look for new messages, or an exit
+	 * signal.
+	 */
+	void wake() {
+		WakeBatch batch;
+		if (ERT.USE_THREADS) {
+			wake_thread();
+		} else if (open_batches.get() != 0
+				&& (batch = wake_batch.get()) != null) {
+			batch.add(this);
+		} else {
+			resume();
+		}
+	}
+
+	/**
+	 * Remember the current end of the mailbox, so that a receive for
+	 * <code>ref</code> need not look at messages that are already there.
+	 * 
+	 * @param ref
+	 */
+	public void mbox_mark(EObject ref) {
+		mbox().mark(ref);
 	}
 
 	/**
+	 * Wait for, and remove the next message
+	 * 
 	 * @return
 	 * @throws Pausable
 	 */
-	public void mbox_remove_one() throws Pausable {
-		mbox.get();
+	public EObject mbox_get() throws Pausable {
+		EObject msg;
+		mbox().reset();
+		while ((msg = mbox().peek()) == null) {
+			mbox_wait();
+		}
+		mbox().remove();
+		return msg;
+	}
+
+	//
+	// Running tasks on threads in stead of kilim; see ERT.USE_THREADS
+	//
+
+	private static final Method thread_builder_unstarted;
+	private static final Object virtual_thread_builder;
+
+	static {
+		Method unstarted = null;
+		Object builder = null;
+		try {
+			// Thread.ofVirtual() is available in Java 21 and later
+			builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod(
+					"unstarted", Runnable.class);
+		} catch (Exception e) {
+			builder = null;
+			unstarted = null;
+		}
+		virtual_thread_builder = builder;
+		thread_builder_unstarted = unstarted;
+	}
+
+	private volatile Thread runner;
+
+	/**
+	 * Start this task on its own thread; a virtual thread if the JVM
+	 * supports it, otherwise a daemon platform thread.
+	 */
+	void start_thread() {
+		Runnable body = new Runnable() {
+			public void run() {
+				run_on_thread();
+			}
+		};
+
+		Thread t = null;
+		if (virtual_thread_builder != null) {
+			try {
+				t = (Thread) thread_builder_unstarted.invoke(
+						virtual_thread_builder, body);
+			} catch (Exception e) {
+				t = null;
+			}
+		}
+
+		if (t == null) {
+			t = new Thread(body, "erjang-" + id);
+			t.setDaemon(true);
+			t.setPriority(thread_priority(priority));
+		}
+
+		this.runner = t;
+		t.start();
+	}
+
+	/**
+	 * With the thread backend, priority levels map to thread priorities.
+	 */
+	private static int thread_priority(int level) {
+		switch (level) {
+		case PRIORITY_MAX:
+			return Thread.MAX_PRIORITY;
+		case PRIORITY_HIGH:
+			return Thread.NORM_PRIORITY + 2;
+		case PRIORITY_LOW:
+			return Thread.MIN_PRIORITY;
+		default:
+			return Thread.NORM_PRIORITY;
+		}
+	}
+
+	/**
+	 * {@link #execute()}, which is called reflectively, so that the kilim
+	 * weaver does not require {@link #run_on_thread()} to be pausable. With
+	 * this backend, tasks are not woven.
+	 */
+	private static final Method task_execute;
+
+	static {
+		try {
+			task_execute = kilim.Task.class.getMethod("execute");
+		} catch (NoSuchMethodException e) {
+			throw new Error(e);
+		}
+	}
+
+	/** the task that a thread of the thread backend runs */
+	private static final ThreadLocal<ETask<?>> thread_task = new ThreadLocal<ETask<?>>();
+
+	/**
+	 * @return the task running on the calling thread, or null if it is not
+	 *         running one
+	 */
+	public static ETask<?> current() {
+		Thread t = Thread.currentThread();
+		if (t instanceof kilim.WorkerThread) {
+			kilim.Task task = ((kilim.WorkerThread) t).getCurrentTask();
+			return task instanceof ETask ? (ETask<?>) task : null;
+		}
+		return thread_task.get();
+	}
+
+	private void run_on_thread() {
+		thread_task.set(this);
+		try {
+			task_execute.invoke(this);
+		} catch (InvocationTargetException e) {
+			e.getCause().printStackTrace();
+		} catch (Throwable e) {
+			e.printStackTrace();
+		} finally {
+			thread_task.remove();
+			synchronized (this) {
+				runner = null;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Park the current thread until a message arrives, or an exit signal is
+	 * received.
+	 * 
+	 * @param timeoutMillis
+	 *            zero means wait forever; else the timeout of the current
+	 *            receive, which counts from its first wait
+	 * @return true if there is a message
+	 */
+	private boolean thread_wait(long timeoutMillis) {
+		long deadline = timeoutMillis == 0 ? 0 : mbox().deadline(timeoutMillis);
+		synchronized (this) {
+			while (!mbox().await_begin()) {
+				check_exit();
+				long wait = 0;
+				if (deadline != 0) {
+					wait = deadline - System.currentTimeMillis();
+					if (wait <= 0)
+						return false;
+				}
+				try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					// check_exit above will tell //
+				}
+			}
+		}
+		return true;
+	}
+
+	private synchronized void wake_thread() {
+		notifyAll();
+	}
+
+	//
+	// Looking at the stack of a task, for erlang:check_process_code/2
+	//
+
+	private static final Field fiber_state_stack;
+	private static final Field fiber_self_stack;
+
+	static {
+		Field state_stack = null;
+		Field self_stack = null;
+		try {
+			state_stack = kilim.Fiber.class.getDeclaredField("stateStack");
+			self_stack = kilim.Fiber.class.getDeclaredField("selfStack");
+			state_stack.setAccessible(true);
+			self_stack.setAccessible(true);
+		} catch (Exception e) {
+			state_stack = null;
+			self_stack = null;
+		}
+		fiber_state_stack = state_stack;
+		fiber_self_stack = self_stack;
+	}
+
+	/**
+	 * Does the stack of this task have frames of classes in
+	 * <code>loader</code>? This is a snapshot, the task may be running.
+	 * <p>
+	 * With kilim, the stack of a paused task is in its fiber, which keeps
+	 * the state, and <code>this</code>, of every frame. Code in a module is only entered
+	 * through one of its funs, so the receivers tell which modules are on
+	 * the stack. With the thread backend there is only the stack trace,
+	 * which does not tell two versions of a class apart; so any frame of
+	 * <code>class_name</code> (or its inner classes) counts.
+	 * 
+	 * @param loader
+	 * @param class_name
+	 */
+	protected boolean has_frames_in(ClassLoader loader, String class_name) {
+		if (ERT.USE_THREADS) {
+			Thread t = runner;
+			if (t == null)
+				return false;
+			String inner = class_name + "$";
+			for (StackTraceElement e : t.getStackTrace()) {
+				String cn = e.getClassName();
+				if (cn.equals(class_name) || cn.startsWith(inner))
+					return true;
+			}
+			return false;
+		}
+
+		kilim.Fiber f = fiber;
+		if (f == null || fiber_self_stack == null)
+			return false;
+		try {
+			// a frame's state is cleared once it has been resumed and
+			// returns; the receivers are left behind
+			Object[] states = (Object[]) fiber_state_stack.get(f);
+			Object[] frames = (Object[]) fiber_self_stack.get(f);
+			int depth = Math.min(states.length, frames.length);
+			for (int i = 0; i < depth && states[i] != null; i++) {
+				Object self = frames[i];
+				if (self != null && self.getClass().getClassLoader() == loader)
+					return true;
+			}
+		} catch (IllegalAccessException e) {
+			throw new Error(e);
+		}
+		return false;
+	}
+
+	@Override
+	public void kill(Error ex) {
+		if (ERT.USE_THREADS) {
+			// pstate is EXIT_SIG, so the waiting thread will check_exit
+			wake_thread();
+		} else {
+			super.kill(ex);
+		}
+	}
+
+	/** set when {@link #run_task()} has returned */
+	private boolean finished;
+
+	/**
+	 * The task's code; the task is done when it returns.
+	 * 
+	 * @throws Pausable
+	 */
+	protected abstract void run_task() throws Pausable;
+
+	/**
+	 * Run the task, and record that it is done. kilim only tells the
+	 * mailboxes given to <code>informOnExit</code> before the task ended,
+	 * and never sets <code>done</code>, so {@link #joinb()} waits for this
+	 * instead, with either backend.
+	 */
+	@Override
+	public final void execute() throws Pausable {
+		try {
+			run_task();
+		} finally {
+			synchronized (this) {
+				finished = true;
+				done = true;
+				notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public ExitMsg joinb() {
+		synchronized (this) {
+			while (!finished) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new ErlangError(e);
+				}
+			}
+		}
+		return new ExitMsg(this, exit_reason);
 	}
 
 	/**
@@ -117,36 +762,37 @@ public abstract class ETask<H extends EHandle> extends kilim.Task {
 	 */
 	public final void send_exit(EHandle from, EObject reason) throws Pausable {
 
-		System.err.println("exit " + from.task() + " -> " + this);
-
 		// ignore exit signals from myself
 		if (from == self()) {
 			return;
 		}
 
-		synchronized (this) {
-			switch (pstate) {
+		// the sender is done, so it is no longer linked
+		remove_link(from);
 
-			// process is already "done", just ignore exit signal
-			case DONE:
-				return;
+		// pstate is volatile, and the receiving task only moves it forward,
+		// so there is no need to lock the task to look at it
+		switch (pstate) {
 
-				// we have already received one exit signal, ignore
-				// subsequent ones...
-			case EXIT_SIG:
-				// TODO: warn that this process is not yet dead. why?
-				return;
+		// process is already "done", just ignore exit signal
+		case DONE:
+			return;
 
-				// the process is not running yet, this should not happen
-			case INIT:
-				throw new Error(
-						"cannot receive exit signal before we're running");
+			// we have already received one exit signal, ignore
+			// subsequent ones...
+		case EXIT_SIG:
+			// TODO: warn that this process is not yet dead. why?
+			return;
 
-			default:
-				throw new Error("unknown state?");
+			// the process is not running yet, this should not happen
+		case INIT:
+			throw new Error(
+					"cannot receive exit signal before we're running");
 
-			case RUNNING:
-			}
+		default:
+			throw new Error("unknown state?");
+
+		case RUNNING:
 		}
 
 		process_incoming_exit(from, reason);
@@ -167,10 +813,44 @@ public abstract class ETask<H extends EHandle> extends kilim.Task {
 	}
 
 	/**
-	 * @return
+	 * Move this task to another run queue; only called by the scheduler
+	 * while the task is not executing.
+	 * 
+	 * @param queue
 	 */
-	public Mailbox<EObject> mbox() {
-		return mbox;
+	void set_run_queue(EScheduler queue) {
+		this.scheduler = queue;
+	}
+
+	/**
+	 * @return the timing wheel for this task's timers
+	 */
+	public ETimerWheel timer_wheel() {
+		kilim.Scheduler s = scheduler;
+		if (s instanceof EScheduler) {
+			return ((EScheduler) s).timers();
+		}
+		return ETimerWheel.shared();
+	}
+
+	/**
+	 * @return the run queue this task is currently bound to
+	 */
+	kilim.Scheduler run_queue() {
+		return scheduler;
+	}
+
+	/**
+	 * @return the mailbox, which is made on first use; a process that is
+	 *         never sent to and never receives does without one
+	 */
+	public EMBox mbox() {
+		EMBox box = mbox;
+		if (box == null) {
+			mbox_updater.compareAndSet(this, null, new EMBox(this));
+			box = mbox;
+		}
+		return box;
 	}
 
 }
@@ -0,0 +1,275 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A hierarchical timing wheel with millisecond ticks. Each scheduler has
+ * one; it holds the receive timeouts of its processes, and the timers
+ * started with <code>erlang:send_after</code> and
+ * <code>erlang:start_timer</code>.
+ *
+ * There are four levels of 64 slots each. Level 0 has a slot per tick, level
+ * 1 a slot per 64 ticks, and so on. When level 0 wraps around, the next slot
+ * of level 1 is cascaded down into level 0, and so on up. Timers further
+ * away than the top level covers are parked in its last slot, and
+ * re-inserted when it is cascaded. Insert and cancel are O(1).
+ *
+ * All wheels are advanced by one daemon thread.
+ */
+public final class ETimerWheel {
+
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+
+	/** a timer in a wheel */
+	public static abstract class Timer {
+		Timer prev, next;
+		volatile ETimerWheel wheel;
+		long when;
+		int level, index;
+
+		/**
+		 * Called on the timer thread when the timer expires. Must not
+		 * block.
+		 */
+		protected abstract void on_timeout();
+
+		/**
+		 * @return true if the timer was pending, and is now cancelled
+		 */
+		public boolean cancel() {
+			ETimerWheel w = wheel;
+			if (w == null)
+				return false;
+			synchronized (w) {
+				if (wheel != w)
+					return false;
+				w.unlink(this);
+				return true;
+			}
+		}
+
+		/**
+		 * @return true if the timer is scheduled and has not expired
+		 */
+		public boolean is_pending() {
+			return wheel != null;
+		}
+
+		/**
+		 * @return milliseconds left, or -1 if the timer is not pending
+		 */
+		public long time_left() {
+			ETimerWheel w = wheel;
+			if (w == null)
+				return -1;
+			return Math.max(0, when - now());
+		}
+	}
+
+	private static final long epoch = System.nanoTime();
+
+	/** @return the current tick */
+	static long now() {
+		return (System.nanoTime() - epoch) / 1000000;
+	}
+
+	private final Timer[][] slots = new Timer[LEVELS][SLOTS];
+	private long current = now();
+	private int count;
+
+	private static final CopyOnWriteArrayList<ETimerWheel> wheels = new CopyOnWriteArrayList<ETimerWheel>();
+	private static final ETimerWheel shared = new ETimerWheel();
+
+	public ETimerWheel() {
+		wheels.add(this);
+		Ticker.ensure_started();
+	}
+
+	/**
+	 * @return the wheel for tasks that have no scheduler of their own
+	 */
+	public static ETimerWheel shared() {
+		return shared;
+	}
+
+	/**
+	 * Schedule <code>timer</code> to expire after <code>millis</code>; if it
+	 * is already pending it is moved.
+	 */
+	public void schedule(Timer timer, long millis) {
+		timer.cancel();
+		synchronized (this) {
+			timer.when = now() + Math.max(0, millis);
+			timer.wheel = this;
+			insert(timer, false);
+		}
+	}
+
+	/**
+	 * @return number of pending timers
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * @param cascading
+	 *            true while advancing, before the slot for the current tick
+	 *            has been expired
+	 */
+	private void insert(Timer t, boolean cascading) {
+		long delta = t.when - current;
+		int level;
+		long slot;
+
+		if (delta <= 0) {
+			// already due
+			level = 0;
+			slot = cascading ? current : current + 1;
+		} else {
+			level = 0;
+			while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) {
+				level += 1;
+			}
+			slot = t.when >> (BITS * level);
+			if (level == LEVELS - 1
+					&& delta >= (1L << (BITS * LEVELS))) {
+				// beyond the top level; park, and re-insert when cascaded
+				slot = (current >> (BITS * level)) - 1;
+			}
+		}
+
+		int idx = (int) (slot & MASK);
+		Timer head = slots[level][idx];
+		t.prev = null;
+		t.next = head;
+		if (head != null)
+			head.prev = t;
+		slots[level][idx] = t;
+		t.level = level;
+		t.index = idx;
+		count += 1;
+	}
+
+	private void unlink(Timer t) {
+		if (t.prev != null) {
+			t.prev.next = t.next;
+		} else {
+			slots[t.level][t.index] = t.next;
+		}
+		if (t.next != null)
+			t.next.prev = t.prev;
+		t.prev = t.next = null;
+		t.wheel = null;
+		count -= 1;
+	}
+
+	/**
+	 * Advance to <code>target</code>, collecting expired timers.
+	 *
+	 * @return a list of expired timers, linked through <code>next</code>
+	 */
+	private synchronized Timer advance(long target) {
+		Timer expired = null;
+
+		while (current < target) {
+			current += 1;
+
+			// cascade higher levels as the lower ones wrap around
+			for (int level = 1; level < LEVELS; level++) {
+				if ((current & ((1L << (BITS * level)) - 1)) != 0)
+					break;
+				int idx = (int) ((current >> (BITS * level)) & MASK);
+				Timer t = slots[level][idx];
+				slots[level][idx] = null;
+				while (t != null) {
+					Timer next = t.next;
+					count -= 1;
+					insert(t, true);
+					t = next;
+				}
+			}
+
+			int idx = (int) (current & MASK);
+			Timer t = slots[0][idx];
+			slots[0][idx] = null;
+			while (t != null) {
+				Timer next = t.next;
+				t.prev = null;
+				t.wheel = null;
+				t.next = expired;
+				expired = t;
+				count -= 1;
+				t = next;
+			}
+		}
+
+		return expired;
+	}
+
+	private void tick(long target) {
+		Timer t = advance(target);
+		while (t != null) {
+			Timer next = t.next;
+			t.next = null;
+			try {
+				t.on_timeout();
+			} catch (Throwable e) {
+				e.printStackTrace();
+			}
+			t = next;
+		}
+	}
+
+	private static final class Ticker extends Thread {
+		private static Ticker instance;
+
+		static synchronized void ensure_started() {
+			if (instance == null) {
+				instance = new Ticker();
+				instance.start();
+			}
+		}
+
+		Ticker() {
+			super("erjang-timer");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				long target = now();
+				for (ETimerWheel w : wheels) {
+					w.tick(target);
+				}
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					// ignore //
+				}
+			}
+		}
+	}
+}
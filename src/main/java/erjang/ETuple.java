@@ -21,8 +21,8 @@ package erjang;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.objectweb.asm.ClassAdapter;
 import org.objectweb.asm.ClassWriter;
@@ -86,15 +86,24 @@ public abstract class ETuple extends EObject implements Cloneable /*, Indexed*/
 		return res;
 	}
 
-	abstract void set(int index, EObject term);
+	public abstract void set(int index, EObject term);
 
 	public abstract ETuple blank();
 
+	/** a new tuple of the same arity, with the same elements */
+	public ETuple copy() {
+		try {
+			return (ETuple) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new InternalError();
+		}
+	}
+
 	private static final Type ETUPLE_TYPE = Type.getType(ETuple.class);
 	private static final String ETUPLE_NAME = ETUPLE_TYPE.getInternalName();
 	private static final Type ETERM_TYPE = Type.getType(EObject.class);
 
-	private static Map<Integer, ETuple> protos = new HashMap<Integer, ETuple>();
+	private static Map<Integer, ETuple> protos = new ConcurrentHashMap<Integer, ETuple>();
 
 	@SuppressWarnings("unchecked")
 	private static ETuple make_big(int size) {
@@ -123,8 +132,9 @@ public abstract class ETuple extends EObject implements Cloneable /*, Indexed*/
 	 * static XClassLoader loader2 = new XClassLoader();
 	 */
 
+	// synchronized, as the compiler threads ask for these too
 	@SuppressWarnings("unchecked")
-	static public Class get_tuple_class(int num_cells) {
+	static synchronized public Class get_tuple_class(int num_cells) {
 
 		try {
 			return Class.forName(ETuple.class.getName() + num_cells);
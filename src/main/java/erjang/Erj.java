@@ -31,7 +31,15 @@ public class Erj {
 	public static void main(String[] args) 
 		throws Exception {
 
-		String m = args[0];
+		int argi = 0;
+		
+		// +S N sets the number of schedulers, as in erl
+		if (args.length > 1 && "+S".equals(args[0])) {
+			EScheduler.init(Integer.parseInt(args[1]));
+			argi = 2;
+		}
+		
+		String m = args[argi];
 		String f;
 		int idx;
 		if ((idx = m.indexOf(':')) == -1) {
@@ -53,7 +61,7 @@ public class Erj {
 		ESeq env = ERT.NIL;
 		ESeq argv = ERT.NIL;
 		
-		for (int i = args.length-1; i > 0; i--) {
+		for (int i = args.length-1; i > argi; i--) {
 			argv = argv.cons(EBinary.fromString(args[i]));
 		}
 		
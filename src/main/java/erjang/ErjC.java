@@ -21,35 +21,48 @@ package erjang;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.ericsson.otp.erlang.OtpAuthException;
 
 import erjang.beam.Compiler;
 import erjang.beam.DirClassRepo;
-import erjang.beam.JarClassRepo;
 
 /**
- * Beam -> Java compiler
+ * Beam -> Java compiler. Each argument is a .beam file, or a directory
+ * of them; every foo.beam is compiled to foo.jar next to it, several
+ * modules at a time.
  */
 public class ErjC {
 
 	public static void main(String[] args) throws OtpAuthException, IOException {
 		
+		List<File> in = new ArrayList<File>();
+		List<File> out = new ArrayList<File>();
+
 		for (int i = 0; i < args.length; i++) {
 			
-			if (args[i].endsWith(".beam")) {
-				File in = new File(args[i]);
-				int idx = args[i].lastIndexOf('.');
-				File out = new File(args[i].substring(0, idx) + ".jar");
-				JarClassRepo jcp = new JarClassRepo(out);
-				
-				System.out.println("compining "+in+" -> "+out+" ...");
-				new Compiler(jcp).compile(in);
-			
-				jcp.close();
+			File arg = new File(args[i]);
+			if (arg.isDirectory()) {
+				for (File f : arg.listFiles()) {
+					add(f, in, out);
+				}
+			} else {
+				add(arg, in, out);
 			}
 		}
-		
+
+		Compiler.compile_all(in, out);
+	}
+
+	private static void add(File beam, List<File> in, List<File> out) {
+		String name = beam.getPath();
+		if (name.endsWith(".beam")) {
+			int idx = name.lastIndexOf('.');
+			in.add(beam);
+			out.add(new File(name.substring(0, idx) + ".jar"));
+		}
 	}
 	
 	
@@ -36,6 +36,10 @@ public abstract class ErlangException extends RuntimeException {
 	static final EAtom am_exit = EAtom.intern("exit");
 	private EObject reason;
 
+	/** -Derjang.stacktraces=true: always capture a stack trace */
+	static final boolean ALWAYS_TRACE = Boolean
+			.getBoolean("erjang.stacktraces");
+
 	public abstract EAtom getExClass();
 	
 	public ErlangException(EObject reason) {
@@ -56,6 +60,26 @@ public abstract class ErlangException extends RuntimeException {
 		return reason;
 	}
 
+	/**
+	 * Walking the stack is most of the cost of an exception, and
+	 * <code>throw/1</code> is used for control flow, so the stack trace is
+	 * only captured if the process is in a try whose function may ask for
+	 * it with erlang:get_stacktrace/0. Otherwise the Erlang trace is empty.
+	 */
+	@Override
+	public Throwable fillInStackTrace() {
+		if (ALWAYS_TRACE) {
+			return super.fillInStackTrace();
+		}
+
+		ETask<?> task = ETask.current();
+		if (task instanceof EProc && ((EProc) task).trace_depth > 0) {
+			return super.fillInStackTrace();
+		}
+
+		return this;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -118,6 +142,9 @@ public abstract class ErlangException extends RuntimeException {
 	static Map<StackTraceElement, ETuple3> cache = Collections
 			.synchronizedMap(new WeakHashMap<StackTraceElement, ETuple3>());
 
+	/** cached for frames that are not part of the Erlang trace */
+	private static final ETuple3 NO_ELEM = new ETuple3();
+
 	ESeq getTrace() {
 		return decodeTrace(getStackTrace());
 	}
@@ -132,12 +159,12 @@ public abstract class ErlangException extends RuntimeException {
 
 			ETuple3 elem;
 
-			if ((elem = cache.get(st2)) != null) {
-				trace = trace.cons(elem);
-				continue;
+			if ((elem = cache.get(st2)) == null) {
+				elem = decodeTraceElem(st2);
+				cache.put(st2, elem == null ? NO_ELEM : elem);
 			}
 
-			if ((elem = decodeTraceElem(st2)) != null) {
+			if (elem != NO_ELEM) {
 				trace = trace.cons(elem);
 			}
 
@@ -193,6 +220,8 @@ public abstract class ErlangException extends RuntimeException {
 		}
 
 		Method m = find_method(clazz, mname);
+		if (m == null)
+			return null;
 		BIF bif = m.getAnnotation(BIF.class);
 		if (bif == null)
 			return null;
@@ -40,5 +40,14 @@ public class ErlangExitSignal extends ThreadDeath {
 		return exitReason;
 	}
 
+	/**
+	 * Every process killed by a signal throws one of these, and nobody
+	 * looks at where; so there is no stack trace.
+	 */
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+
 	
 }
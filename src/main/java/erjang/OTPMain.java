@@ -36,9 +36,7 @@ public class OTPMain {
 	@SuppressWarnings("unchecked")
 	public static void main(String[] args) throws ClassNotFoundException, InstantiationException, IllegalAccessException, IOException {
 		
-		for (int i = 0; i < MODULES.length; i++) {
-			ERT.load(EAtom.intern(MODULES[i]));
-		}
+		ERT.load_all(MODULES);
 
 		
 		args=new String[] {"-boot", "/foo/bar", "-root", "/xx/yy"};
@@ -21,8 +21,12 @@ package erjang.beam;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import kilim.Pausable;
 
 import org.objectweb.asm.Type;
 
@@ -46,8 +50,10 @@ import erjang.m.erlang.ErlBif;
 public class BIFUtil {
 
 	public static final Type EPROC_TYPE = Type.getType(EProc.class);
+	static final Type EOBJECT_TYPE = Type.getType(EObject.class);
 	static Map<String, BIFHandler> bifs = new HashMap<String, BIFHandler>();
 	static Map<String, BIFHandler> guard_bifs = new HashMap<String, BIFHandler>();
+	static Set<String> pausable_bifs = new HashSet<String>();
 
 	static {
 		registerBifs(ErlBif.class);
@@ -321,8 +327,65 @@ public class BIFUtil {
 				}
 
 				h.registerMethod(method);
+
+				for (Class<?> ex : method.getExceptionTypes()) {
+					if (ex == Pausable.class)
+						pausable_bifs.add(bifName);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if there is a normal (non-guard) bif named
+	 *         <code>name</code>, of any arity
+	 */
+	public static boolean isBif(String name) {
+		return bifs.containsKey(name);
+	}
+
+	/**
+	 * @return true if any bif named <code>name</code>, guard or not, may
+	 *         pause the calling process
+	 */
+	public static boolean isPausable(String name) {
+		return pausable_bifs.contains(name);
+	}
+
+	/**
+	 * @return true if a call to <code>erlang:name/arity</code> compiles to
+	 *         a direct call of a bif for any argument types, rather than
+	 *         going through the import; see CompilerVisitor.getDirectBif
+	 */
+	public static boolean isDirectCall(String name, int arity) {
+		BIFHandler bif = bifs.get(name);
+		if (bif == null)
+			return false;
+
+		boolean generic = false;
+		for (BuiltInFunction m : bif.found.values()) {
+			Type[] parms = m.getArgumentTypes();
+			int first = parms.length > 0 && EPROC_TYPE.equals(parms[0]) ? 1 : 0;
+			if (parms.length - first != arity)
+				continue;
+
+			switch (m.getReturnType().getSort()) {
+			case Type.OBJECT:
+			case Type.INT:
+			case Type.DOUBLE:
+			case Type.BOOLEAN:
+				break;
+			default:
+				return false;
+			}
+
+			boolean all_eobject = true;
+			for (int i = first; i < parms.length; i++) {
+				all_eobject &= EOBJECT_TYPE.equals(parms[i]);
 			}
+			generic |= all_eobject;
 		}
+		return generic;
 	}
 
 	/**
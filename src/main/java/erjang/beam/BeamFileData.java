@@ -52,7 +52,7 @@ public class BeamFileData {
 		code = data.elm(6).testSeq();
 	}
 
-	void accept(ModuleVisitor v) {
+	public void accept(ModuleVisitor v) {
 		v.visitModule(module);
 
 		visit_exports(v);
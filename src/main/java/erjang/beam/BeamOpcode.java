@@ -142,6 +142,8 @@ public enum BeamOpcode {
 	bs_utf16_size,
 	bs_put_utf16,
 	bs_put_utf32,
+	recv_mark,
+	recv_set,
 	
 	//
 	
@@ -37,6 +37,15 @@ public interface BlockVisitor2 extends BlockVisitor {
 	/** bif, gc_bif, arithfbif */
 	void visitInsn(BeamOpcode opcode, int failLabel, Arg[] in, Arg out, BuiltInFunction bif);
 
+	/**
+	 * gc_bif +, - or * on operands that may be small integers
+	 * 
+	 * @param op the operator name
+	 * @param bif the general bif, used when an operand is not small
+	 */
+	void visitArith(String op, int failLabel, Arg[] in, Arg out,
+			BuiltInFunction bif);
+
 	/**
 	 * 
 	 * @param test one of is_nil, is_nonempty_list
@@ -143,8 +152,9 @@ public interface BlockVisitor2 extends BlockVisitor {
 	 * @param opcode
 	 * @param decodeLabelref
 	 * @param decodeOutArg
+	 * @param ref a reference that all accepted messages contain, or null
 	 */
-	void visitReceive(BeamOpcode opcode, int block_label, Arg out);
+	void visitReceive(BeamOpcode opcode, int block_label, Arg out, Arg ref);
 
 	/**
 	 * @param opcode
@@ -162,23 +172,46 @@ public interface BlockVisitor2 extends BlockVisitor {
 	void visitBitStringTest(BeamOpcode test, int failLabel, Arg[] args);
 
 	/**
+	 * @param opcode
+	 *            bs_init2 (size in bytes) or bs_init_bits (size in bits)
 	 * @param size
 	 * @param flags
 	 * @param out
 	 */
-	void visitInitBitString(Arg size, Arg flags, Arg out);
+	void visitInitBitString(BeamOpcode opcode, Arg size, Arg flags, Arg out);
 
 	/**
 	 * @param opcode
-	 * @param elm
+	 *            bs_append or bs_private_append
+	 * @param bin
+	 *            the binary to append to
+	 * @param size
+	 *            the number of bits to be appended
+	 * @param unit
+	 * @param flags
+	 * @param out
 	 */
-	void visitBitStringPut(BeamOpcode opcode, Arg value, Arg size, Arg flags);
+	void visitBitStringAppend(BeamOpcode opcode, Arg bin, Arg size, Arg unit,
+			Arg flags, Arg out);
 
 	/**
 	 * @param opcode
-	 * @param decodeArg
+	 * @param value
+	 * @param size
+	 *            null for bs_put_string
+	 * @param unit
+	 * @param flags
+	 */
+	void visitBitStringPut(BeamOpcode opcode, Arg value, Arg size, Arg unit,
+			Arg flags);
+
+	/**
+	 * @param opcode
+	 * @param arg
+	 * @param slot
+	 *            the save slot of bs_save2/bs_restore2, else null
 	 */
-	void visitBS(BeamOpcode opcode, Arg decodeArg);
+	void visitBS(BeamOpcode opcode, Arg arg, Arg slot);
 
 	/**
 	 * @param in
@@ -22,7 +22,9 @@ package erjang.beam;
 import java.io.IOException;
 
 /**
- * 
+ * Where the compiler puts the classes it generates. A module's classes
+ * are stored from the thread that compiles it, but modules are compiled
+ * in parallel, so implementations must allow concurrent use.
  */
 public interface ClassRepo {
 
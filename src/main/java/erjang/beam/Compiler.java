@@ -23,36 +23,72 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedInputStream;
 
+import kilim.Pausable;
 import kilim.analysis.ClassInfo;
 import kilim.analysis.ClassWeaver;
 import kilim.analysis.Detector;
 import kilim.mirrors.Mirrors;
 
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.EmptyVisitor;
 import org.objectweb.asm.util.CheckClassAdapter;
 
 import com.ericsson.otp.erlang.OtpAuthException;
 
+import erjang.EAtom;
 import erjang.EBinary;
+import erjang.EModule;
+import erjang.ERT;
+import erjang.beam.analysis.BeamInliner;
 import erjang.beam.analysis.BeamTypeAnalysis;
 
 public class Compiler implements Opcodes {
 
-	static ErlangBeamDisLoader loader;
+	/**
+	 * Reads .beam files in-process; run with
+	 * <code>-Derjang.beam.loader=erlang</code> to have an external
+	 * <code>beam_loader</code> node disassemble them instead.
+	 */
+	static BeamLoader loader;
 	private ClassRepo classRepo;
 
 	static {
-		try {
-			loader = new ErlangBeamDisLoader();
-		} catch (OtpAuthException e) {
-			throw new Error(e);
-		} catch (IOException e) {
-			throw new Error(e);
+		if ("erlang".equals(System.getProperty("erjang.beam.loader"))) {
+			try {
+				loader = new ErlangBeamDisLoader();
+			} catch (OtpAuthException e) {
+				throw new Error(e);
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+		} else {
+			loader = new JavaBeamLoader();
 		}
 	}
 
@@ -79,21 +115,23 @@ public class Compiler implements Opcodes {
 		// the type analysis, phase 2
 		BeamTypeAnalysis analysis = new BeamTypeAnalysis(cv);
 
+		// inlining of small local functions, phase 1b
+		BeamInliner inliner = new BeamInliner(analysis);
+
 		// the beam file reader, phase 1
 		BeamFileData reader = loader.load(data.getByteArray());
 
 		try {
 			// go!
-			reader.accept(analysis);
+			reader.accept(inliner);
 		} catch (Error e) {
 			e.printStackTrace();
 		}
 
 		byte[] byteArray = cw.toByteArray();
 
-		ClassWeaver cwe = new ClassWeaver(byteArray, new ErjangDetector(
-				cv.getInternalClassName()));
-		for (ClassInfo ci : cwe.getClassInfos()) {
+		for (ClassInfo ci : weave(byteArray, cv.getInternalClassName(),
+				cv.getInternalClassName())) {
 			String name = ci.className;
 			byte[] bytes = ci.bytes;
 
@@ -118,17 +156,19 @@ public class Compiler implements Opcodes {
 		// the type analysis, phase 2
 		BeamTypeAnalysis analysis = new BeamTypeAnalysis(cv);
 
+		// inlining of small local functions, phase 1b
+		BeamInliner inliner = new BeamInliner(analysis);
+
 		// the beam file reader, phase 1
 		BeamFileData reader = loader.load(file);
 
 		// go!
-		reader.accept(analysis);
+		reader.accept(inliner);
 
 		// classRepo.store(cv.getInternalClassName(), cw.toByteArray());
 
-		ClassWeaver cwe = new ClassWeaver(cw.toByteArray(), new ErjangDetector(
-				cv.getInternalClassName()));
-		for (ClassInfo ci : cwe.getClassInfos()) {
+		for (ClassInfo ci : weave(cw.toByteArray(), cv.getInternalClassName(),
+				cv.getInternalClassName())) {
 			String name = ci.className;
 			byte[] bytes = ci.bytes;
 
@@ -139,17 +179,118 @@ public class Compiler implements Opcodes {
 
 	}
 
+	/**
+	 * Run the kilim weaver on a generated class. When processes run on
+	 * threads ({@link ERT#USE_THREADS}) the class is returned as is.
+	 * 
+	 * @param data
+	 * @param className
+	 *            internal name of the class in data
+	 * @param moduleClassName
+	 *            internal name of the module class, whose methods are
+	 *            pausable unless they are declared without
+	 *            <code>throws Pausable</code>
+	 * @return the resulting classes, including kilim state classes
+	 */
+	public static List<ClassInfo> weave(byte[] data, String className,
+			String moduleClassName) {
+		Set<String> notPausable = className.equals(moduleClassName) ? notPausable(data)
+				: Collections.<String> emptySet();
+		return weave(data, className, moduleClassName, notPausable);
+	}
+
+	/**
+	 * @param notPausable
+	 *            names of the methods of the module class that cannot
+	 *            pause
+	 */
+	public static List<ClassInfo> weave(byte[] data, String className,
+			String moduleClassName, Set<String> notPausable) {
+		if (ERT.USE_THREADS) {
+			return Collections.singletonList(new ClassInfo(className, data));
+		}
+
+		// kilim's weaver keeps caches in static fields, so modules that
+		// are compiled in parallel take turns here
+		synchronized (weave_lock) {
+			// kilim makes each state class only once, but the classes of
+			// a module are loaded from its own jar; so forget them, and
+			// every class comes with the state classes it uses
+			kilim_state_classes.clear();
+
+			ClassWeaver cwe = new ClassWeaver(data, new ErjangDetector(
+					moduleClassName, notPausable));
+			List<ClassInfo> res = cwe.getClassInfos();
+
+			// a class without pausable methods is left out
+			for (ClassInfo ci : res) {
+				if (ci.className.replace('.', '/').equals(className))
+					return res;
+			}
+			res = new ArrayList<ClassInfo>(res);
+			res.add(new ClassInfo(className, data));
+			return res;
+		}
+	}
+
+	/** the methods in class data that are not declared to throw Pausable */
+	static Set<String> notPausable(byte[] data) {
+		final Set<String> res = new HashSet<String>();
+		final String pausable = Type.getInternalName(Pausable.class);
+
+		new ClassReader(data).accept(new EmptyVisitor() {
+			@Override
+			public MethodVisitor visitMethod(int access, String name,
+					String desc, String signature, String[] exceptions) {
+				if (exceptions == null
+						|| !Arrays.asList(exceptions).contains(pausable)) {
+					res.add(name);
+				}
+				return null;
+			}
+		}, true);
+
+		return res;
+	}
+
+	private static final Object weave_lock = new Object();
+
+	/** the names of the state classes that kilim has made so far */
+	private static final Set<String> kilim_state_classes;
+
+	static {
+		try {
+			Field f = ClassWeaver.class.getDeclaredField("stateClasses");
+			f.setAccessible(true);
+			@SuppressWarnings("unchecked")
+			Set<String> names = (Set<String>) f.get(null);
+			kilim_state_classes = names;
+		} catch (Exception e) {
+			throw new Error("cannot reach kilim's state classes", e);
+		}
+	}
+
 	static public class ErjangDetector extends Detector {
 
 		private final String className;
+		private final Set<String> notPausable;
 
 		/**
 		 * @param className
 		 * @param mirrors
 		 */
 		public ErjangDetector(String className) {
+			this(className, Collections.<String> emptySet());
+		}
+
+		/**
+		 * @param notPausable
+		 *            methods of className that cannot pause
+		 */
+		public ErjangDetector(String className, Set<String> notPausable) {
 			super(Mirrors.getRuntimeMirrors());
 			this.className = className;
+			this.notPausable = notPausable;
 		}
 
 		@Override
@@ -177,6 +318,8 @@ public class Compiler implements Opcodes {
 					return Detector.METHOD_NOT_PAUSABLE;
 				if (methodName.equals("module_name"))
 					return Detector.METHOD_NOT_PAUSABLE;
+				if (notPausable.contains(methodName))
+					return Detector.METHOD_NOT_PAUSABLE;
 				return Detector.PAUSABLE_METHOD_FOUND;
 			}
 
@@ -193,32 +336,267 @@ public class Compiler implements Opcodes {
 
 	}
 
+	/**
+	 * Compile the given .beam files into target/compiled; or, without
+	 * arguments, every module on the load path into the .erj cache. With
+	 * <code>-check</code>, load every module on the load path from the
+	 * cache; see {@link #check_load_path()}.
+	 */
 	public static void main(String[] args) throws Exception {
 
+		if (args.length == 0) {
+			File[] done = compile_load_path();
+			System.out.println("compiled " + done.length + " modules");
+			return;
+		}
+
+		if (args[0].equals("-check")) {
+			int classes = check_load_path();
+			System.out.println("loaded " + classes + " classes");
+			return;
+		}
+
 		File out_dir = new File("target/compiled");
 		out_dir.mkdirs();
+		List<File> in = new ArrayList<File>();
+		List<File> out = new ArrayList<File>();
 		for (int i = 0; i < args.length; i++) {
 
 			if (args[i].endsWith(".beam")) {
-				File in = new File(args[i]);
-				if (!in.exists() || !in.isFile() || !in.canRead())
-					throw new IOException("bad permissions for " + in);
+				File beam = new File(args[i]);
+				if (!beam.exists() || !beam.isFile() || !beam.canRead())
+					throw new IOException("bad permissions for " + beam);
 
 				int idx = args[i].lastIndexOf('.');
 				int idx0 = args[i].lastIndexOf(File.separator);
 
 				String shortName = args[i].substring(idx0 + 1, idx);
 
-				File out = new File(out_dir, shortName + "-"
-						+ Long.toHexString(crcFile(in)) + ".jar");
-				JarClassRepo jcp = new JarClassRepo(out);
+				in.add(beam);
+				out.add(new File(out_dir, shortName + "-"
+						+ Long.toHexString(crcFile(beam)) + ".jar"));
+			}
+		}
+
+		compile_all(in, out);
+	}
+
+	/** number of modules compiled at the same time */
+	static final int COMPILE_THREADS = Integer.getInteger(
+			"erjang.compile.threads", Runtime.getRuntime()
+					.availableProcessors());
+
+	private static ExecutorService compile_pool;
+
+	/**
+	 * A fixed pool rather than a ForkJoinPool: each job compiles a whole
+	 * module and forks nothing, and jobs block on each other in
+	 * <code>weave_lock</code>, which fork-join threads should not do.
+	 */
+	static synchronized ExecutorService compile_pool() {
+		if (compile_pool == null) {
+			final AtomicInteger count = new AtomicInteger();
+			compile_pool = Executors.newFixedThreadPool(COMPILE_THREADS,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "erjc-"
+									+ count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return compile_pool;
+	}
+
+	/**
+	 * Run the jobs on the compiler threads, and wait for all of them.
+	 * 
+	 * @return the results, in the order of the jobs
+	 * @throws IOException
+	 *             the first failure, once all jobs are done
+	 */
+	static <T> List<T> run_all(List<Callable<T>> jobs) throws IOException {
+		List<Future<T>> futures;
+		try {
+			futures = compile_pool().invokeAll(jobs);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+
+		List<T> res = new ArrayList<T>(futures.size());
+		for (Future<T> f : futures) {
+			try {
+				res.add(f.get());
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				if (cause instanceof Error)
+					throw (Error) cause;
+				throw new Error(cause);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Compile each of the .beam files in <code>in</code> into the jar file
+	 * at the same index in <code>out</code>, several at a time.
+	 */
+	public static void compile_all(List<File> in, List<File> out)
+			throws IOException {
+		List<Callable<File>> jobs = new ArrayList<Callable<File>>();
+		for (int i = 0; i < in.size(); i++) {
+			final File beam = in.get(i);
+			final File jar = out.get(i);
+			jobs.add(new Callable<File>() {
+				@Override
+				public File call() throws Exception {
+					System.out.println("compiling " + beam + " -> " + jar
+							+ " ...");
+					JarClassRepo repo = new JarClassRepo(jar);
+					try {
+						new Compiler(repo).compile(beam);
+					} finally {
+						repo.close();
+					}
+					return jar;
+				}
+			});
+		}
+		run_all(jobs);
+	}
 
-				System.out.println("compining " + in + " -> " + out + " ...");
-				new Compiler(jcp).compile(in);
+	/**
+	 * Find the modules on the load path, and compile those that are not
+	 * in the .erj cache yet, several at a time.
+	 * 
+	 * @return the jar file of each module, in the same order
+	 */
+	public static File[] find_and_compile_all(String[] modules)
+			throws IOException {
+		List<Callable<File>> jobs = new ArrayList<Callable<File>>();
+		for (final String module : modules) {
+			jobs.add(new Callable<File>() {
+				@Override
+				public File call() throws IOException {
+					return find_and_compile(module);
+				}
+			});
+		}
+		List<File> res = run_all(jobs);
+		return res.toArray(new File[res.size()]);
+	}
+
+	/**
+	 * Compile every module on the load path into the .erj cache. Where a
+	 * module is in more than one directory, the first one is used, as in
+	 * {@link #find_and_compile(String)}.
+	 */
+	public static File[] compile_load_path() throws IOException {
+		String[] modules = load_path_modules();
+		return find_and_compile_all(modules);
+	}
+
+	/**
+	 * Load every module on the load path, with all the classes in its jar
+	 * and the kilim state classes they use. Run in a new JVM after the
+	 * cache was filled, this finds jars that depend on classes that only
+	 * another module's jar has.
+	 * 
+	 * @return the number of classes loaded
+	 */
+	static int check_load_path() throws IOException {
+		String[] modules = load_path_modules();
+		File[] jars = find_and_compile_all(modules);
+		int count = 0;
 
-				jcp.close();
+		for (int i = 0; i < modules.length; i++) {
+			EModule m = EModule.load_module(EAtom.intern(modules[i]), jars[i]
+					.toURI().toURL());
+			ClassLoader loader = m.getClass().getClassLoader();
+
+			JarFile jar = new JarFile(jars[i]);
+			try {
+				Set<String> names = new HashSet<String>();
+				Enumeration<JarEntry> ents = jar.entries();
+				while (ents.hasMoreElements()) {
+					JarEntry ent = ents.nextElement();
+					String name = ent.getName();
+					if (!name.endsWith(".class"))
+						continue;
+					names.add(name.substring(0, name.length() - 6));
+
+					InputStream in = jar.getInputStream(ent);
+					try {
+						names.addAll(state_classes_used(new ClassReader(in)));
+					} finally {
+						in.close();
+					}
+				}
+
+				for (String name : names) {
+					// a state class that another module has loaded
+					// already would load anyway; so look for the file
+					if (loader.getResource(name + ".class") == null)
+						throw new IOException("module " + modules[i]
+								+ ": no " + name + " in " + jars[i]);
+					try {
+						Class.forName(name.replace('/', '.'), false, loader);
+					} catch (ClassNotFoundException e) {
+						throw new IOException("module " + modules[i]
+								+ ": cannot load " + name + " from " + jars[i]);
+					}
+					count += 1;
+				}
+			} finally {
+				jar.close();
+			}
+		}
+
+		return count;
+	}
+
+	/** the kilim state classes that the class read by cr refers to */
+	static Set<String> state_classes_used(ClassReader cr) {
+		final Set<String> res = new HashSet<String>();
+
+		cr.accept(new EmptyVisitor() {
+			@Override
+			public void visitTypeInsn(int opcode, String desc) {
+				if (desc.startsWith("kilim/S_"))
+					res.add(desc);
+			}
+		}, true);
+
+		return res;
+	}
+
+	/**
+	 * @return the names of the modules on the load path; where a module is
+	 *         in more than one directory, it is listed once
+	 */
+	public static String[] load_path_modules() {
+		List<String> modules = new ArrayList<String>();
+		for (File dir : loadPath) {
+			String[] names = dir.list();
+			if (names == null)
+				continue;
+			for (String name : names) {
+				if (name.endsWith(".beam")) {
+					String module = name.substring(0, name.length() - 5);
+					if (!modules.contains(module))
+						modules.add(module);
+				}
 			}
 		}
+		return modules.toArray(new String[modules.size()]);
 	}
 
 	private static long crcFile(File file) throws IOException {
@@ -302,36 +680,42 @@ public class Compiler implements Opcodes {
 		}
 	}
 
-	static File compile(String name, EBinary beam_data) throws IOException {
+	/**
+	 * @return the jar compiled from <code>beam_data</code>, from the .erj
+	 *         cache if it is there
+	 */
+	public static File compile(String name, EBinary beam_data)
+			throws IOException {
+
+		ErjCache cache = ErjCache.get();
+		long key = cache.key(name, beam_data.getByteArray());
 
-		long crc = beam_data.crc();
+		File jarFile = cache.lookup(name, key);
+		if (jarFile != null)
+			return jarFile;
 
-		File jarFile = new File(erjdir(), name + "-" + Long.toHexString(crc)
-				+ ".jar");
+		File tmp = cache.temp_file(name);
+		JarClassRepo repo = new JarClassRepo(tmp);
 
-		if (!jarFile.exists()) {
-			JarClassRepo repo = new JarClassRepo(jarFile);
+		try {
+			compile(beam_data, repo);
 
-			try {
-				compile(beam_data, repo);
+			repo.close();
+			repo = null;
 
+			return cache.publish(name, key, tmp);
+		} finally {
+			if (repo != null) {
 				repo.close();
-				repo = null;
-			} finally {
-				if (repo != null) {
-					repo.close();
-					jarFile.delete();
-				}
 			}
+			tmp.delete();
 		}
-
-		return jarFile;
 	}
 
 	static File erjdir() throws IOException {
 		File dir = new File(".erj");
 		if (!dir.exists()) {
-			if (!dir.mkdirs())
+			if (!dir.mkdirs() && !dir.isDirectory())
 				throw new IOException("cannot create " + dir);
 
 		} else if (!dir.canWrite()) {
@@ -19,10 +19,12 @@
 package erjang.beam;
 
 import java.io.IOException;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -32,7 +34,6 @@ import java.util.TreeSet;
 
 import kilim.Pausable;
 import kilim.analysis.ClassInfo;
-import kilim.analysis.ClassWeaver;
 
 import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassVisitor;
@@ -45,6 +46,7 @@ import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.Method;
 
 import erjang.EAtom;
+import erjang.EAtomSwitch;
 import erjang.EBinMatchState;
 import erjang.EBinary;
 import erjang.EBitString;
@@ -123,6 +125,8 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 	static final Type EDOUBLE_TYPE = Type.getType(EDouble.class);
 	static final Type ENIL_TYPE = Type.getType(ENil.class);
 	static final Type EATOM_TYPE = Type.getType(EAtom.class);
+	static final Type EATOMSWITCH_TYPE = Type.getType(EAtomSwitch.class);
+	static final String EATOMSWITCH_NAME = EATOMSWITCH_TYPE.getInternalName();
 	static final Type ETUPLE_TYPE = Type.getType(ETuple.class);
 	static final Type EBINARY_TYPE = Type.getType(EBinary.class);
 	static final Type EBITSTRING_TYPE = Type.getType(EBitString.class);
@@ -168,6 +172,7 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 	static final EObject F_ATOM = EAtom.intern("f");
 	static final EObject FIELD_FLAGS_ATOM = EAtom.intern("field_flags");
 	static final EObject ERLANG_ATOM = EAtom.intern("erlang");
+	static final EObject SETELEMENT_ATOM = EAtom.intern("setelement");
 
 	static final Type MODULE_ANN_TYPE = Type.getType(Module.class);
 	static final Type ERLFUN_ANN_TYPE = Type.getType(ErlFun.class);
@@ -227,6 +232,12 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 
 	Map<EObject, String> constants = new HashMap<EObject, String>();
 
+	/** select_val sites on atoms; field name to the atoms, in case order */
+	Map<String, EAtom[]> atom_switches = new LinkedHashMap<String, EAtom[]>();
+
+	/** below this many atoms, select_val compares them one by one */
+	static final int ATOM_SWITCH_MIN = 4;
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -300,6 +311,25 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 							.getDescriptor());
 		}
 
+		for (Map.Entry<String, EAtom[]> ent : atom_switches.entrySet()) {
+
+			EAtom[] atoms = ent.getValue();
+			mv.visitTypeInsn(NEW, EATOMSWITCH_NAME);
+			mv.visitInsn(DUP);
+			mv.visitLdcInsn(new Integer(atoms.length));
+			mv.visitTypeInsn(ANEWARRAY, EATOM_TYPE.getInternalName());
+			for (int i = 0; i < atoms.length; i++) {
+				mv.visitInsn(DUP);
+				mv.visitLdcInsn(new Integer(i));
+				atoms[i].emit_const(mv);
+				mv.visitInsn(AASTORE);
+			}
+			mv.visitMethodInsn(INVOKESPECIAL, EATOMSWITCH_NAME, "<init>", "(["
+					+ EATOM_DESC + ")V");
+			mv.visitFieldInsn(PUTSTATIC, self_type.getInternalName(), ent
+					.getKey(), EATOMSWITCH_TYPE.getDescriptor());
+		}
+
 		mv.visitInsn(RETURN);
 		mv.visitMaxs(200, 10);
 		mv.visitEnd();
@@ -348,6 +378,9 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 		return new ASMFunctionAdapter(name, arity, startLabel);
 	}
 
+	/** the methods of the module class that cannot pause */
+	Set<String> not_pausable = new HashSet<String>();
+
 	Map<String, Integer> lambdas_xx = new TreeMap<String, Integer>();
 	Map<String, String> funs = new HashMap<String, String>();
 	Map<String, String> funt = new HashMap<String, String>();
@@ -362,6 +395,8 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 
 		Map<Integer, Label> labels = new TreeMap<Integer, Label>();
 		private boolean isTailRecursive;
+		private boolean usesStacktrace;
+		private boolean isPausable;
 		private MethodVisitor mv;
 		private int[] xregs;
 		private int[] yregs;
@@ -372,10 +407,6 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 
 		private int bit_string_builder;
 
-		private int bit_string_matcher;
-
-		private int bit_string_save;
-
 		Label getLabel(int i) {
 			if (i <= 0)
 				throw new Error();
@@ -400,13 +431,21 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 
 		@Override
 		public void visitMaxs(int x_count, int y_count, int fp_count,
-				boolean isTailRecursive) {
+				boolean isTailRecursive, boolean usesStacktrace,
+				boolean isPausable) {
 
 			this.isTailRecursive = isTailRecursive;
+			this.usesStacktrace = usesStacktrace;
+			this.isPausable = isPausable;
 			String javaName = EUtil.getJavaName(fun_name, arity);
 			String signature = EUtil.getSignature(arity, true);
 			mv = cv.visitMethod(ACC_STATIC | ACC_PUBLIC, javaName, signature,
-					null, PAUSABLE_EX);
+					null, isPausable ? PAUSABLE_EX : null);
+
+			if (!isPausable) {
+				not_pausable.add(javaName);
+				not_pausable.add(javaName + "$call");
+			}
 
 			add_erlfun_annotation(mv);
 
@@ -418,9 +457,81 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 
 			mv.visitLabel(start);
 
+			emit_reduction_check();
+
 			mv.visitJumpInsn(GOTO, getLabel(startLabel));
 		}
 
+		/**
+		 * Count a reduction, and yield if the process has used up its time
+		 * slice. Equivalent to
+		 * 
+		 * <pre>
+		 * if (--proc.reds &lt;= 0) ERT.yield(proc);
+		 * </pre>
+		 * 
+		 * A function that cannot pause only counts the reduction; it
+		 * returns soon, and the next pausable function yields.
+		 */
+		private void emit_reduction_check() {
+			Label ok = new Label();
+
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitInsn(DUP);
+			mv.visitFieldInsn(GETFIELD, EPROC_NAME, "reds", "I");
+			mv.visitInsn(ICONST_1);
+			mv.visitInsn(ISUB);
+
+			if (!isPausable) {
+				mv.visitFieldInsn(PUTFIELD, EPROC_NAME, "reds", "I");
+				return;
+			}
+
+			mv.visitInsn(DUP_X1);
+			mv.visitFieldInsn(PUTFIELD, EPROC_NAME, "reds", "I");
+			mv.visitJumpInsn(IFGT, ok);
+
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitMethodInsn(INVOKESTATIC, ERT_NAME, "yield", "("
+					+ EPROC_TYPE.getDescriptor() + ")V");
+
+			mv.visitLabel(ok);
+		}
+
+		/**
+		 * Inside the try blocks of a function that calls
+		 * erlang:get_stacktrace/0, exceptions must capture their stack
+		 * trace; see ErlangException.fillInStackTrace
+		 */
+		private void emit_trace_depth(boolean enter) {
+			if (!usesStacktrace)
+				return;
+
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitInsn(DUP);
+			mv.visitFieldInsn(GETFIELD, EPROC_NAME, "trace_depth", "I");
+			mv.visitInsn(ICONST_1);
+			mv.visitInsn(enter ? IADD : ISUB);
+			mv.visitFieldInsn(PUTFIELD, EPROC_NAME, "trace_depth", "I");
+		}
+
+		/**
+		 * The handler of a try only catches ErlangException; anything else
+		 * leaving the try block passes through here, so trace_depth is
+		 * restored before it is rethrown. Emit where control cannot fall
+		 * through, and after any handler nested inside <code>h</code>.
+		 */
+		private void emit_trace_leak(EXHandler h) {
+			if (!usesStacktrace || !h.is_start_visited)
+				return;
+
+			Label leak = new Label();
+			mv.visitTryCatchBlock(h.begin, h.end, leak, null);
+			mv.visitLabel(leak);
+			emit_trace_depth(false);
+			mv.visitInsn(ATHROW);
+		}
+
 		/*
 		 * (non-Javadoc)
 		 * 
@@ -473,8 +584,8 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 			byte[] data = CompilerVisitor.make_invoker(self_type, mname, mname,
 					arity, true, freevars, EOBJECT_TYPE);
 
-			ClassWeaver w = new ClassWeaver(data, new Compiler.ErjangDetector(self_type.getInternalName()));
-			for (ClassInfo ci : w.getClassInfos()) {
+			for (ClassInfo ci : Compiler.weave(data, full_inner_name, self_type
+					.getInternalName(), not_pausable)) {
 				try {
 					//System.out.println("> storing "+ci.className);
 					classRepo.store(ci.className, ci.bytes);
@@ -493,7 +604,7 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 			String javaName = EUtil.getJavaName(fun_name, arity);
 			String signature = EUtil.getSignature(arity, true);
 			mv = cv.visitMethod(ACC_STATIC, javaName + "$call", signature,
-					null, PAUSABLE_EX);
+					null, isPausable ? PAUSABLE_EX : null);
 			mv.visitCode();
 
 			// if (isTailRecursive) {
@@ -504,6 +615,16 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 			}
 			mv.visitMethodInsn(INVOKESTATIC, self_type.getInternalName(),
 					javaName, EUtil.getSignature(arity, true));
+
+			if (!isPausable) {
+				// its tail calls are plain calls, so it never returns
+				// TAIL_MARKER
+				mv.visitInsn(ARETURN);
+				mv.visitMaxs(arity + 2, arity + 2);
+				mv.visitEnd();
+				return;
+			}
+
 			mv.visitVarInsn(ASTORE, arity + 1);
 
 			Label done = new Label();
@@ -624,8 +745,6 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 			}
 
 			this.bit_string_builder = local++;
-			this.bit_string_matcher = local++;
-			this.bit_string_save = local++;
 			this.scratch_reg = local;
 
 		}
@@ -664,8 +783,14 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 			 */
 			@Override
 			public void visitBSAdd(Arg[] in, Arg out) {
+				// in[0] + in[1] * unit
 				push(in[0], Type.INT_TYPE);
 				push(in[1], Type.INT_TYPE);
+				int unit = in[2].value.asInt();
+				if (unit != 1) {
+					push_int(unit);
+					mv.visitInsn(IMUL);
+				}
 				mv.visitInsn(IADD);
 				pop(out, Type.INT_TYPE);
 			}
@@ -677,24 +802,23 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 			 * erjang.beam.Arg)
 			 */
 			@Override
-			public void visitBS(BeamOpcode opcode, Arg arg) {
+			public void visitBS(BeamOpcode opcode, Arg arg, Arg slot) {
 				switch (opcode) {
 				case bs_save2:
-					push(arg, EBINMATCHSTATE_TYPE);
-					mv.visitVarInsn(ASTORE, bit_string_matcher);
-					return;
-
 				case bs_restore2:
-					mv.visitVarInsn(ALOAD, bit_string_matcher);
-					pop(arg, EBINMATCHSTATE_TYPE);
+					push(arg, EBINMATCHSTATE_TYPE);
+					push_int(slot.value == EBinMatchState.ATOM_START ? 0
+							: slot.value.asInt() + 1);
+					mv.visitMethodInsn(INVOKEVIRTUAL, EBINMATCHSTATE_TYPE
+							.getInternalName(), opcode.name(), "(I)V");
 					return;
 
 				case bs_context_to_binary:
-					mv.visitVarInsn(ALOAD, bit_string_matcher);
-					mv.visitMethodInsn(INVOKEVIRTUAL, EBINMATCHSTATE_TYPE
-							.getInternalName(), "binary", "()"
-							+ EBITSTRING_TYPE.getDescriptor());
-					pop(arg, EBITSTRING_TYPE);
+					push(arg, EOBJECT_TYPE);
+					mv.visitMethodInsn(INVOKESTATIC, EBINMATCHSTATE_TYPE
+							.getInternalName(), opcode.name(), "("
+							+ EOBJECT_DESC + ")" + EOBJECT_DESC);
+					pop(arg, EOBJECT_TYPE);
 					return;
 				}
 
@@ -708,29 +832,63 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 			 * erjang.beam.Arg, erjang.beam.Arg)
 			 */
 			@Override
-			public void visitInitBitString(Arg size, Arg flags, Arg out) {
+			public void visitInitBitString(BeamOpcode opcode, Arg size,
+					Arg flags, Arg out) {
+
+				push(size, Type.INT_TYPE);
+				push_int(field_flags(flags));
+				if (opcode == BeamOpcode.bs_init2) {
+					mv.visitMethodInsn(INVOKESTATIC, ERT_NAME, "bs_init", "(II)"
+							+ EBITSTRINGBUILDER_TYPE.getDescriptor());
+				} else {
+					mv.visitMethodInsn(INVOKESTATIC, EBITSTRINGBUILDER_TYPE
+							.getInternalName(), opcode.name(), "(II)"
+							+ EBITSTRINGBUILDER_TYPE.getDescriptor());
+				}
 
-				ETuple tflags = flags.value.testTuple();
-				if (tflags.elm(1) != ATOM_field_flags)
-					throw new Error("unhandled flags: " + flags.value);
-				int iflags = tflags.elm(2).asInt();
+				pop_builder(opcode == BeamOpcode.bs_init2 ? EBINARY_TYPE
+						: EBITSTRING_TYPE, out);
+			}
 
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see
+			 * erjang.beam.BlockVisitor2#visitBitStringAppend(erjang.beam.BeamOpcode
+			 * , erjang.beam.Arg, erjang.beam.Arg, erjang.beam.Arg,
+			 * erjang.beam.Arg, erjang.beam.Arg)
+			 */
+			@Override
+			public void visitBitStringAppend(BeamOpcode opcode, Arg bin,
+					Arg size, Arg unit, Arg flags, Arg out) {
+
+				push(bin, EOBJECT_TYPE);
 				push(size, Type.INT_TYPE);
-				mv.visitLdcInsn(new Integer(iflags));
-				mv.visitMethodInsn(INVOKESTATIC, ERT_NAME, "bs_init", "(II)"
-						+ EBITSTRINGBUILDER_TYPE.getDescriptor());
+				push_int(unit.value.asInt());
+				push_int(field_flags(flags));
+				mv.visitMethodInsn(INVOKESTATIC, EBITSTRINGBUILDER_TYPE
+						.getInternalName(), opcode.name(), "(" + EOBJECT_DESC
+						+ "III)" + EBITSTRINGBUILDER_TYPE.getDescriptor());
+
+				pop_builder(EBITSTRING_TYPE, out);
+			}
 
+			/**
+			 * Keep the builder on the stack for the bs_put_* that follow,
+			 * and store the binary it is building in <code>out</code>.
+			 */
+			private void pop_builder(Type type, Arg out) {
 				mv.visitInsn(DUP);
 				mv.visitVarInsn(ASTORE, bit_string_builder);
 
 				mv.visitMethodInsn(INVOKEVIRTUAL, EBITSTRINGBUILDER_TYPE
 						.getInternalName(), "bitstring", "()"
 						+ EBITSTRING_TYPE.getDescriptor());
+				if (type != EBITSTRING_TYPE) {
+					mv.visitTypeInsn(CHECKCAST, type.getInternalName());
+				}
 
-				pop(out, EBITSTRING_TYPE);
-
-				return;
-
+				pop(out, type);
 			}
 
 			/*
@@ -742,45 +900,44 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 			 */
 			@Override
 			public void visitBitStringPut(BeamOpcode opcode, Arg arg, Arg size,
-					Arg flags) {
+					Arg unit, Arg flags) {
+
+				String builder = EBITSTRINGBUILDER_TYPE.getInternalName();
+				mv.visitVarInsn(ALOAD, bit_string_builder);
 
 				switch (opcode) {
+					// {bs_put_string,4,{string,"abcd"}}
 				case bs_put_string:
-					mv.visitVarInsn(ALOAD, bit_string_builder);
 					push(arg, ESTRING_TYPE);
-					mv.visitMethodInsn(INVOKEVIRTUAL, EBITSTRINGBUILDER_TYPE
-							.getInternalName(), "put_string", "("
-							+ ESTRING_TYPE.getDescriptor() + ")V");
+					mv.visitMethodInsn(INVOKEVIRTUAL, builder, "put_string",
+							"(" + ESTRING_TYPE.getDescriptor() + ")V");
 					return;
 
+					// {bs_put_integer,{f,0},{integer,32},1,{field_flags,0},{x,0}}
 				case bs_put_integer:
-					mv.visitVarInsn(ALOAD, bit_string_builder);
-					push(arg, EINTEGER_TYPE);
-					push(size, Type.INT_TYPE);
-					push(flags, Type.INT_TYPE);
-					mv.visitMethodInsn(INVOKEVIRTUAL, EBITSTRINGBUILDER_TYPE
-							.getInternalName(), "put_integer", "("
-							+ EOBJECT_DESC + "II)V");
-					return;
-
 				case bs_put_float:
-					mv.visitVarInsn(ALOAD, bit_string_builder);
-					push(arg, Type.DOUBLE_TYPE);
-					push(size, Type.INT_TYPE);
-					push(flags, Type.INT_TYPE);
-					mv.visitMethodInsn(INVOKEVIRTUAL, EBITSTRINGBUILDER_TYPE
-							.getInternalName(), "put_integer", "(DII)V");
+					String put = opcode == BeamOpcode.bs_put_integer ? "put_integer"
+							: "put_float";
+					push(arg, EOBJECT_TYPE);
+					if (push_bits(size, unit)) {
+						push_int(field_flags(flags));
+						mv.visitMethodInsn(INVOKEVIRTUAL, builder, put, "("
+								+ EOBJECT_DESC + "II)V");
+					} else {
+						push_int(field_flags(flags));
+						mv.visitMethodInsn(INVOKEVIRTUAL, builder, put, "("
+								+ EOBJECT_DESC + EOBJECT_DESC + "II)V");
+					}
 					return;
 
+					// {bs_put_binary,{f,0},{atom,all},8,{field_flags,0},{x,1}}
 				case bs_put_binary:
-					mv.visitVarInsn(ALOAD, bit_string_builder);
-					push(arg, EBITSTRING_TYPE);
-					push(size, EATOM_TYPE);
-					push(flags, Type.INT_TYPE);
-					mv.visitMethodInsn(INVOKEVIRTUAL, EBITSTRINGBUILDER_TYPE
-							.getInternalName(), "put_bitstring", "("
-							+ EBITSTRING_TYPE.getDescriptor()
-							+ EATOM_TYPE.getDescriptor() + "I)V");
+					push(arg, EOBJECT_TYPE);
+					push(size, EOBJECT_TYPE);
+					push_int(unit.value.asInt());
+					push_int(field_flags(flags));
+					mv.visitMethodInsn(INVOKEVIRTUAL, builder, "put_bitstring",
+							"(" + EOBJECT_DESC + EOBJECT_DESC + "II)V");
 					return;
 
 				}
@@ -799,113 +956,131 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 			public void visitBitStringTest(BeamOpcode test, int failLabel,
 					Arg[] args) {
 
+				String ms = EBINMATCHSTATE_TYPE.getInternalName();
+
 				switch (test) {
+					// {test,bs_start_match2,{f,2},[{x,0},1,0,{x,0}]}
 				case bs_start_match2: {
-					Arg in = args[0];
-					Arg out = args[3];
-
-					push(in, EBITSTRING_TYPE);
-					mv.visitMethodInsn(INVOKESTATIC, EBINMATCHSTATE_TYPE
-							.getInternalName(), test.name(), "(" + EOBJECT_DESC
-							+ ")" + EMATCHSTATE_TYPE.getDescriptor());
-
-					mv.visitInsn(DUP);
-					mv.visitVarInsn(ASTORE, bit_string_matcher);
-
-					mv.visitJumpInsn(IFNULL, getLabel(failLabel));
-
-					mv.visitVarInsn(ALOAD, bit_string_matcher);
-
-					pop(out, EBINMATCHSTATE_TYPE);
+					push(args[0], EOBJECT_TYPE);
+					push_int(args[2].value.asInt());
+					mv.visitMethodInsn(INVOKESTATIC, ms, test.name(), "("
+							+ EOBJECT_DESC + "I)"
+							+ EBINMATCHSTATE_TYPE.getDescriptor());
+					pop_unless_null(args[3], EBINMATCHSTATE_TYPE, failLabel);
 					return;
 				}
 
 					// {test,bs_test_unit,{f,41},[{x,2},8]}
 				case bs_test_unit:
+					// {test,bs_test_tail2,{f,5},[{x,0},0]}
+				case bs_test_tail2:
 					push(args[0], EBINMATCHSTATE_TYPE);
-					push(args[1], Type.INT_TYPE);
-					mv.visitMethodInsn(INVOKEVIRTUAL, EBINMATCHSTATE_TYPE
-							.getInternalName(), test.name(), "(I)"
+					push_int(args[1].value.asInt());
+					mv.visitMethodInsn(INVOKEVIRTUAL, ms, test.name(), "(I)"
 							+ EOBJECT_DESC);
 					mv.visitJumpInsn(IFNULL, getLabel(failLabel));
 					return;
 
+					// {test,bs_match_string,{f,7},[{x,1},32,{string,<<80,75,1,2>>}]}
 				case bs_match_string:
 					push(args[0], EBINMATCHSTATE_TYPE);
-					push(args[1], Type.INT_TYPE);
+					push_int(args[1].value.asInt());
 					push(args[2], EBITSTRING_TYPE);
-					mv.visitMethodInsn(INVOKEVIRTUAL, EBINMATCHSTATE_TYPE
-							.getInternalName(), test.name(), "(I"
+					mv.visitMethodInsn(INVOKEVIRTUAL, ms, test.name(), "(I"
 							+ EBITSTRING_TYPE.getDescriptor() + ")"
-							+ EBITSTRING_TYPE);
+							+ EBITSTRING_TYPE.getDescriptor());
 					mv.visitJumpInsn(IFNULL, getLabel(failLabel));
 					return;
 
-					// {test,bs_skip_bits2, {f,39},
-					// [{x,1},{x,0},8,{field_flags,0}]}
+					// {test,bs_skip_bits2,{f,39},[{x,1},{x,0},8,{field_flags,0}]}
 				case bs_skip_bits2:
 					push(args[0], EBINMATCHSTATE_TYPE);
-					push(args[1], EINTEGER_TYPE);
-					push(args[2], Type.INT_TYPE);
-					push_immediate(args[3].value.testTuple().elm(2),
-							Type.INT_TYPE);
-					mv.visitMethodInsn(INVOKEVIRTUAL, EBINMATCHSTATE_TYPE
-							.getInternalName(), test.name(), "(" + EOBJECT_DESC
-							+ "II)" + EOBJECT_DESC);
+					if (push_bits(args[1], args[2])) {
+						mv.visitMethodInsn(INVOKEVIRTUAL, ms, test.name(),
+								"(I)" + EOBJECT_DESC);
+					} else {
+						push_int(field_flags(args[3]));
+						mv.visitMethodInsn(INVOKEVIRTUAL, ms, test.name(), "("
+								+ EOBJECT_DESC + "II)" + EOBJECT_DESC);
+					}
 					mv.visitJumpInsn(IFNULL, getLabel(failLabel));
 					return;
 
 					// {test,bs_get_binary2,{f,348},[{x,3},5,{atom,all},8,{field_flags,0},{x,3}]}
 				case bs_get_binary2:
-
-					push(args[0], EBINMATCHSTATE_TYPE);
-					push(args[2], EOBJECT_TYPE);
-					push_immediate(args[4].value.testTuple().elm(2),
-							Type.INT_TYPE);
-					mv.visitMethodInsn(INVOKEVIRTUAL, EBINMATCHSTATE_TYPE
-							.getInternalName(), test.name(), "(" + EOBJECT_DESC
-							+ "I)" + EBITSTRING_TYPE);
-
-					mv.visitInsn(DUP);
-					mv.visitVarInsn(ASTORE, scratch_reg);
-
-					mv.visitJumpInsn(IFNULL, getLabel(failLabel));
-
-					mv.visitVarInsn(ALOAD, scratch_reg);
-
-					pop(args[5], EBITSTRING_TYPE);
+					emit_get_segment(test, args, EBITSTRING_TYPE, failLabel);
 					return;
 
 					// {test,bs_get_integer2,{f,348},[{x,3},4,{integer,32},1,{field_flags,0},{x,4}]}
 				case bs_get_integer2:
+					emit_get_segment(test, args, EINTEGER_TYPE, failLabel);
+					return;
 
-					push(args[0], EBINMATCHSTATE_TYPE);
-					push(args[2], Type.INT_TYPE);
-					push(args[4], Type.INT_TYPE);
-					mv.visitMethodInsn(INVOKEVIRTUAL, EBINMATCHSTATE_TYPE
-							.getInternalName(), test.name(), "(II)"
-							+ EINTEGER_TYPE.getDescriptor());
-					mv.visitInsn(DUP);
-					mv.visitVarInsn(ASTORE, scratch_reg);
+				case bs_get_float2:
+					emit_get_segment(test, args, EDOUBLE_TYPE, failLabel);
+					return;
+				}
 
-					mv.visitJumpInsn(IFNULL, getLabel(failLabel));
+				throw new Error("unhandled bit string test: " + test);
+			}
 
-					mv.visitVarInsn(ALOAD, scratch_reg);
+			/**
+			 * Emit one of <code>bs_get_{integer,float,binary}2</code>; args
+			 * are <code>[Ctx, Live, Size, Unit, Flags, Dst]</code>.
+			 */
+			private void emit_get_segment(BeamOpcode test, Arg[] args,
+					Type result, int failLabel) {
+				String ms = EBINMATCHSTATE_TYPE.getInternalName();
+
+				push(args[0], EBINMATCHSTATE_TYPE);
+				boolean fixed = push_bits(args[2], args[3]);
+				push_int(field_flags(args[4]));
+				mv.visitMethodInsn(INVOKEVIRTUAL, ms, test.name(), "("
+						+ (fixed ? "I" : EOBJECT_DESC + "I") + "I)"
+						+ result.getDescriptor());
+
+				pop_unless_null(args[5], result, failLabel);
+			}
 
-					pop(args[5], EOBJECT_TYPE);
-					return;
+			/**
+			 * Push the size of a segment in bits, if it is a constant, or
+			 * else the size term followed by the unit.
+			 * 
+			 * @return true if the size was constant
+			 */
+			private boolean push_bits(Arg size, Arg unit) {
+				int u = unit.value.asInt();
+				if (size.kind == Kind.IMMEDIATE
+						&& size.value instanceof ESmall) {
+					push_int(size.value.asInt() * u);
+					return true;
+				}
 
-				case bs_test_tail2:
-					push(args[0], EBINMATCHSTATE_TYPE);
-					mv.visitMethodInsn(INVOKEVIRTUAL, EBINMATCHSTATE_TYPE
-							.getInternalName(), test.name(), "()"
-							+ EOBJECT_DESC);
-					mv.visitJumpInsn(IFNULL, getLabel(failLabel));
-					return;
+				push(size, EOBJECT_TYPE);
+				push_int(u);
+				return false;
+			}
 
+			/** the flags of a <code>{field_flags,N}</code> operand */
+			private int field_flags(Arg flags) {
+				int f = flags.value.testTuple().elm(2).asInt();
+				if ((f & EBinMatchState.BSF_NATIVE) != 0
+						&& ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+					f |= EBinMatchState.BSF_LITTLE;
 				}
+				return f;
+			}
 
-				throw new Error("unhandled bit string test: " + test);
+			/**
+			 * Jump to <code>failLabel</code> if the value on the stack is
+			 * null, else store it in <code>out</code>.
+			 */
+			private void pop_unless_null(Arg out, Type type, int failLabel) {
+				mv.visitInsn(DUP);
+				mv.visitVarInsn(ASTORE, scratch_reg);
+				mv.visitJumpInsn(IFNULL, getLabel(failLabel));
+				mv.visitVarInsn(ALOAD, scratch_reg);
+				pop(out, type);
 			}
 
 			/*
@@ -956,6 +1131,17 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 				case gc_bif:
 				case bif:
 				case arithfbif:
+					if (is_direct_element(bif, in)) {
+						// cannot fail, so no guard test either
+						Type tt = in[1].type;
+						push(in[1], tt);
+						mv.visitTypeInsn(CHECKCAST, tt.getInternalName());
+						mv.visitFieldInsn(GETFIELD, tt.getInternalName(),
+								"elem" + in[0].value.asInt(), EOBJECT_DESC);
+						pop(out, EOBJECT_TYPE);
+						return;
+					}
+
 					Type[] parameterTypes = bif.getArgumentTypes();
 					// assert (in.length == parameterTypes.length);
 					push(in, parameterTypes);
@@ -964,6 +1150,12 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 							.getInternalName(), bif.getName(), bif
 							.getDescriptor());
 
+					if (out != null && out.type != null
+							&& out.type.getSort() == Type.OBJECT
+							&& !out.type.equals(bif.getReturnType())) {
+						mv.visitTypeInsn(CHECKCAST, out.type.getInternalName());
+					}
+
 					if (failLabel != 0) {
 						// guard
 
@@ -994,6 +1186,82 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 				throw new Error();
 			}
 
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see erjang.beam.BlockVisitor2#visitArith(java.lang.String,
+			 * int, erjang.beam.Arg[], erjang.beam.Arg,
+			 * erjang.beam.BuiltInFunction)
+			 */
+			@Override
+			public void visitArith(String op, int failLabel, Arg[] in,
+					Arg out, BuiltInFunction bif) {
+
+				test_ex_start();
+
+				Label slow = new Label();
+				Label done = new Label();
+
+				for (int i = 0; i < in.length; i++) {
+					if (in[i].kind != Kind.IMMEDIATE
+							&& in[i].type != Type.INT_TYPE) {
+						mv.visitVarInsn(ALOAD, var_index(in[i]));
+						mv.visitTypeInsn(INSTANCEOF, ESMALL_NAME);
+						mv.visitJumpInsn(IFEQ, slow);
+					}
+				}
+
+				// both are small, so the long result is exact
+				for (int i = 0; i < in.length; i++) {
+					push_long(in[i]);
+				}
+
+				if ("+".equals(op)) {
+					mv.visitInsn(LADD);
+				} else if ("-".equals(op)) {
+					mv.visitInsn(LSUB);
+				} else {
+					mv.visitInsn(LMUL);
+				}
+
+				mv.visitMethodInsn(INVOKESTATIC, ERT_NAME, "box", "(J)"
+						+ EINTEGER_TYPE.getDescriptor());
+				pop(out, EINTEGER_TYPE);
+				mv.visitJumpInsn(GOTO, done);
+
+				mv.visitLabel(slow);
+				visitInsn(BeamOpcode.gc_bif, failLabel, in, out, bif);
+				mv.visitLabel(done);
+			}
+
+			/** push a small integer operand as a long */
+			private void push_long(Arg value) {
+				if (value.kind == Kind.IMMEDIATE) {
+					mv.visitLdcInsn(new Long(value.value.asInt()));
+				} else if (value.type == Type.INT_TYPE) {
+					mv.visitVarInsn(ILOAD, var_index(value));
+					mv.visitInsn(I2L);
+				} else {
+					mv.visitVarInsn(ALOAD, var_index(value));
+					mv.visitTypeInsn(CHECKCAST, ESMALL_NAME);
+					mv.visitFieldInsn(GETFIELD, ESMALL_NAME, "value", "I");
+					mv.visitInsn(I2L);
+				}
+			}
+
+			/**
+			 * element(N, T) where N is a literal and T is known to be a
+			 * tuple with at least N elements
+			 */
+			private boolean is_direct_element(BuiltInFunction bif, Arg[] in) {
+				if (!"element".equals(bif.getName()) || in.length != 2
+						|| in[0].kind != Kind.IMMEDIATE)
+					return false;
+				ESmall idx = in[0].value.testSmall();
+				return idx != null && idx.value >= 1
+						&& idx.value <= tuple_arity(in[1].type);
+			}
+
 			/**
 			 * @param out
 			 * @return
@@ -1125,21 +1393,15 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 			 * @param toType
 			 */
 			private void emit_box(Type fromType, Type toType) {
-				if (fromType.equals(Type.INT_TYPE)
+				// ERT.box returns ESmall, EDouble or EAtom; a subtype of
+				// whatever object type we are boxing to
+				if ((fromType.equals(Type.INT_TYPE)
+						|| fromType.equals(Type.DOUBLE_TYPE) || fromType
+						.equals(Type.BOOLEAN_TYPE))
 						&& toType.getSort() == Type.OBJECT) {
 					mv.visitMethodInsn(INVOKESTATIC, ERT_NAME, "box", "("
 							+ fromType.getDescriptor() + ")"
-							+ toType.getDescriptor());
-				} else if (fromType.equals(Type.DOUBLE_TYPE)
-						&& toType.getSort() == Type.OBJECT) {
-					mv.visitMethodInsn(INVOKESTATIC, ERT_NAME, "box", "("
-							+ fromType.getDescriptor() + ")"
-							+ toType.getDescriptor());
-				} else if (fromType.equals(Type.BOOLEAN_TYPE)
-						&& toType.getSort() == Type.OBJECT) {
-					mv.visitMethodInsn(INVOKESTATIC, ERT_NAME, "box", "("
-							+ fromType.getDescriptor() + ")"
-							+ toType.getDescriptor());
+							+ boxed_type(fromType).getDescriptor());
 				} else {
 					throw new Error("cannot box " + fromType + " -> " + toType);
 				}
@@ -1288,13 +1550,23 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 			 * int, erjang.beam.Arg)
 			 */
 			@Override
-			public void visitReceive(BeamOpcode opcode, int blockLabel, Arg out) {
+			public void visitReceive(BeamOpcode opcode, int blockLabel,
+					Arg out, Arg ref) {
 				switch (opcode) {
 				case loop_rec:
 					mv.visitVarInsn(ALOAD, 0);
-					mv.visitMethodInsn(INVOKESTATIC, ERT_NAME, "receive_peek",
-							"(" + EPROC_TYPE.getDescriptor() + ")"
-									+ EOBJECT_DESC);
+					if (ref == null) {
+						mv.visitMethodInsn(INVOKESTATIC, ERT_NAME,
+								"receive_peek", "("
+										+ EPROC_TYPE.getDescriptor() + ")"
+										+ EOBJECT_DESC);
+					} else {
+						push(ref, EOBJECT_TYPE);
+						mv.visitMethodInsn(INVOKESTATIC, ERT_NAME,
+								"receive_peek", "("
+										+ EPROC_TYPE.getDescriptor()
+										+ EOBJECT_DESC + ")" + EOBJECT_DESC);
+					}
 					mv.visitInsn(DUP);
 					pop(out, EOBJECT_TYPE);
 
@@ -1364,9 +1636,9 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 					return;
 
 				case timeout:
-					mv
-							.visitMethodInsn(INVOKESTATIC, ERT_NAME, "timeout",
-									"()V");
+					mv.visitVarInsn(ALOAD, 0);
+					mv.visitMethodInsn(INVOKESTATIC, ERT_NAME, "timeout",
+							"(" + EPROC_TYPE.getDescriptor() + ")V");
 					return;
 
 				case remove_message:
@@ -1376,13 +1648,6 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 									+ ")V");
 					return;
 
-				case loop_rec_end:
-					mv.visitVarInsn(ALOAD, 0);
-					mv.visitMethodInsn(INVOKESTATIC, ERT_NAME, "loop_rec_end",
-							EUtil.getSignature(0, true));
-					mv.visitInsn(ARETURN);
-					return;
-
 				}
 
 				throw new Error();
@@ -1428,6 +1693,10 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 							.getType(ErlangException.class).getInternalName());
 
 					ex_handlers.push(h);
+
+					if (opcode == BeamOpcode.K_try) {
+						emit_trace_depth(true);
+					}
 					return;
 				}
 
@@ -1435,6 +1704,7 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 					test_ex_start();
 					EXHandler ex = ex_handlers.peek();
 					mv.visitLabel(ex.end);
+					emit_trace_depth(false);
 					return;
 
 				case try_case: {
@@ -1443,10 +1713,16 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 
 					EXHandler h = ex_handlers.pop();
 
+					emit_trace_leak(h);
+
 					mv.visitLabel(h.target);
+					emit_trace_depth(false);
 
+					mv.visitVarInsn(ALOAD, 0);
+					mv.visitInsn(SWAP);
 					mv.visitMethodInsn(INVOKESTATIC, ERT_NAME,
 							"decode_exception3", "("
+									+ EPROC_TYPE.getDescriptor()
 									+ ERLANG_EXCEPTION_TYPE.getDescriptor()
 									+ ")" + getTubleType(3).getDescriptor());
 
@@ -1481,8 +1757,11 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 						mv.visitLabel(h.target);
 					}
 
+					mv.visitVarInsn(ALOAD, 0);
+					mv.visitInsn(SWAP);
 					mv.visitMethodInsn(INVOKESTATIC, ERT_NAME,
 							"decode_exception2", "("
+									+ EPROC_TYPE.getDescriptor()
 									+ ERLANG_EXCEPTION_TYPE.getDescriptor()
 									+ ")" + EOBJECT_DESC);
 
@@ -1512,6 +1791,15 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 					mv.visitJumpInsn(GOTO, getLabel(val));
 					return;
 				}
+
+				case loop_rec_end: {
+					mv.visitVarInsn(ALOAD, 0);
+					mv.visitMethodInsn(INVOKESTATIC, ERT_NAME, "loop_rec_end",
+							"(" + EPROC_TYPE.getDescriptor() + ")V");
+
+					mv.visitJumpInsn(GOTO, getLabel(val));
+					return;
+				}
 				}
 				throw new Error("unhandled: " + opcode);
 			}
@@ -1532,19 +1820,36 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 					return;
 
 				} else if (opcode == BeamOpcode.get_tuple_element) {
-					push(val, val.type);
-					mv.visitFieldInsn(GETFIELD, val.type.getInternalName(),
-							"elem" + (pos + 1), EOBJECT_DESC);
+					if (tuple_arity(val.type) > pos) {
+						push(val, val.type);
+						mv.visitTypeInsn(CHECKCAST, val.type.getInternalName());
+						mv.visitFieldInsn(GETFIELD, val.type.getInternalName(),
+								"elem" + (pos + 1), EOBJECT_DESC);
+					} else {
+						push(val, ETUPLE_TYPE);
+						mv.visitTypeInsn(CHECKCAST, ETUPLE_NAME);
+						push_int(pos + 1);
+						mv.visitMethodInsn(INVOKEVIRTUAL, ETUPLE_NAME, "elm",
+								"(I)" + EOBJECT_DESC);
+					}
 					pop(out, EOBJECT_TYPE);
 					return;
 				} else if (opcode == BeamOpcode.set_tuple_element) {
 
-					push(out, out.type);
-					mv.visitTypeInsn(CHECKCAST, ETUPLE_NAME);
-					push_int(pos);
-					push(val, val.type);
-					mv.visitMethodInsn(INVOKEVIRTUAL, ETUPLE_NAME, "set", "(I"
-							+ EOBJECT_DESC + ")V");
+					if (tuple_arity(out.type) > pos) {
+						push(out, out.type);
+						mv.visitTypeInsn(CHECKCAST, out.type.getInternalName());
+						push(val, EOBJECT_TYPE);
+						mv.visitFieldInsn(PUTFIELD, out.type.getInternalName(),
+								"elem" + (pos + 1), EOBJECT_DESC);
+					} else {
+						push(out, ETUPLE_TYPE);
+						mv.visitTypeInsn(CHECKCAST, ETUPLE_NAME);
+						push_int(pos + 1);
+						push(val, EOBJECT_TYPE);
+						mv.visitMethodInsn(INVOKEVIRTUAL, ETUPLE_NAME, "set",
+								"(I" + EOBJECT_DESC + ")V");
+					}
 					return;
 				}
 
@@ -2057,6 +2362,34 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 					return;
 				}
 
+				boolean all_atoms = values.length >= ATOM_SWITCH_MIN;
+				for (int i = 0; all_atoms && i < values.length; i++) {
+					all_atoms = values[i].value instanceof EAtom;
+				}
+
+				if (all_atoms) {
+					EAtom[] atoms = new EAtom[values.length];
+					Label[] label = new Label[values.length];
+					for (int i = 0; i < values.length; i++) {
+						atoms[i] = (EAtom) values[i].value;
+						label[i] = getLabel(targets[i]);
+					}
+
+					String field = "atom_switch_" + atom_switches.size();
+					atom_switches.put(field, atoms);
+					cv.visitField(ACC_STATIC, field, EATOMSWITCH_TYPE
+							.getDescriptor(), null, null);
+
+					mv.visitFieldInsn(GETSTATIC, self_type.getInternalName(),
+							field, EATOMSWITCH_TYPE.getDescriptor());
+					push(in, EOBJECT_TYPE);
+					mv.visitMethodInsn(INVOKEVIRTUAL, EATOMSWITCH_NAME,
+							"index", "(" + EOBJECT_DESC + ")I");
+					mv.visitTableSwitchInsn(0, values.length - 1,
+							getLabel(failLabel), label);
+					return;
+				}
+
 				class Case implements Comparable<Case> {
 
 					final Arg arg;
@@ -2240,6 +2573,24 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 				return Type.getType("L" + ETUPLE_NAME + i + ";");
 			}
 
+			/**
+			 * @return the arity of an ETupleN type, or -1 for any other type
+			 */
+			private int tuple_arity(Type t) {
+				if (t == null || t.getSort() != Type.OBJECT)
+					return -1;
+				String name = t.getInternalName();
+				if (name.length() == ETUPLE_NAME.length()
+						|| !name.startsWith(ETUPLE_NAME))
+					return -1;
+				try {
+					return Integer.parseInt(name.substring(ETUPLE_NAME
+							.length()));
+				} catch (NumberFormatException e) {
+					return -1;
+				}
+			}
+
 			/*
 			 * (non-Javadoc)
 			 * 
@@ -2252,39 +2603,29 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 
 				test_ex_start();
 
-				if (false /* fun.mod == ERLANG_ATOM */) {
+				BuiltInFunction m = isExternal ? getDirectBif(fun, args) : null;
 
-					System.err.println(fun);
+				if (m != null) {
 
 					// functions in module "erlang" compile to direct calls
 
-					BuiltInFunction m = BIFUtil.getMethod(fun.fun.getName(),
-							args, false);
-
-					if (m == null) {
-						throw new Error("did not find " + fun);
-					}
-
-					if (m.getArgumentTypes().length > 0
-							&& EPROC_TYPE.equals(m.getArgumentTypes()[0])) {
-						mv.visitVarInsn(ALOAD, 0);
-
-						assert (args.length + 1 == m.getArgumentTypes().length);
-					} else {
-						assert (args.length == m.getArgumentTypes().length);
-					}
-
 					push(args, m.getArgumentTypes());
 
 					mv.visitMethodInsn(INVOKESTATIC, m.owner.getInternalName(),
 							m.getName(), m.getDescriptor());
 
-					if (is_tail) {
-						emit_convert(m.getReturnType(), EOBJECT_TYPE);
+					Type ret = m.getReturnType();
+					emit_convert(ret, boxed_type(ret));
+
+					if (is_tail || isExitFunc(fun)) {
 						mv.visitInsn(ARETURN);
 					} else {
-						// emit_convert(m.getReturnType(), EOBJECT_TYPE);
-						pop(new Arg(Arg.Kind.X, 0), m.getReturnType());
+						if (fun.fun == SETELEMENT_ATOM
+								&& tuple_arity(args[1].type) >= 0) {
+							mv.visitTypeInsn(CHECKCAST, args[1].type
+									.getInternalName());
+						}
+						mv.visitVarInsn(ASTORE, xregs[0]);
 					}
 
 				} else if (isExternal) {
@@ -2307,6 +2648,12 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 					if (is_tail || isExitFunc(fun)) {
 						mv.visitInsn(ARETURN);
 					} else {
+						if (fun.mod == ERLANG_ATOM && fun.fun == SETELEMENT_ATOM
+								&& fun.no == 3
+								&& tuple_arity(args[1].type) >= 0) {
+							mv.visitTypeInsn(CHECKCAST, args[1].type
+									.getInternalName());
+						}
 						mv.visitVarInsn(ASTORE, xregs[0]);
 					}
 
@@ -2321,8 +2668,8 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 								"check_exit", "()V");
 
 						// System.out.println("self-recursive in " + fun);
-						mv.visitJumpInsn(GOTO,
-								getLabel(ASMFunctionAdapter.this.startLabel));
+						// back to the reduction check at the method entry
+						mv.visitJumpInsn(GOTO, start);
 						return;
 
 					}
@@ -2332,11 +2679,14 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 						push(args[i], EOBJECT_TYPE);
 					}
 
+					// a function that cannot pause has no trampoline to
+					// return to, and calls functions that cannot pause
+					// either, so its tail calls are plain calls
 					mv.visitMethodInsn(INVOKESTATIC, self_type
 							.getInternalName(), EUtil.getJavaName(fun.fun,
 							fun.no)
-							+ (is_tail ? "$tail" : "$call"), EUtil
-							.getSignature(args.length, true));
+							+ (is_tail && isPausable ? "$tail" : "$call"),
+							EUtil.getSignature(args.length, true));
 
 					if (is_tail) {
 						mv.visitInsn(ARETURN);
@@ -2348,9 +2698,55 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 			}
 
 			/**
-			 * @param fun
-			 * @return
+			 * The bif that a call to <code>fun</code> can be compiled to,
+			 * or null if it has to go through the import.
+			 * <p>
+			 * That is a function in module erlang, with a Java
+			 * implementation for these argument types. It must also be
+			 * exported for generic arguments, because natives are what
+			 * <code>erlang:F/A</code> resolves to, even if erlang.beam has
+			 * a function of the same name. Functions known only to
+			 * erlang.beam go through the import, as before.
+			 * <p>
+			 * There is no fallback to the import: EModule refuses to
+			 * reload, delete or purge module erlang, so the bif a call
+			 * was compiled to stays the one <code>erlang:F/A</code>
+			 * resolves to.
 			 */
+			private BuiltInFunction getDirectBif(ExtFunc fun, Arg[] args) {
+				if (fun.mod != ERLANG_ATOM || !BIFUtil.isBif(fun.fun.getName()))
+					return null;
+
+				Type[] generic = new Type[args.length];
+				Arrays.fill(generic, EOBJECT_TYPE);
+				BuiltInFunction exported = BIFUtil.getMethod(fun.fun.getName(),
+						generic, false);
+				if (exported == null)
+					return null;
+
+				BuiltInFunction m = BIFUtil.getMethod(fun.fun.getName(), args,
+						false);
+				if (m == null)
+					return null;
+
+				Type ret = m.getReturnType();
+				if (ret.getSort() != Type.OBJECT && boxed_type(ret) == ret)
+					return null;
+
+				return m;
+			}
+
+			/** the type that ERT.box gives a primitive, or t itself */
+			private Type boxed_type(Type t) {
+				if (t == Type.INT_TYPE)
+					return ESMALL_TYPE;
+				if (t == Type.DOUBLE_TYPE)
+					return EDOUBLE_TYPE;
+				if (t == Type.BOOLEAN_TYPE)
+					return EATOM_TYPE;
+				return t;
+			}
+
 			private boolean isExitFunc(ExtFunc fun) {
 				if (fun.mod == ERLANG_ATOM) {
 					if (fun.fun.getName().equals("exit"))
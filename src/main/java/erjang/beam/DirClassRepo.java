@@ -48,9 +48,21 @@ public class DirClassRepo implements ClassRepo {
 		
 		out_dir.mkdirs();
 		
-		FileOutputStream fo = new FileOutputStream(out);
-		fo.write(data);
-		fo.close();
+		// write aside and rename, so a class loader never reads half a file
+		File tmp = File.createTempFile(out.getName(), ".tmp", out_dir);
+		FileOutputStream fo = new FileOutputStream(tmp);
+		try {
+			fo.write(data);
+		} finally {
+			fo.close();
+		}
+		if (!tmp.renameTo(out)) {
+			out.delete();
+			if (!tmp.renameTo(out)) {
+				tmp.delete();
+				throw new IOException("cannot write " + out);
+			}
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -21,8 +21,8 @@ package erjang.beam;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import org.objectweb.asm.Type;
@@ -42,8 +42,8 @@ public class EUtil {
 	private static final String EPROC_DESC = CompilerVisitor.EPROC_TYPE
 			.getDescriptor();
 
-	static Map<Integer, String> signatures = new HashMap<Integer, String>();
-	static Map<Integer, String> noproc_signatures = new HashMap<Integer, String>();
+	static Map<Integer, String> signatures = new ConcurrentHashMap<Integer, String>();
+	static Map<Integer, String> noproc_signatures = new ConcurrentHashMap<Integer, String>();
 
 	public static String getSignature(int arity, boolean withProc) {
 
@@ -0,0 +1,578 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.beam;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import erjang.ERT;
+
+/**
+ * The .erj cache of compiled modules, shared by all JVMs on the host.
+ *
+ * <p>
+ * Compiled jars are found through one memory-mapped index file, a hash
+ * table keyed by a digest of (compiler version, module name, beam file).
+ * A lookup is a few reads of the mapped index, and a stat of the jar it
+ * finds; a jar that has been deleted is compiled again. The compiler
+ * version covers the bytes of the compiler's own classes and the process
+ * backend, so a new compiler never picks up jars made by an old one.
+ *
+ * <p>
+ * Writers hold a lock on the index file (and on this object, for other
+ * threads of the same JVM) while they publish a jar, which is renamed into
+ * place before it is added to the index. Readers take no lock; each slot
+ * has a sequence number that is odd while the slot is being written, and
+ * readers retry until they see the same even number before and after.
+ *
+ * <p>
+ * When the table is 3/4 full it is doubled, and the other JVMs remap it
+ * when they see the new size in the header. When the jars take up more
+ * than <code>-Derjang.cache.size</code> bytes (default 512MB), the table
+ * stops growing and the least recently used jars are removed.
+ */
+public class ErjCache {
+
+	static final int MAGIC = 0x45524A43; /* ERJC */
+	static final int FORMAT = 1;
+
+	static final int SLOTS = 4096; // initial
+	static final int MAX_SLOTS = 1 << 20;
+	static final int SLOT_SIZE = 128;
+	static final int HEADER_SIZE = 64;
+
+	// header
+	static final int H_MAGIC = 0;
+	static final int H_FORMAT = 4;
+	static final int H_SLOTS = 8;
+	static final int H_LIVE = 12;
+	static final int H_USED = 16; // live and deleted slots
+	static final int H_BYTES = 24;
+
+	// slot
+	static final int S_SEQ = 0;
+	static final int S_STATE = 4;
+	static final int S_KEY = 8;
+	static final int S_SIZE = 16;
+	static final int S_LAST_USE = 24;
+	static final int S_NAME_LEN = 32;
+	static final int S_NAME = 34;
+	static final int NAME_MAX = SLOT_SIZE - S_NAME;
+
+	static final int EMPTY = 0;
+	static final int LIVE = 1;
+	static final int DELETED = 2;
+
+	private final File dir;
+	private final long max_bytes;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private volatile MappedByteBuffer map;
+
+	private static ErjCache instance;
+
+	/** the cache in .erj, opened on first use */
+	public static synchronized ErjCache get() throws IOException {
+		if (instance == null) {
+			instance = new ErjCache(Compiler.erjdir(), Long.getLong(
+					"erjang.cache.size", 512L << 20));
+		}
+		return instance;
+	}
+
+	public ErjCache(File dir, long max_bytes) throws IOException {
+		this.dir = dir;
+		this.max_bytes = max_bytes;
+
+		file = new RandomAccessFile(new File(dir, "index"), "rw");
+		channel = file.getChannel();
+
+		synchronized (this) {
+			FileLock lock = channel.lock();
+			try {
+				map = map(SLOTS);
+
+				if (map.getInt(H_MAGIC) != MAGIC
+						|| map.getInt(H_FORMAT) != FORMAT
+						|| !valid_size(map.getInt(H_SLOTS))) {
+					// new, or from another version of erjang
+					clear();
+				} else {
+					current();
+				}
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	/**
+	 * @return the key of a module compiled from <code>beam</code> by this
+	 *         compiler
+	 */
+	public long key(String module, byte[] beam) {
+		MessageDigest md = md5();
+		md.update(VERSION);
+		md.update(utf8(module));
+		md.update((byte) 0);
+		md.update(beam);
+		return first_long(md.digest());
+	}
+
+	/**
+	 * @return the compiled jar, or null when it is not in the cache
+	 */
+	public File lookup(String module, long key) {
+		byte[] name = utf8(module);
+		MappedByteBuffer map = current();
+		int slots = slots(map);
+		int start = (int) ((key >>> 1) % slots);
+
+		for (int i = 0; i < slots; i++) {
+			int s = slot((start + i) % slots);
+			int spins = 0;
+
+			while (true) {
+				int seq = map.getInt(s + S_SEQ);
+				if ((seq & 1) != 0) {
+					// a writer is in this slot; if it stays that way, the
+					// writer died half way
+					if (++spins > 1000) {
+						repair();
+						spins = 0;
+					}
+					Thread.yield();
+					continue;
+				}
+
+				int state = map.getInt(s + S_STATE);
+				boolean match = state == LIVE && map.getLong(s + S_KEY) == key
+						&& name_equals(s, name);
+
+				if (map.getInt(s + S_SEQ) != seq)
+					continue;
+
+				if (state == EMPTY)
+					return null;
+
+				if (match) {
+					File jar = jar(name, key);
+					if (!jar.isFile())
+						return null; // deleted; publish replaces it
+
+					// racy, but good enough for LRU
+					map.putLong(s + S_LAST_USE, System.currentTimeMillis());
+					return jar;
+				}
+				break;
+			}
+		}
+
+		return null;
+	}
+
+	/** a file to compile into, in the cache directory */
+	public File temp_file(String module) throws IOException {
+		return File.createTempFile(module + "-", ".tmp", dir);
+	}
+
+	/**
+	 * Move a compiled jar into the cache, and add it to the index. If
+	 * another thread or JVM was first, its jar is kept and
+	 * <code>tmp</code> is deleted.
+	 *
+	 * @return the jar in the cache
+	 */
+	public File publish(String module, long key, File tmp) throws IOException {
+		byte[] name = utf8(module);
+		File jar = jar(name, key);
+
+		synchronized (this) {
+			FileLock lock = channel.lock();
+			try {
+				current();
+
+				int s = find(key, name);
+				if (s >= 0) {
+					if (jar.isFile()) {
+						tmp.delete();
+						return jar;
+					}
+					remove(s);
+				}
+
+				if (!tmp.renameTo(jar)) {
+					jar.delete();
+					if (!tmp.renameTo(jar))
+						throw new IOException("cannot create " + jar);
+				}
+
+				insert(key, name, jar.length());
+				evict(key);
+			} finally {
+				lock.release();
+			}
+		}
+
+		return jar;
+	}
+
+	/**
+	 * @return the index, remapped first if another JVM has changed its
+	 *         size
+	 */
+	private MappedByteBuffer current() {
+		MappedByteBuffer m = map;
+		int slots = m.getInt(H_SLOTS);
+		if (slots == slots(m) || !valid_size(slots))
+			return m;
+
+		synchronized (this) {
+			if (slots(map) != slots) {
+				try {
+					map = map(slots);
+				} catch (IOException e) {
+					// keep the old mapping; lookups just miss
+				}
+			}
+			return map;
+		}
+	}
+
+	/** map an index of <code>slots</code> slots, growing the file if needed */
+	private MappedByteBuffer map(int slots) throws IOException {
+		long size = HEADER_SIZE + (long) slots * SLOT_SIZE;
+		if (file.length() < size)
+			file.setLength(size);
+		return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	//
+	// all below is called with the lock held
+	//
+
+	private void clear() {
+		int slots = slots(map);
+		for (int i = 0; i < slots; i++) {
+			int s = slot(i);
+			map.putInt(s + S_SEQ, 0);
+			map.putInt(s + S_STATE, EMPTY);
+		}
+		map.putInt(H_MAGIC, MAGIC);
+		map.putInt(H_FORMAT, FORMAT);
+		map.putInt(H_SLOTS, slots);
+		map.putInt(H_LIVE, 0);
+		map.putInt(H_USED, 0);
+		map.putLong(H_BYTES, 0);
+		map.force();
+	}
+
+	private int find(long key, byte[] name) {
+		int slots = slots(map);
+		int start = (int) ((key >>> 1) % slots);
+		for (int i = 0; i < slots; i++) {
+			int s = slot((start + i) % slots);
+			int state = map.getInt(s + S_STATE);
+			if (state == EMPTY)
+				return -1;
+			if (state == LIVE && map.getLong(s + S_KEY) == key
+					&& name_equals(s, name))
+				return s;
+		}
+		return -1;
+	}
+
+	private void insert(long key, byte[] name, long size) throws IOException {
+		int slots = slots(map);
+		if (map.getInt(H_USED) >= slots * 3 / 4) {
+			if (map.getInt(H_LIVE) < slots * 3 / 4) {
+				rehash(slots);
+			} else if (map.getLong(H_BYTES) < max_bytes && slots < MAX_SLOTS) {
+				// full of live jars, but within the cache size
+				map = map(slots * 2);
+				rehash(slots);
+			} else {
+				evict_one(key);
+				rehash(slots);
+			}
+			slots = slots(map);
+		}
+
+		int start = (int) ((key >>> 1) % slots);
+		for (int i = 0; i < slots; i++) {
+			int s = slot((start + i) % slots);
+			int state = map.getInt(s + S_STATE);
+			if (state != LIVE) {
+				write(s, LIVE, key, size, System.currentTimeMillis(), name);
+				map.putInt(H_LIVE, map.getInt(H_LIVE) + 1);
+				if (state == EMPTY)
+					map.putInt(H_USED, map.getInt(H_USED) + 1);
+				map.putLong(H_BYTES, map.getLong(H_BYTES) + size);
+				return;
+			}
+		}
+	}
+
+	/** remove least recently used jars, but not <code>keep</code> */
+	private void evict(long keep) {
+		while (map.getLong(H_BYTES) > max_bytes && map.getInt(H_LIVE) > 1) {
+			if (!evict_one(keep))
+				return;
+		}
+	}
+
+	private boolean evict_one(long keep) {
+		int victim = -1;
+		long oldest = Long.MAX_VALUE;
+		int slots = slots(map);
+		for (int i = 0; i < slots; i++) {
+			int s = slot(i);
+			if (map.getInt(s + S_STATE) == LIVE
+					&& map.getLong(s + S_KEY) != keep
+					&& map.getLong(s + S_LAST_USE) < oldest) {
+				oldest = map.getLong(s + S_LAST_USE);
+				victim = s;
+			}
+		}
+		if (victim < 0)
+			return false;
+
+		remove(victim);
+		return true;
+	}
+
+	private void remove(int s) {
+		jar(name(s), map.getLong(s + S_KEY)).delete();
+		map.putLong(H_BYTES, map.getLong(H_BYTES) - map.getLong(s + S_SIZE));
+		map.putInt(H_LIVE, map.getInt(H_LIVE) - 1);
+		write(s, DELETED, 0, 0, 0, new byte[0]);
+	}
+
+	/**
+	 * drop deleted slots, which make lookups of absent keys slow, and move
+	 * the entries of the first <code>old_slots</code> slots to where they
+	 * belong in a table of the current size
+	 */
+	private void rehash(int old_slots) {
+		int live = map.getInt(H_LIVE);
+		long[] keys = new long[live], sizes = new long[live], uses = new long[live];
+		byte[][] names = new byte[live][];
+		int n = 0;
+		for (int i = 0; i < old_slots && n < live; i++) {
+			int s = slot(i);
+			if (map.getInt(s + S_STATE) == LIVE) {
+				keys[n] = map.getLong(s + S_KEY);
+				sizes[n] = map.getLong(s + S_SIZE);
+				uses[n] = map.getLong(s + S_LAST_USE);
+				names[n++] = name(s);
+			}
+		}
+
+		// a grown table may reuse file space left by an earlier, larger one
+		int slots = slots(map);
+		for (int i = 0; i < slots; i++) {
+			int s = slot(i);
+			if (map.getInt(s + S_STATE) != EMPTY)
+				write(s, EMPTY, 0, 0, 0, new byte[0]);
+		}
+		map.putInt(H_SLOTS, slots);
+
+		for (int j = 0; j < n; j++) {
+			int start = (int) ((keys[j] >>> 1) % slots);
+			for (int i = 0; i < slots; i++) {
+				int s = slot((start + i) % slots);
+				if (map.getInt(s + S_STATE) == EMPTY) {
+					write(s, LIVE, keys[j], sizes[j], uses[j], names[j]);
+					break;
+				}
+			}
+		}
+		map.putInt(H_LIVE, n);
+		map.putInt(H_USED, n);
+	}
+
+	/** a writer died while it was writing a slot; drop the slot */
+	private synchronized void repair() {
+		try {
+			FileLock lock = channel.lock();
+			try {
+				current();
+				int slots = slots(map);
+				for (int i = 0; i < slots; i++) {
+					int s = slot(i);
+					int seq = map.getInt(s + S_SEQ);
+					if ((seq & 1) != 0) {
+						map.putInt(s + S_STATE, DELETED);
+						map.putInt(s + S_SEQ, seq + 1);
+					}
+				}
+			} finally {
+				lock.release();
+			}
+		} catch (IOException e) {
+			// the next reader will try again
+		}
+	}
+
+	private void write(int s, int state, long key, long size, long last_use,
+			byte[] name) {
+		int seq = map.getInt(s + S_SEQ);
+		map.putInt(s + S_SEQ, seq + 1);
+
+		map.putInt(s + S_STATE, state);
+		map.putLong(s + S_KEY, key);
+		map.putLong(s + S_SIZE, size);
+		map.putLong(s + S_LAST_USE, last_use);
+		int len = Math.min(name.length, NAME_MAX);
+		map.putShort(s + S_NAME_LEN, (short) len);
+		for (int i = 0; i < len; i++) {
+			map.put(s + S_NAME + i, name[i]);
+		}
+
+		map.putInt(s + S_SEQ, seq + 2);
+	}
+
+	//
+	// helpers
+	//
+
+	private static int slot(int i) {
+		return HEADER_SIZE + i * SLOT_SIZE;
+	}
+
+	private static int slots(MappedByteBuffer m) {
+		return (m.capacity() - HEADER_SIZE) / SLOT_SIZE;
+	}
+
+	/** sizes the table can grow to, from its initial size */
+	private static boolean valid_size(int slots) {
+		return slots >= SLOTS && slots <= MAX_SLOTS
+				&& (slots & (slots - 1)) == 0;
+	}
+
+	/**
+	 * Names longer than the slot are cut off; the key has the whole name,
+	 * so they still only match their own module.
+	 */
+	private boolean name_equals(int s, byte[] name) {
+		int len = Math.min(name.length, NAME_MAX);
+		if (map.getShort(s + S_NAME_LEN) != len)
+			return false;
+		for (int i = 0; i < len; i++) {
+			if (map.get(s + S_NAME + i) != name[i])
+				return false;
+		}
+		return true;
+	}
+
+	private byte[] name(int s) {
+		byte[] name = new byte[map.getShort(s + S_NAME_LEN)];
+		for (int i = 0; i < name.length; i++) {
+			name[i] = map.get(s + S_NAME + i);
+		}
+		return name;
+	}
+
+	/** named after the module, as far as it fits in a slot */
+	private File jar(byte[] name, long key) {
+		try {
+			String module = new String(name, 0, Math.min(name.length,
+					NAME_MAX), "UTF-8");
+			return new File(dir, module + "-" + Long.toHexString(key) + ".jar");
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+	}
+
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e);
+		}
+	}
+
+	private static long first_long(byte[] d) {
+		long res = 0;
+		for (int i = 0; i < 8; i++) {
+			res = (res << 8) | (d[i] & 0xff);
+		}
+		return res;
+	}
+
+	/** classes whose code decides what the compiler produces */
+	private static final Class<?>[] COMPILER_CLASSES = { Compiler.class,
+			CompilerVisitor.class, JavaBeamLoader.class, BeamFileData.class,
+			BIFUtil.class, EUtil.class, JarClassRepo.class,
+			erjang.beam.analysis.BeamTypeAnalysis.class,
+			erjang.beam.analysis.BeamInliner.class,
+			erjang.beam.analysis.FunctionSplitter.class,
+			kilim.analysis.ClassWeaver.class };
+
+	/**
+	 * digest of the compiler's classes, the process backend, inlining,
+	 * splitting and pausability inference
+	 */
+	static final byte[] VERSION;
+
+	static {
+		MessageDigest md = md5();
+		md.update(utf8(ERT.USE_THREADS ? "threads" : "kilim"));
+		md.update(utf8(erjang.beam.analysis.BeamInliner.ENABLED ? "inline"
+				: "noinline"));
+		md.update(utf8(erjang.beam.analysis.FunctionSplitter.ENABLED ? "split"
+				: "nosplit"));
+		md.update(utf8(erjang.beam.analysis.BeamTypeAnalysis.INFER_PAUSABLE ? "infer"
+				: "noinfer"));
+		byte[] buf = new byte[8192];
+		for (Class<?> c : COMPILER_CLASSES) {
+			String res = "/" + c.getName().replace('.', '/') + ".class";
+			InputStream in = c.getResourceAsStream(res);
+			if (in == null)
+				throw new Error("cannot read " + res);
+			try {
+				try {
+					int n;
+					while ((n = in.read(buf)) > 0)
+						md.update(buf, 0, n);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+		}
+		VERSION = md.digest();
+	}
+}
@@ -54,8 +54,10 @@ public class ErlangBeamDisLoader extends BeamLoader {
 		System.out.println("connexted to " + peer);
 	}
 	
+	// one connection, so one request at a time
+
 	@Override
-	public BeamFileData load(File file) throws IOException {
+	public synchronized BeamFileData load(File file) throws IOException {
 
 		sendGEN(conn, "beam_loader", new OtpErlangTuple(
 				new OtpErlangObject[] { 
@@ -76,7 +78,7 @@ public class ErlangBeamDisLoader extends BeamLoader {
 	}
 
 	@Override
-	public BeamFileData load(byte[] data) throws IOException {
+	public synchronized BeamFileData load(byte[] data) throws IOException {
 
 		sendGEN(conn, "beam_loader", new OtpErlangTuple(
 				new OtpErlangObject[] { 
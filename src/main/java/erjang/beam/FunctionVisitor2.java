@@ -24,7 +24,14 @@ package erjang.beam;
  */
 public interface FunctionVisitor2 extends FunctionVisitor {
 
+	/**
+	 * @param usesStacktrace
+	 *            does the function call erlang:get_stacktrace/0
+	 * @param isPausable
+	 *            can the function pause the process; if not, it must be
+	 *            compiled without calls to pausable methods
+	 */
 	public void visitMaxs(int x_count, int y_count, int fp_count,
-			boolean isTailRecursive);
+			boolean isTailRecursive, boolean usesStacktrace, boolean isPausable);
 	
 }
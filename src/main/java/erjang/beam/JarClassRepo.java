@@ -22,6 +22,8 @@ package erjang.beam;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.jar.JarOutputStream;
 import java.util.zip.ZipEntry;
 
@@ -32,6 +34,12 @@ public class JarClassRepo implements ClassRepo {
 	
 	private JarOutputStream jo;
 
+	/**
+	 * the entries written so far; the classes of a module that use the
+	 * same kilim state class each come with a copy of it
+	 */
+	private final Set<String> stored = new HashSet<String>();
+
 	public JarClassRepo(File jarFile) throws IOException {
 		FileOutputStream fo = new FileOutputStream(jarFile);
 		jo = new JarOutputStream(fo);
@@ -41,7 +49,7 @@ public class JarClassRepo implements ClassRepo {
 	 * @see erjang.beam.ClassRepo#close()
 	 */
 	@Override
-	public void close() throws IOException {
+	public synchronized void close() throws IOException {
 		jo.close();
 	}
 	
@@ -49,10 +57,14 @@ public class JarClassRepo implements ClassRepo {
 	 * @see erjang.beam.ClassRepo#store(java.lang.String, byte[])
 	 */
 	@Override
-	public void store(String internalName, byte[] data) throws IOException {
+	public synchronized void store(String internalName, byte[] data)
+			throws IOException {
 		String out = internalName + ".class";
 		
 		//System.out.println("# "+out);
+
+		if (!stored.add(out))
+			return;
 		
 		jo.putNextEntry(new ZipEntry(out));
 		jo.write(data);
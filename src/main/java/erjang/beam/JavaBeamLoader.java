@@ -0,0 +1,814 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.beam;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.ericsson.otp.erlang.OtpErlangDecodeException;
+import com.ericsson.otp.erlang.OtpInputStream;
+
+import erjang.EAtom;
+import erjang.EBinary;
+import erjang.EObject;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.EString;
+import erjang.ETuple;
+
+/**
+ * Reads .beam files in-process. The chunks are decoded into the same
+ * terms that <code>beam_disasm:file/1</code> returns, so the result can be
+ * handed to {@link BeamFileData} just like that of
+ * {@link ErlangBeamDisLoader}, without an external Erlang node.
+ */
+public class JavaBeamLoader extends BeamLoader {
+
+	@Override
+	public BeamFileData load(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		return load(data);
+	}
+
+	@Override
+	public BeamFileData load(byte[] data) throws IOException {
+		return new BeamFileData(new Reader(data).read());
+	}
+
+	/** generic op names and arities, indexed by op-code (see genop.tab) */
+	static final String[] OP_NAMES = new String[153];
+	static final int[] OP_ARITY = new int[153];
+
+	private static void op(int code, String name, int arity) {
+		OP_NAMES[code] = name;
+		OP_ARITY[code] = arity;
+	}
+
+	static {
+		op(1, "label", 1);
+		op(2, "func_info", 3);
+		op(3, "int_code_end", 0);
+		op(4, "call", 2);
+		op(5, "call_last", 3);
+		op(6, "call_only", 2);
+		op(7, "call_ext", 2);
+		op(8, "call_ext_last", 3);
+		op(9, "bif0", 2);
+		op(10, "bif1", 4);
+		op(11, "bif2", 5);
+		op(12, "allocate", 2);
+		op(13, "allocate_heap", 3);
+		op(14, "allocate_zero", 2);
+		op(15, "allocate_heap_zero", 3);
+		op(16, "test_heap", 2);
+		op(17, "init", 1);
+		op(18, "deallocate", 1);
+		op(19, "return", 0);
+		op(20, "send", 0);
+		op(21, "remove_message", 0);
+		op(22, "timeout", 0);
+		op(23, "loop_rec", 2);
+		op(24, "loop_rec_end", 1);
+		op(25, "wait", 1);
+		op(26, "wait_timeout", 2);
+		op(27, "m_plus", 4);
+		op(28, "m_minus", 4);
+		op(29, "m_times", 4);
+		op(30, "m_div", 4);
+		op(31, "int_div", 4);
+		op(32, "int_rem", 4);
+		op(33, "int_band", 4);
+		op(34, "int_bor", 4);
+		op(35, "int_bxor", 4);
+		op(36, "int_bsl", 4);
+		op(37, "int_bsr", 4);
+		op(38, "int_bnot", 3);
+		op(39, "is_lt", 3);
+		op(40, "is_ge", 3);
+		op(41, "is_eq", 3);
+		op(42, "is_ne", 3);
+		op(43, "is_eq_exact", 3);
+		op(44, "is_ne_exact", 3);
+		op(45, "is_integer", 2);
+		op(46, "is_float", 2);
+		op(47, "is_number", 2);
+		op(48, "is_atom", 2);
+		op(49, "is_pid", 2);
+		op(50, "is_reference", 2);
+		op(51, "is_port", 2);
+		op(52, "is_nil", 2);
+		op(53, "is_binary", 2);
+		op(54, "is_constant", 2);
+		op(55, "is_list", 2);
+		op(56, "is_nonempty_list", 2);
+		op(57, "is_tuple", 2);
+		op(58, "test_arity", 3);
+		op(59, "select_val", 3);
+		op(60, "select_tuple_arity", 3);
+		op(61, "jump", 1);
+		op(62, "catch", 2);
+		op(63, "catch_end", 1);
+		op(64, "move", 2);
+		op(65, "get_list", 3);
+		op(66, "get_tuple_element", 3);
+		op(67, "set_tuple_element", 3);
+		op(68, "put_string", 3);
+		op(69, "put_list", 3);
+		op(70, "put_tuple", 2);
+		op(71, "put", 1);
+		op(72, "badmatch", 1);
+		op(73, "if_end", 0);
+		op(74, "case_end", 1);
+		op(75, "call_fun", 1);
+		op(76, "make_fun", 3);
+		op(77, "is_function", 2);
+		op(78, "call_ext_only", 2);
+		op(79, "bs_start_match", 2);
+		op(80, "bs_get_integer", 5);
+		op(81, "bs_get_float", 5);
+		op(82, "bs_get_binary", 5);
+		op(83, "bs_skip_bits", 4);
+		op(84, "bs_test_tail", 2);
+		op(85, "bs_save", 1);
+		op(86, "bs_restore", 1);
+		op(87, "bs_init", 2);
+		op(88, "bs_final", 2);
+		op(89, "bs_put_integer", 5);
+		op(90, "bs_put_binary", 5);
+		op(91, "bs_put_float", 5);
+		op(92, "bs_put_string", 2);
+		op(93, "bs_need_buf", 1);
+		op(94, "fclearerror", 0);
+		op(95, "fcheckerror", 1);
+		op(96, "fmove", 2);
+		op(97, "fconv", 2);
+		op(98, "fadd", 4);
+		op(99, "fsub", 4);
+		op(100, "fmul", 4);
+		op(101, "fdiv", 4);
+		op(102, "fnegate", 3);
+		op(103, "make_fun2", 1);
+		op(104, "try", 2);
+		op(105, "try_end", 1);
+		op(106, "try_case", 1);
+		op(107, "try_case_end", 1);
+		op(108, "raise", 2);
+		op(109, "bs_init2", 6);
+		op(110, "bs_bits_to_bytes", 3);
+		op(111, "bs_add", 5);
+		op(112, "apply", 1);
+		op(113, "apply_last", 2);
+		op(114, "is_boolean", 2);
+		op(115, "is_function2", 3);
+		op(116, "bs_start_match2", 5);
+		op(117, "bs_get_integer2", 7);
+		op(118, "bs_get_float2", 7);
+		op(119, "bs_get_binary2", 7);
+		op(120, "bs_skip_bits2", 5);
+		op(121, "bs_test_tail2", 3);
+		op(122, "bs_save2", 2);
+		op(123, "bs_restore2", 2);
+		op(124, "gc_bif1", 5);
+		op(125, "gc_bif2", 6);
+		op(126, "bs_final2", 2);
+		op(127, "bs_bits_to_bytes2", 2);
+		op(128, "put_literal", 2);
+		op(129, "is_bitstr", 2);
+		op(130, "bs_context_to_binary", 1);
+		op(131, "bs_test_unit", 3);
+		op(132, "bs_match_string", 4);
+		op(133, "bs_init_writable", 0);
+		op(134, "bs_append", 8);
+		op(135, "bs_private_append", 6);
+		op(136, "trim", 2);
+		op(137, "bs_init_bits", 6);
+		op(138, "bs_get_utf8", 5);
+		op(139, "bs_skip_utf8", 4);
+		op(140, "bs_get_utf16", 5);
+		op(141, "bs_skip_utf16", 4);
+		op(142, "bs_get_utf32", 5);
+		op(143, "bs_skip_utf32", 4);
+		op(144, "bs_utf8_size", 3);
+		op(145, "bs_put_utf8", 3);
+		op(146, "bs_utf16_size", 3);
+		op(147, "bs_put_utf16", 3);
+		op(148, "bs_put_utf32", 3);
+		op(149, "on_load", 0);
+		op(150, "recv_mark", 1);
+		op(151, "recv_set", 1);
+		op(152, "gc_bif3", 7);
+	}
+
+	// tags of the compact term encoding
+	static final int TAG_U = 0;
+	static final int TAG_I = 1;
+	static final int TAG_A = 2;
+	static final int TAG_X = 3;
+	static final int TAG_Y = 4;
+	static final int TAG_F = 5;
+	static final int TAG_H = 6;
+	static final int TAG_Z = 7;
+
+	static final EAtom BEAM_FILE = EAtom.intern("beam_file");
+	static final EAtom FUNCTION = EAtom.intern("function");
+	static final EAtom NIL = EAtom.intern("nil");
+	static final EAtom NOFAIL = EAtom.intern("nofail");
+	static final EAtom EXTFUNC = EAtom.intern("extfunc");
+	static final EAtom TEST = EAtom.intern("test");
+	static final EAtom BIF = EAtom.intern("bif");
+	static final EAtom GC_BIF = EAtom.intern("gc_bif");
+	static final EAtom ARITHFBIF = EAtom.intern("arithfbif");
+	static final EAtom RAISE = EAtom.intern("raise");
+	static final EAtom INTEGER = EAtom.intern("integer");
+	static final EAtom ATOM = EAtom.intern("atom");
+	static final EAtom X = EAtom.intern("x");
+	static final EAtom Y = EAtom.intern("y");
+	static final EAtom F = EAtom.intern("f");
+	static final EAtom FR = EAtom.intern("fr");
+	static final EAtom CHAR = EAtom.intern("char");
+	static final EAtom FLOAT = EAtom.intern("float");
+	static final EAtom LIST = EAtom.intern("list");
+	static final EAtom ALLOC = EAtom.intern("alloc");
+	static final EAtom WORDS = EAtom.intern("words");
+	static final EAtom FLOATS = EAtom.intern("floats");
+	static final EAtom LITERAL = EAtom.intern("literal");
+	static final EAtom STRING = EAtom.intern("string");
+	static final EAtom FIELD_FLAGS = EAtom.intern("field_flags");
+
+	/** one .beam file being read */
+	static class Reader {
+		final byte[] data;
+		int pos;
+
+		EAtom module;
+		EAtom[] atoms;
+		ETuple[] imports;
+		ESeq exports = ERT.NIL;
+		EObject[] literals;
+		int[][] lambdas;
+		int strings, strings_len;
+		EObject attributes = ERT.NIL;
+		EObject comp_info = ERT.NIL;
+		int code, code_len;
+
+		/** entry label -> {M,F,A} of the local functions */
+		final Map<Integer, ETuple> entries = new HashMap<Integer, ETuple>();
+
+		Reader(byte[] data) {
+			this.data = data;
+		}
+
+		ETuple read() throws IOException {
+			if (data.length < 12 || int32(0) != 0x464F5231 /* FOR1 */
+					|| int32(8) != 0x4245414D /* BEAM */)
+				throw new IOException("not a beam file");
+
+			int end = Math.min(data.length, 8 + int32(4));
+			int atom_chunk = -1, import_chunk = -1, export_chunk = -1;
+			int literal_chunk = -1, lambda_chunk = -1, attr_chunk = -1;
+			int cinf_chunk = -1;
+			boolean utf8 = false;
+
+			for (int p = 12; p + 8 <= end;) {
+				int id = int32(p);
+				int len = int32(p + 4);
+				switch (id) {
+				case 0x41746F6D: /* Atom */
+					atom_chunk = p;
+					break;
+				case 0x41745538: /* AtU8 */
+					atom_chunk = p;
+					utf8 = true;
+					break;
+				case 0x436F6465: /* Code */
+					code = p + 8;
+					code_len = len;
+					break;
+				case 0x53747254: /* StrT */
+					strings = p + 8;
+					strings_len = len;
+					break;
+				case 0x496D7054: /* ImpT */
+					import_chunk = p;
+					break;
+				case 0x45787054: /* ExpT */
+					export_chunk = p;
+					break;
+				case 0x4C697454: /* LitT */
+					literal_chunk = p;
+					break;
+				case 0x46756E54: /* FunT */
+					lambda_chunk = p;
+					break;
+				case 0x41747472: /* Attr */
+					attr_chunk = p;
+					break;
+				case 0x43496E66: /* CInf */
+					cinf_chunk = p;
+					break;
+				}
+				p += 8 + ((len + 3) & ~3);
+			}
+
+			if (atom_chunk < 0 || code_len == 0)
+				throw new IOException("beam file has no atoms or code");
+
+			read_atoms(atom_chunk + 8, utf8);
+			module = atoms[1];
+			if (import_chunk >= 0)
+				read_imports(import_chunk + 8);
+			if (export_chunk >= 0)
+				read_exports(export_chunk + 8);
+			if (literal_chunk >= 0)
+				read_literals(literal_chunk + 8, int32(literal_chunk + 4));
+			if (lambda_chunk >= 0)
+				read_lambdas(lambda_chunk + 8);
+			if (attr_chunk >= 0)
+				attributes = term(attr_chunk + 8, int32(attr_chunk + 4));
+			if (cinf_chunk >= 0)
+				comp_info = term(cinf_chunk + 8, int32(cinf_chunk + 4));
+
+			return ETuple.make(BEAM_FILE, module, exports, attributes,
+					comp_info, read_code());
+		}
+
+		//
+		// chunks
+		//
+
+		private void read_atoms(int p, boolean utf8) throws IOException {
+			int count = int32(p);
+			p += 4;
+			atoms = new EAtom[count + 1];
+			for (int i = 1; i <= count; i++) {
+				int len = data[p++] & 0xff;
+				atoms[i] = EAtom.intern(new String(data, p, len, utf8 ? "UTF-8"
+						: "ISO-8859-1"));
+				p += len;
+			}
+		}
+
+		private void read_imports(int p) {
+			int count = int32(p);
+			imports = new ETuple[count];
+			for (int i = 0; i < count; i++, p += 12) {
+				imports[i] = ETuple.make(EXTFUNC, atoms[int32(p + 4)],
+						atoms[int32(p + 8)], ERT.box(int32(p + 12)));
+			}
+		}
+
+		private void read_exports(int p) {
+			int count = int32(p);
+			EObject[] exp = new EObject[count];
+			for (int i = 0; i < count; i++, p += 12) {
+				exp[i] = ETuple.make(atoms[int32(p + 4)], ERT.box(int32(p + 8)),
+						ERT.box(int32(p + 12)));
+			}
+			exports = ESeq.fromArray(exp);
+		}
+
+		private void read_lambdas(int p) {
+			int count = int32(p);
+			lambdas = new int[count][];
+			for (int i = 0; i < count; i++, p += 24) {
+				// {F, A, Label, Index, NumFree, OldUniq}
+				int[] fun = new int[6];
+				for (int j = 0; j < 6; j++) {
+					fun[j] = int32(p + 4 + 4 * j);
+				}
+				lambdas[i] = fun;
+			}
+		}
+
+		private void read_literals(int p, int len) throws IOException {
+			byte[] table = new byte[int32(p)];
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(data, p + 4, len - 4);
+				inflater.inflate(table);
+			} catch (DataFormatException e) {
+				throw new IOException("bad literal table: " + e.getMessage());
+			} finally {
+				inflater.end();
+			}
+
+			int count = int32(table, 0);
+			literals = new EObject[count];
+			for (int i = 0, q = 4; i < count; i++) {
+				int size = int32(table, q);
+				literals[i] = term(table, q + 4, size);
+				q += 4 + size;
+			}
+		}
+
+		private EObject term(int p, int len) throws IOException {
+			return term(data, p, len);
+		}
+
+		private static EObject term(byte[] bytes, int p, int len)
+				throws IOException {
+			try {
+				return OtpConverter.convert(new OtpInputStream(bytes, p, len, 0)
+						.read_any());
+			} catch (OtpErlangDecodeException e) {
+				throw new IOException("bad external term: " + e.getMessage());
+			}
+		}
+
+		//
+		// code
+		//
+
+		private ESeq read_code() throws IOException {
+			int sub_size = int32(code);
+			int end = code + code_len;
+			pos = code + 4 + sub_size;
+
+			// first decode everything, so that calls can refer to the
+			// entry points of functions further down
+			List<String> ops = new ArrayList<String>();
+			List<EObject[]> args = new ArrayList<EObject[]>();
+			ETuple last_info = null;
+
+			while (pos < end) {
+				int op = data[pos++] & 0xff;
+				if (op >= OP_NAMES.length || OP_NAMES[op] == null)
+					throw new IOException("unknown op-code " + op + " in "
+							+ module);
+				if (op == 3 /* int_code_end */)
+					break;
+
+				EObject[] a = new EObject[OP_ARITY[op]];
+				for (int i = 0; i < a.length; i++) {
+					a[i] = arg();
+				}
+
+				if (op == 2 /* func_info */) {
+					last_info = ETuple.make(module, atom_arg(a[1]), a[2]);
+				} else if (op == 1 /* label */ && last_info != null) {
+					entries.put(a[0].asInt(), last_info);
+					last_info = null;
+				}
+
+				ops.add(OP_NAMES[op]);
+				args.add(a);
+			}
+
+			// then split into functions at each func_info, which is
+			// preceded by the function's own label
+			List<EObject> functions = new ArrayList<EObject>();
+			List<EObject> insns = null;
+			EObject name = null, arity = null, entry = null;
+
+			for (int i = 0; i < ops.size(); i++) {
+				String op = ops.get(i);
+				EObject[] a = args.get(i);
+
+				if (op.equals("func_info")) {
+					EObject label = null;
+					if (insns != null && !insns.isEmpty()) {
+						label = insns.remove(insns.size() - 1);
+					}
+					if (name != null) {
+						functions.add(function(name, arity, entry, insns));
+					}
+					insns = new ArrayList<EObject>();
+					if (label != null)
+						insns.add(label);
+					name = atom_arg(a[1]);
+					arity = a[2];
+					entry = null;
+				} else if (op.equals("label") && entry == null
+						&& insns != null) {
+					entry = a[0];
+				}
+
+				if (insns == null) {
+					// labels before the first function
+					insns = new ArrayList<EObject>();
+				}
+				insns.add(insn(op, a));
+			}
+
+			if (insns != null && name != null) {
+				functions.add(function(name, arity, entry, insns));
+			}
+
+			return ESeq.fromArray(functions.toArray(new EObject[functions
+					.size()]));
+		}
+
+		private EObject function(EObject name, EObject arity, EObject entry,
+				List<EObject> insns) {
+			return ETuple.make(FUNCTION, name, arity, entry, ESeq
+					.fromArray(insns.toArray(new EObject[insns.size()])));
+		}
+
+		/** make one instruction the way beam_disasm writes it */
+		private EObject insn(String op, EObject[] a) throws IOException {
+			EAtom name = EAtom.intern(op);
+
+			if (a.length == 0)
+				return name;
+
+			if (op.equals("call") || op.equals("call_only")) {
+				return ETuple.make(name, a[0], local(a[1]));
+			} else if (op.equals("call_last")) {
+				return ETuple.make(name, a[0], local(a[1]), a[2]);
+			} else if (op.equals("call_ext") || op.equals("call_ext_only")) {
+				return ETuple.make(name, a[0], imports[a[1].asInt()]);
+			} else if (op.equals("call_ext_last")) {
+				return ETuple.make(name, a[0], imports[a[1].asInt()], a[2]);
+
+			} else if (op.equals("bif0")) {
+				return ETuple.make(BIF, bif_name(a[0]), NOFAIL, ERT.NIL, a[1]);
+			} else if (op.equals("bif1") || op.equals("bif2")) {
+				return ETuple.make(BIF, bif_name(a[1]), a[0], seq(a, 2,
+						a.length - 1), a[a.length - 1]);
+			} else if (op.startsWith("gc_bif")) {
+				return ETuple.make(GC_BIF, bif_name(a[2]), a[0], a[1], seq(a,
+						3, a.length - 1), a[a.length - 1]);
+			} else if (op.equals("fadd") || op.equals("fsub")
+					|| op.equals("fmul") || op.equals("fdiv")
+					|| op.equals("fnegate")) {
+				return ETuple.make(ARITHFBIF, name, a[0], seq(a, 1,
+						a.length - 1), a[a.length - 1]);
+
+			} else if (op.equals("make_fun2")) {
+				int[] fun = lambdas[a[0].asInt()];
+				return ETuple.make(name, entry(fun[2]), ERT.box(fun[3]), ERT
+						.box(fun[5]), ERT.box(fun[4]));
+			} else if (op.equals("raise")) {
+				return ETuple.make(RAISE, ETuple.make(F, ERT.box(0)), seq(a,
+						0, 2), ETuple.make(X, ERT.box(0)));
+			} else if (op.equals("bs_add")) {
+				return ETuple.make(name, a[0], seq(a, 1, 4), a[4]);
+			} else if (op.equals("bs_put_string")) {
+				return ETuple.make(name, a[0], ETuple.make(STRING, string(
+						a[1].asInt(), a[0].asInt())));
+			} else if (op.equals("put_string")) {
+				return ETuple.make(name, a[0], ETuple.make(STRING, string(
+						a[1].asInt(), a[0].asInt())), a[2]);
+			} else if (op.equals("bs_save2") || op.equals("bs_restore2")) {
+				return ETuple.make(name, a[0], atom_arg(a[1]));
+
+			} else if (op.equals("bs_put_integer")
+					|| op.equals("bs_put_binary")
+					|| op.equals("bs_put_float")) {
+				return tuple(name, a, 3);
+			} else if (op.equals("bs_init2") || op.equals("bs_init_bits")
+					|| op.equals("bs_private_append")) {
+				return tuple(name, a, 4);
+			} else if (op.equals("bs_append")) {
+				return tuple(name, a, 6);
+			} else if (op.equals("bs_put_utf8") || op.equals("bs_put_utf16")
+					|| op.equals("bs_put_utf32")) {
+				return tuple(name, a, 1);
+
+			} else if (is_test(op)) {
+				if (op.equals("bs_match_string")) {
+					int bits = a[2].asInt();
+					EObject str = ETuple.make(STRING, binary(a[3].asInt(),
+							(bits + 7) / 8));
+					return ETuple.make(TEST, name, a[0], ERT.NIL.cons(str)
+							.cons(a[2]).cons(a[1]));
+				}
+
+				int flags = -1;
+				if (op.equals("bs_get_integer2") || op.equals("bs_get_float2")
+						|| op.equals("bs_get_binary2")) {
+					flags = 5;
+				} else if (op.equals("bs_skip_bits2")) {
+					flags = 4;
+				} else if (op.startsWith("bs_get_utf")
+						|| op.startsWith("bs_skip_utf")) {
+					flags = 3;
+				}
+
+				EObject[] rest = new EObject[a.length - 1];
+				for (int i = 1; i < a.length; i++) {
+					rest[i - 1] = (i == flags) ? ETuple.make(FIELD_FLAGS, a[i])
+							: a[i];
+				}
+				return ETuple.make(TEST, name, a[0], ESeq.fromArray(rest));
+			}
+
+			return tuple(name, a, -1);
+		}
+
+		private static boolean is_test(String op) {
+			return op.startsWith("is_") || op.equals("test_arity")
+					|| op.equals("bs_start_match2")
+					|| op.equals("bs_get_integer2")
+					|| op.equals("bs_get_float2")
+					|| op.equals("bs_get_binary2")
+					|| op.equals("bs_skip_bits2")
+					|| op.equals("bs_test_tail2")
+					|| op.equals("bs_test_unit")
+					|| op.equals("bs_match_string")
+					|| op.startsWith("bs_get_utf")
+					|| op.startsWith("bs_skip_utf");
+		}
+
+		/** {Op, Args...}, with the flags argument at index flags wrapped */
+		private static ETuple tuple(EAtom name, EObject[] a, int flags) {
+			EObject[] t = new EObject[a.length + 1];
+			t[0] = name;
+			for (int i = 0; i < a.length; i++) {
+				t[i + 1] = (i == flags) ? ETuple.make(FIELD_FLAGS, a[i]) : a[i];
+			}
+			return ETuple.make(t);
+		}
+
+		private static ESeq seq(EObject[] a, int from, int to) {
+			ESeq res = ERT.NIL;
+			for (int i = to - 1; i >= from; i--) {
+				res = res.cons(a[i]);
+			}
+			return res;
+		}
+
+		/** {f,L} of a local function -> {M,F,A} */
+		private ETuple local(EObject label) throws IOException {
+			return entry(((ETuple) label).elm(2).asInt());
+		}
+
+		private ETuple entry(int label) throws IOException {
+			ETuple mfa = entries.get(label);
+			if (mfa == null)
+				throw new IOException("no function at label " + label + " in "
+						+ module);
+			return mfa;
+		}
+
+		private EObject bif_name(EObject index) {
+			return imports[index.asInt()].elm(3);
+		}
+
+		private static EObject atom_arg(EObject arg) {
+			if (arg instanceof ETuple && ((ETuple) arg).elm(1) == ATOM)
+				return ((ETuple) arg).elm(2);
+			return arg;
+		}
+
+		private EString string(int off, int len) throws IOException {
+			check_string(off, len);
+			return new EString(new String(data, strings + off, len,
+					"ISO-8859-1"));
+		}
+
+		private EBinary binary(int off, int len) throws IOException {
+			check_string(off, len);
+			byte[] bytes = new byte[len];
+			System.arraycopy(data, strings + off, bytes, 0, len);
+			return new EBinary(bytes);
+		}
+
+		private void check_string(int off, int len) throws IOException {
+			if (off < 0 || len < 0 || off + len > strings_len)
+				throw new IOException("string out of range in " + module);
+		}
+
+		//
+		// compact term encoding
+		//
+
+		/** decode one operand */
+		private EObject arg() throws IOException {
+			int b = data[pos++] & 0xff;
+			int tag = b & 7;
+
+			if (tag == TAG_Z) {
+				return extended(b);
+			}
+
+			EObject val = integer(b, tag == TAG_I);
+
+			switch (tag) {
+			case TAG_U:
+				return val;
+			case TAG_I:
+				return ETuple.make(INTEGER, val);
+			case TAG_A:
+				int index = val.asInt();
+				return index == 0 ? NIL : ETuple.make(ATOM, atoms[index]);
+			case TAG_X:
+				return ETuple.make(X, val);
+			case TAG_Y:
+				return ETuple.make(Y, val);
+			case TAG_F:
+				return ETuple.make(F, val);
+			default:
+				return ETuple.make(CHAR, val);
+			}
+		}
+
+		private int uint() throws IOException {
+			return arg().asInt();
+		}
+
+		private EObject integer(int b, boolean signed) throws IOException {
+			if ((b & 0x08) == 0) {
+				return ERT.box(b >>> 4);
+			}
+			if ((b & 0x10) == 0) {
+				return ERT.box(((b & 0xe0) << 3) | (data[pos++] & 0xff));
+			}
+
+			int len = (b >>> 5) + 2;
+			if (len == 9) {
+				len = uint() + 9;
+			}
+
+			if (len < 8) {
+				long val = signed ? data[pos] : (data[pos] & 0xff);
+				for (int i = 1; i < len; i++) {
+					val = (val << 8) | (data[pos + i] & 0xff);
+				}
+				pos += len;
+				return ERT.box(val);
+			}
+
+			byte[] bytes = new byte[len];
+			System.arraycopy(data, pos, bytes, 0, len);
+			pos += len;
+			return ERT.box(signed ? new BigInteger(bytes) : new BigInteger(1,
+					bytes));
+		}
+
+		private EObject extended(int b) throws IOException {
+			switch (b >>> 4) {
+			case 0: {
+				long bits = 0;
+				for (int i = 0; i < 8; i++) {
+					bits = (bits << 8) | (data[pos++] & 0xff);
+				}
+				return ETuple.make(FLOAT, ERT.box(Double.longBitsToDouble(bits)));
+			}
+			case 1: {
+				EObject[] elems = new EObject[uint()];
+				for (int i = 0; i < elems.length; i++) {
+					elems[i] = arg();
+				}
+				return ETuple.make(LIST, ESeq.fromArray(elems));
+			}
+			case 2:
+				return ETuple.make(FR, ERT.box(uint()));
+			case 3: {
+				EObject[] elems = new EObject[uint()];
+				for (int i = 0; i < elems.length; i++) {
+					int type = uint();
+					elems[i] = ETuple.make(type == 0 ? WORDS : FLOATS, ERT
+							.box(uint()));
+				}
+				return ETuple.make(ALLOC, ESeq.fromArray(elems));
+			}
+			case 4:
+				return ETuple.make(LITERAL, literals[uint()]);
+			default:
+				throw new IOException("bad extended tag " + b + " in " + module);
+			}
+		}
+
+		private int int32(int p) {
+			return int32(data, p);
+		}
+
+		private static int int32(byte[] bytes, int p) {
+			return ((bytes[p] & 0xff) << 24) | ((bytes[p + 1] & 0xff) << 16)
+					| ((bytes[p + 2] & 0xff) << 8) | (bytes[p + 3] & 0xff);
+		}
+	}
+
+}
@@ -0,0 +1,556 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.beam.analysis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import erjang.EAtom;
+import erjang.EObject;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.ESmall;
+import erjang.EString;
+import erjang.ETuple;
+import erjang.FunID;
+import erjang.beam.BeamOpcode;
+import erjang.beam.BlockVisitor;
+import erjang.beam.FunctionVisitor;
+import erjang.beam.ModuleAdapter;
+import erjang.beam.ModuleVisitor;
+
+/**
+ * Inlines local calls to small leaf functions, i.e. functions that make
+ * no calls and need no stack frame, by copying their code into the
+ * caller. This runs on the BEAM code before {@link BeamTypeAnalysis}, so
+ * the copy is analyzed with the types known at the call site, which in
+ * effect specializes it for that call.
+ * <p>
+ * A copy has its labels moved past all labels of the module, and its
+ * returns turned into jumps to the code after the call. If the callee
+ * fails to match a clause, the copy calls the original function, which
+ * then raises the <code>function_clause</code> error. Since the whole
+ * module must be seen before inlining, functions are held back until
+ * {@link #visitEnd()}.
+ */
+public class BeamInliner extends ModuleAdapter {
+
+	/** -Derjang.inline=false turns inlining off */
+	public static final boolean ENABLED = !"false".equals(System
+			.getProperty("erjang.inline"));
+
+	/** largest function that is inlined, in instructions */
+	static final int MAX_INLINE_SIZE = 20;
+
+	/**
+	 * functions are not grown beyond this many bytes of bytecode, the most
+	 * HotSpot will compile. Splitting is not relied on, as
+	 * {@link FunctionSplitter} cannot cut every function, and a function
+	 * that is already bigger is left alone.
+	 */
+	static final int MAX_FUNCTION_BYTES = 8000;
+
+	/**
+	 * bytes of woven bytecode per instruction, as measured on the
+	 * preloaded modules; a call costs more, since kilim must be able to
+	 * pause and resume the function there
+	 */
+	static final int INSN_BYTES = 10;
+	static final int CALL_BYTES = 84;
+
+	/** the analysis packs labels in 16 bits */
+	static final int MAX_LABEL = 0xffff;
+
+	static final EAtom F_ATOM = EAtom.intern("f");
+	static final EAtom Y_ATOM = EAtom.intern("y");
+	static final EAtom FR_ATOM = EAtom.intern("fr");
+	static final EAtom LITERAL_ATOM = EAtom.intern("literal");
+	static final EAtom JUMP_ATOM = EAtom.intern("jump");
+	static final EAtom CALL_ATOM = EAtom.intern("call");
+	static final EAtom CALL_ONLY_ATOM = EAtom.intern("call_only");
+	static final EAtom DEALLOCATE_ATOM = EAtom.intern("deallocate");
+
+	private EAtom moduleName;
+	private List<FV> functions = new ArrayList<FV>();
+	private int max_label;
+
+	public BeamInliner(ModuleVisitor mv) {
+		super(mv);
+	}
+
+	@Override
+	public void visitModule(EAtom name) {
+		this.moduleName = name;
+		super.visitModule(name);
+	}
+
+	@Override
+	public FunctionVisitor visitFunction(EAtom name, int arity, int startLabel) {
+		FV f = new FV(name, arity, startLabel);
+		functions.add(f);
+		return f;
+	}
+
+	@Override
+	public void visitEnd() {
+		if (ENABLED) {
+			inline_calls();
+		}
+
+		for (FV f : functions) {
+			f.accept(super.visitFunction(f.name, f.arity, f.startLabel));
+		}
+
+		super.visitEnd();
+	}
+
+	private void inline_calls() {
+		Map<FunID, FV> leaves = new HashMap<FunID, FV>();
+		for (FV f : functions) {
+			if (f.is_inlinable()) {
+				leaves.put(new FunID(moduleName, f.name, f.arity), f);
+			}
+		}
+
+		if (leaves.isEmpty())
+			return;
+
+		for (FV f : functions) {
+			if (!f.has_handlers()) {
+				f.inline_calls(leaves);
+			}
+		}
+	}
+
+	static BeamOpcode opcode(ETuple insn) {
+		return BeamOpcode.get(insn.elm(1).testAtom());
+	}
+
+	static ETuple jump(int label) {
+		return ETuple.make(JUMP_ATOM, ETuple.make(F_ATOM, ESmall.make(label)));
+	}
+
+	/** same as the analysis: does control not reach the next instruction */
+	static boolean is_term(BeamOpcode code) {
+		switch (code) {
+		case K_return:
+		case if_end:
+		case badmatch:
+		case case_end:
+		case call_last:
+		case call_only:
+		case call_ext_last:
+		case call_ext_only:
+		case func_info:
+		case apply_last:
+		case wait:
+		case loop_rec_end:
+		case select_tuple_arity:
+		case select_val:
+		case jump:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/** instructions that call out, and that the function may pause at */
+	static boolean is_call(BeamOpcode code) {
+		switch (code) {
+		case call:
+		case call_last:
+		case call_only:
+		case call_ext:
+		case call_ext_last:
+		case call_ext_only:
+		case call_fun:
+		case apply:
+		case apply_last:
+		case send:
+		case loop_rec:
+		case loop_rec_end:
+		case remove_message:
+		case wait:
+		case wait_timeout:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/** estimated bytecode of an instruction, in bytes */
+	static int bytes(ETuple insn) {
+		return is_call(opcode(insn)) ? CALL_BYTES : INSN_BYTES;
+	}
+
+	/** instructions that may be copied into another function */
+	static boolean is_inlinable(ETuple insn) {
+		switch (opcode(insn)) {
+		case test:
+			if (insn.elm(2).testAtom().getName().startsWith("bs_"))
+				return false;
+		case move:
+		case get_list:
+		case get_tuple_element:
+		case put_list:
+		case put_tuple:
+		case put:
+		case select_val:
+		case select_tuple_arity:
+		case jump:
+		case K_return:
+		case test_heap:
+		case gc_bif:
+		case bif:
+		case badmatch:
+		case case_end:
+		case if_end:
+			return !uses_frame(insn);
+		default:
+			return false;
+		}
+	}
+
+	/** does the operand mention a y or a float register */
+	static boolean uses_frame(EObject arg) {
+		ETuple t;
+		ESeq s;
+		if ((t = arg.testTuple()) != null) {
+			if (t.arity() == 2 && t.elm(1) == LITERAL_ATOM)
+				return false;
+			if (t.arity() == 2 && (t.elm(1) == Y_ATOM || t.elm(1) == FR_ATOM))
+				return true;
+			for (int i = 1; i <= t.arity(); i++) {
+				if (uses_frame(t.elm(i)))
+					return true;
+			}
+		} else if ((s = arg.testSeq()) != null && !(s instanceof EString)) {
+			for (; s != ERT.NIL; s = s.tail()) {
+				if (uses_frame(s.head()))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/** does the operand refer to <code>label</code> */
+	static boolean refers_to(EObject arg, int label) {
+		ETuple t;
+		ESeq s;
+		if ((t = arg.testTuple()) != null) {
+			if (t.arity() == 2 && t.elm(1) == LITERAL_ATOM)
+				return false;
+			if (t.arity() == 2 && t.elm(1) == F_ATOM)
+				return t.elm(2).asInt() == label;
+			for (int i = 1; i <= t.arity(); i++) {
+				if (refers_to(t.elm(i), label))
+					return true;
+			}
+		} else if ((s = arg.testSeq()) != null && !(s instanceof EString)) {
+			for (; s != ERT.NIL; s = s.tail()) {
+				if (refers_to(s.head(), label))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/** the operand with <code>offset</code> added to its labels */
+	static EObject relabel(EObject arg, int offset) {
+		ETuple t;
+		ESeq s;
+		if ((t = arg.testTuple()) != null) {
+			if (t.arity() == 2 && t.elm(1) == LITERAL_ATOM)
+				return t;
+			if (t.arity() == 2 && t.elm(1) == F_ATOM) {
+				int label = t.elm(2).asInt();
+				// {f,0} is "no fail label"
+				return label == 0 ? t : ETuple.make(F_ATOM, ESmall
+						.make(label + offset));
+			}
+
+			EObject[] elms = new EObject[t.arity()];
+			boolean changed = false;
+			for (int i = 0; i < elms.length; i++) {
+				elms[i] = relabel(t.elm(i + 1), offset);
+				changed |= elms[i] != t.elm(i + 1);
+			}
+			return changed ? ETuple.make(elms) : t;
+
+		} else if ((s = arg.testSeq()) != null && !(s instanceof EString)
+				&& s != ERT.NIL) {
+			EObject[] elms = s.toArray();
+			boolean changed = false;
+			for (int i = 0; i < elms.length; i++) {
+				EObject e = relabel(elms[i], offset);
+				changed |= e != elms[i];
+				elms[i] = e;
+			}
+			if (!changed)
+				return s;
+
+			ESeq res = ERT.NIL;
+			for (int i = elms.length - 1; i >= 0; i--) {
+				res = res.cons(elms[i]);
+			}
+			return res;
+		}
+		return arg;
+	}
+
+	static class Block implements BlockVisitor {
+		final int label;
+		final List<ETuple> insns;
+
+		Block(int label, List<ETuple> insns) {
+			this.label = label;
+			this.insns = insns;
+		}
+
+		@Override
+		public void visitInsn(BeamOpcode opcode, ETuple et) {
+			insns.add(et);
+		}
+
+		@Override
+		public void visitEnd() {
+		}
+
+		void accept(BlockVisitor vis) {
+			for (ETuple insn : insns) {
+				vis.visitInsn(opcode(insn), insn);
+			}
+			vis.visitEnd();
+		}
+	}
+
+	class FV implements FunctionVisitor {
+		final EAtom name;
+		final int arity;
+		final int startLabel;
+		List<Block> blocks = new ArrayList<Block>();
+
+		/** does the code jump to func_info on a failed match */
+		boolean fails_clause;
+
+		FV(EAtom name, int arity, int startLabel) {
+			this.name = name;
+			this.arity = arity;
+			this.startLabel = startLabel;
+		}
+
+		@Override
+		public BlockVisitor visitLabeledBlock(int label) {
+			max_label = Math.max(max_label, label);
+			Block b = new Block(label, new ArrayList<ETuple>());
+			blocks.add(b);
+			return b;
+		}
+
+		@Override
+		public void visitEnd() {
+		}
+
+		void accept(FunctionVisitor fv) {
+			for (Block b : blocks) {
+				b.accept(fv.visitLabeledBlock(b.label));
+			}
+			fv.visitEnd();
+		}
+
+		int size() {
+			int size = 0;
+			for (Block b : blocks) {
+				size += b.insns.size();
+			}
+			return size;
+		}
+
+		/** estimated bytecode of the function, in bytes */
+		int bytes() {
+			int bytes = 0;
+			for (Block b : blocks) {
+				for (ETuple insn : b.insns) {
+					bytes += BeamInliner.bytes(insn);
+				}
+			}
+			return bytes;
+		}
+
+		/**
+		 * estimated bytecode of a copy, which also calls the function
+		 * itself if it fails to match a clause
+		 */
+		int copy_bytes() {
+			int bytes = bytes() - INSN_BYTES;
+			return fails_clause ? bytes + CALL_BYTES : bytes;
+		}
+
+		/** labels used, lowest to highest */
+		int label_span() {
+			int lo = Integer.MAX_VALUE, hi = 0;
+			for (Block b : blocks) {
+				lo = Math.min(lo, b.label);
+				hi = Math.max(hi, b.label);
+			}
+			return hi - lo + 1;
+		}
+
+		/**
+		 * exception handlers cover code by its position, so code moved to
+		 * the end of such a function would escape them
+		 */
+		boolean has_handlers() {
+			for (Block b : blocks) {
+				for (ETuple insn : b.insns) {
+					BeamOpcode op = opcode(insn);
+					if (op == BeamOpcode.K_try || op == BeamOpcode.K_catch)
+						return true;
+				}
+			}
+			return false;
+		}
+
+		boolean is_inlinable() {
+			if (blocks.size() < 2)
+				return false;
+
+			Block info = blocks.get(0);
+			if (info.label != startLabel - 1 || info.insns.size() != 1
+					|| opcode(info.insns.get(0)) != BeamOpcode.func_info)
+				return false;
+
+			for (int i = 1; i < blocks.size(); i++) {
+				for (ETuple insn : blocks.get(i).insns) {
+					if (!BeamInliner.is_inlinable(insn))
+						return false;
+					fails_clause |= refers_to(insn, info.label);
+				}
+			}
+
+			return size() - 1 <= MAX_INLINE_SIZE;
+		}
+
+		void inline_calls(Map<FunID, FV> leaves) {
+			int bytes = bytes();
+			List<Block> done = new ArrayList<Block>();
+			LinkedList<Block> todo = new LinkedList<Block>(blocks);
+
+			next_block: while (!todo.isEmpty()) {
+				Block b = todo.removeFirst();
+
+				for (int k = 0; k < b.insns.size(); k++) {
+					ETuple call = b.insns.get(k);
+					BeamOpcode op = opcode(call);
+					if (op != BeamOpcode.call && op != BeamOpcode.call_only
+							&& op != BeamOpcode.call_last)
+						continue;
+
+					ETuple target = call.elm(3).testTuple();
+					FV callee = leaves.get(new FunID(target.elm(1).testAtom(),
+							target.elm(2).testAtom(), target.elm(3).asInt()));
+					if (callee == null || callee == this)
+						continue;
+
+					int callee_bytes = callee.copy_bytes();
+					if (bytes + callee_bytes > MAX_FUNCTION_BYTES
+							|| max_label + callee.label_span() + 1 >= MAX_LABEL)
+						continue;
+
+					Block cont = inline(b, k, callee, done);
+					bytes += callee_bytes;
+
+					if (cont != null) {
+						todo.addFirst(cont);
+					}
+					continue next_block;
+				}
+
+				done.add(b);
+			}
+
+			blocks = done;
+		}
+
+		/**
+		 * Replace the call at <code>b.insns[k]</code> with a copy of
+		 * <code>callee</code>, adding the blocks to <code>done</code>.
+		 *
+		 * @return the block holding the code after the call, or null for a
+		 *         tail call
+		 */
+		private Block inline(Block b, int k, FV callee, List<Block> done) {
+			ETuple call = b.insns.get(k);
+			BeamOpcode op = opcode(call);
+			boolean is_tail = op != BeamOpcode.call;
+
+			int offset = max_label + 1 - callee.blocks.get(0).label;
+			max_label += callee.label_span();
+			int cont_label = is_tail ? 0 : ++max_label;
+
+			List<ETuple> head = new ArrayList<ETuple>(b.insns.subList(0, k));
+			if (op == BeamOpcode.call_last) {
+				head.add(ETuple.make(DEALLOCATE_ATOM, call.elm(4)));
+			}
+			head.add(jump(callee.startLabel + offset));
+			done.add(new Block(b.label, head));
+
+			Block info = callee.blocks.get(0);
+			if (callee.fails_clause) {
+				// let the real function raise function_clause
+				List<ETuple> stub = new ArrayList<ETuple>();
+				if (is_tail) {
+					stub.add(ETuple.make(CALL_ONLY_ATOM, call.elm(2), call
+							.elm(3)));
+				} else {
+					stub.add(ETuple.make(CALL_ATOM, call.elm(2), call.elm(3)));
+					stub.add(jump(cont_label));
+				}
+				done.add(new Block(info.label + offset, stub));
+			}
+
+			for (int i = 1; i < callee.blocks.size(); i++) {
+				Block cb = callee.blocks.get(i);
+				List<ETuple> copy = new ArrayList<ETuple>(cb.insns.size());
+				for (ETuple insn : cb.insns) {
+					if (!is_tail && opcode(insn) == BeamOpcode.K_return) {
+						copy.add(jump(cont_label));
+					} else {
+						copy.add((ETuple) relabel(insn, offset));
+					}
+				}
+				done.add(new Block(cb.label + offset, copy));
+			}
+
+			if (is_tail)
+				return null;
+
+			List<ETuple> rest = new ArrayList<ETuple>(b.insns.subList(k + 1, b.insns
+					.size()));
+			if (rest.isEmpty() || !is_term(opcode(rest.get(rest.size() - 1)))) {
+				// b fell through to the next label
+				rest.add(jump(b.label + 1));
+			}
+			return new Block(cont_label, rest);
+		}
+	}
+}
@@ -21,10 +21,12 @@ package erjang.beam.analysis;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -112,6 +114,11 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 	static final EObject FIELD_FLAGS_ATOM = EAtom.intern("field_flags");
 	static final EObject EXTFUNC_ATOM = EAtom.intern("extfunc");
 	static final EObject APPLY_ATOM = EAtom.intern("apply");
+	static final EObject ERLANG_ATOM = EAtom.intern("erlang");
+	static final EObject MAKE_REF_ATOM = EAtom.intern("make_ref");
+	static final EObject MONITOR_ATOM = EAtom.intern("monitor");
+	static final EObject SETELEMENT_ATOM = EAtom.intern("setelement");
+	static final EObject GET_STACKTRACE_ATOM = EAtom.intern("get_stacktrace");
 
 	private static final ETuple X0_REG = ETuple.make(new EObject[] { X_ATOM,
 			new ESmall(0) });
@@ -127,6 +134,62 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 		return f;
 	}
 
+	/**
+	 * Code for the functions is generated when the whole module has been
+	 * analyzed, so that the functions that can never pause are known.
+	 */
+	@Override
+	public void visitEnd() {
+		if (INFER_PAUSABLE) {
+			infer_pausable();
+		}
+
+		for (FV f : functions) {
+			f.function_visit_end();
+		}
+
+		super.visitEnd();
+	}
+
+	/** -Derjang.infer_pausable=false compiles every function as pausable */
+	public static final boolean INFER_PAUSABLE = !"false".equals(System
+			.getProperty("erjang.infer_pausable"));
+
+	/**
+	 * A function can pause the process if it receives or sends, makes an
+	 * external, apply or fun call, calls a bif that can pause, or calls a
+	 * local function that can. Self tail calls count too, so that loops
+	 * can yield, and functions that call each other are taken to be
+	 * pausable; a function that cannot pause thus always returns after a
+	 * bounded amount of work.
+	 */
+	private void infer_pausable() {
+		Map<String, FV> by_name = new HashMap<String, FV>();
+		for (FV f : functions) {
+			by_name.put(f.name.getName() + "/" + f.arity, f);
+		}
+
+		boolean changed;
+		do {
+			changed = false;
+
+			next_function: for (FV f : functions) {
+				if (!f.pausable || f.pauses())
+					continue;
+
+				for (String callee : f.local_calls()) {
+					FV g = by_name.get(callee);
+					if (g == null || g.pausable)
+						continue next_function;
+				}
+
+				f.pausable = false;
+				changed = true;
+			}
+
+		} while (changed);
+	}
+
 	class FV extends FunctionAdapter implements BeamFunction {
 
 		BasicBlock makeBasicBlock(int label, int index) {
@@ -217,6 +280,15 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 
 		private boolean is_tail_recursive;
 
+		/** does the function call erlang:get_stacktrace/0 */
+		private boolean uses_stacktrace;
+
+		/** false for the parts of a function that has been split */
+		private boolean may_split = true;
+
+		/** can the function pause the process; see infer_pausable */
+		private boolean pausable = true;
+
 		public FV(FunctionVisitor fv, EAtom name, int arity, int startLabel) {
 			super(fv);
 			this.name = name;
@@ -271,15 +343,145 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 				this.dump();
 			}
 
-			function_visit_end();
+			if (FunctionSplitter.ENABLED && may_split) {
+				split();
+			}
 
+			// code is generated in BeamTypeAnalysis.visitEnd
+		}
+
+		/**
+		 * @return true if the function itself can pause, not counting the
+		 *         local functions it calls
+		 */
+		private boolean pauses() {
+			for (LabeledBlock block : lbs.values()) {
+				if (block.isDeadCode())
+					continue;
+
+				for (ETuple insn : block.insns) {
+					BeamOpcode opcode = BeamOpcode.get(insn.elm(1).testAtom());
+					switch (opcode) {
+					case call:
+						break;
+
+					case call_last:
+					case call_only: {
+						ETuple ft = insn.elm(3).testTuple();
+						int mod = ft.elm(1) == EXTFUNC_ATOM ? 2 : 1;
+						if (ft.elm(mod + 1) == name
+								&& ft.elm(mod + 2).asInt() == arity)
+							return true;
+						break;
+					}
+
+					case call_ext:
+					case call_ext_last:
+					case call_ext_only: {
+						ETuple ft = insn.elm(3).testTuple();
+						int mod = ft.elm(1) == EXTFUNC_ATOM ? 2 : 1;
+						if (ft.elm(mod) != ERLANG_ATOM)
+							return true;
+						String bif = ft.elm(mod + 1).testAtom().getName();
+						if (!BIFUtil.isDirectCall(bif, ft.elm(mod + 2).asInt())
+								|| BIFUtil.isPausable(bif))
+							return true;
+						break;
+					}
+
+					case bif:
+					case gc_bif:
+						if (BIFUtil.isPausable(insn.elm(2).testAtom().getName()))
+							return true;
+						break;
+
+					case apply:
+					case apply_last:
+					case call_fun:
+					case send:
+					case loop_rec:
+					case loop_rec_end:
+					case wait:
+					case wait_timeout:
+					case timeout:
+						return true;
+
+					default:
+						break;
+					}
+				}
+			}
+			return false;
+		}
+
+		/** name/arity of the local functions called */
+		private Set<String> local_calls() {
+			Set<String> res = new HashSet<String>();
+			for (LabeledBlock block : lbs.values()) {
+				if (block.isDeadCode())
+					continue;
+
+				for (ETuple insn : block.insns) {
+					switch (BeamOpcode.get(insn.elm(1).testAtom())) {
+					case call:
+					case call_last:
+					case call_only: {
+						ETuple ft = insn.elm(3).testTuple();
+						int mod = ft.elm(1) == EXTFUNC_ATOM ? 2 : 1;
+						res.add(ft.elm(mod + 1).testAtom().getName() + "/"
+								+ ft.elm(mod + 2).asInt());
+						break;
+					}
+					default:
+						break;
+					}
+				}
+			}
+			return res;
+		}
+
+		/**
+		 * If the function is too big for one method, compile it as
+		 * several functions instead; see {@link FunctionSplitter}.
+		 * 
+		 * @return true if the function was split
+		 */
+		private boolean split() {
+			SortedMap<Integer, List<ETuple>> blocks = new TreeMap<Integer, List<ETuple>>();
+			Map<Integer, TypeMap> entry = new HashMap<Integer, TypeMap>();
+			for (LabeledBlock block : lbs.values()) {
+				blocks.put(block.block_label, block.insns);
+				entry.put(block.block_label, block.initial);
+			}
+
+			if (FunctionSplitter.size(blocks) <= FunctionSplitter.MAX_FUNCTION_SIZE)
+				return false;
+
+			List<FunctionSplitter.Part> parts = new FunctionSplitter(
+					moduleName, name, arity, startLabel, blocks, entry).split();
+			if (parts == null)
+				return false;
+
+			// the function itself is analyzed again, without its helpers
+			FV main = new FV(super.fv, name, arity, startLabel);
+			functions.set(functions.indexOf(this), main);
+			main.may_split = false;
+			parts.get(0).accept(main);
+
+			for (FunctionSplitter.Part p : parts.subList(1, parts.size())) {
+				FV helper = (FV) visitFunction(p.name, p.arity, p.startLabel);
+				helper.may_split = false;
+				p.accept(helper);
+			}
+			return true;
 		}
 
 		private void function_visit_end() {
 
 			if (fv instanceof FunctionVisitor2) {
 				((FunctionVisitor2) fv).visitMaxs(this.max_xreg,
-						this.max_stack, this.max_freg, this.is_tail_recursive);
+						this.max_stack, this.max_freg, this.is_tail_recursive,
+						this.uses_stacktrace, this.pausable);
 			}
 
 			for (LabeledBlock block : this.lbs.values()) {
@@ -461,6 +663,14 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 								parmTypes(this.map[insn_idx], parms),
 								failLabel != 0);
 
+						if (is_arith(name.getName(), in)) {
+							Type type = getBifResult(name.getName(), parmTypes(
+									this.map[insn_idx], parms), failLabel != 0);
+							vis.visitArith(name.getName(), failLabel, in,
+									new Arg(out, type), bif);
+							break;
+						}
+
 						vis.visitInsn(opcode, failLabel, in, out, bif);
 						break;
 					}
@@ -706,7 +916,8 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 
 					case loop_rec: /* loop receive */
 						vis.visitReceive(opcode, decode_labelref(insn.elm(2)),
-								decode_out_arg(insn_idx, insn.elm(3)));
+								decode_out_arg(insn_idx, insn.elm(3)),
+								receive_ref(insn_idx));
 						break;
 
 					case remove_message:
@@ -714,10 +925,19 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 						break;
 
 					case timeout:
-					case loop_rec_end:
 						vis.visitInsn(opcode);
 						break;
 
+					case loop_rec_end:
+						vis.visitInsn(opcode, decode_labelref(insn.elm(2)),
+								null);
+						break;
+
+					case recv_mark:
+					case recv_set:
+						// the mark is made by make_ref, see receive_ref
+						break;
+
 					case wait:
 						vis.visitInsn(opcode, decode_labelref(insn.elm(2)),
 								null);
@@ -751,44 +971,79 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 						
 
 					
-					case bs_context_to_binary:
+					case bs_context_to_binary: {
+						vis.visitBS(opcode, decode_arg(insn_idx, insn.elm(2)),
+								null);
+						break;
+					}
+
+					// {bs_save2,{x,4},0} or {bs_restore2,{x,0},start}
 					case bs_restore2:
 					case bs_save2: {
-						vis.visitBS(opcode, decode_arg(insn_idx, insn.elm(2)));
-						// do nothing for now
+						vis.visitBS(opcode, decode_arg(insn_idx, insn.elm(2)),
+								decode_arg(insn_idx, insn.elm(3)));
 						break;
 					}
 					
 
+					// {bs_init2,{f,0},Size,Extra,Live,{field_flags,0},Dst}
+					case bs_init_bits:
 					case bs_init2: {
 						Arg size = decode_arg(insn_idx, insn.elm(3));
 						Arg flags = decode_arg(insn_idx, insn.elm(6));
 						Arg out = decode_out_arg(insn_idx, insn.elm(7));
 						
-						vis.visitInitBitString(size, flags, out);
+						vis.visitInitBitString(opcode, size, flags, out);
 						
 						break;
 					}
+
+					// {bs_append,{f,0},Size,Extra,Live,Unit,Bin,{field_flags,0},Dst}
+					case bs_append: {
+						Arg size = decode_arg(insn_idx, insn.elm(3));
+						Arg unit = decode_arg(insn_idx, insn.elm(6));
+						Arg bin = decode_arg(insn_idx, insn.elm(7));
+						Arg flags = decode_arg(insn_idx, insn.elm(8));
+						Arg out = decode_out_arg(insn_idx, insn.elm(9));
+
+						vis.visitBitStringAppend(opcode, bin, size, unit,
+								flags, out);
+						break;
+					}
+
+					// {bs_private_append,{f,0},Size,Unit,Bin,{field_flags,0},Dst}
+					case bs_private_append: {
+						Arg size = decode_arg(insn_idx, insn.elm(3));
+						Arg unit = decode_arg(insn_idx, insn.elm(4));
+						Arg bin = decode_arg(insn_idx, insn.elm(5));
+						Arg flags = decode_arg(insn_idx, insn.elm(6));
+						Arg out = decode_out_arg(insn_idx, insn.elm(7));
+
+						vis.visitBitStringAppend(opcode, bin, size, unit,
+								flags, out);
+						break;
+					}
 					
 					case bs_put_string: {
 						Arg str = decode_arg(insn_idx, insn.elm(3));
-						vis.visitBitStringPut(opcode, str, null, null);
+						vis.visitBitStringPut(opcode, str, null, null, null);
 						
 						break;
 					}
-						
+
+					// {bs_put_integer,{f,0},Size,Unit,{field_flags,0},Src}
+					case bs_put_float:
 					case bs_put_binary:
 					case bs_put_integer: {
 						Arg size = decode_arg(insn_idx, insn.elm(3));
-						Arg flags = decode_arg(insn_idx, insn.elm(4));
+						Arg unit = decode_arg(insn_idx, insn.elm(4));
+						Arg flags = decode_arg(insn_idx, insn.elm(5));
 						Arg value = decode_arg(insn_idx, insn.elm(6));
-						vis.visitBitStringPut(opcode, value, size, flags);
+						vis.visitBitStringPut(opcode, value, size, unit, flags);
 						
 						break;
 					}
-						
 
-					
 					default:
 						throw new Error("unhandled insn: " + insn);
 					}
@@ -815,6 +1070,193 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 				vis.visitCall(fun, args, is_tail, is_external);
 			}
 
+			/**
+			 * If every message that the receive at <code>insn_idx</code>
+			 * can accept must contain a reference made by
+			 * <code>make_ref()</code> or <code>monitor/2</code> before the
+			 * receive, then messages that
+			 * were in the mailbox when it was made need not be scanned. This
+			 * is what recv_mark/recv_set do in newer BEAM code.
+			 * 
+			 * @return the y register holding the reference, or null
+			 */
+			private Arg receive_ref(int insn_idx) {
+				int[] yref = new int[] { -1 };
+				if (!receive_guarded(this, insn_idx + 1, yref,
+						new HashSet<Integer>()) || yref[0] < 0) {
+					return null;
+				}
+
+				TypeMap current = this.map[insn_idx];
+				ETuple reg = ETuple.make(Y_ATOM, new ESmall(yref[0]));
+				if (!EREFERENCE_TYPE.equals(getType(current, reg))) {
+					return null;
+				}
+
+				return new Arg(Arg.Kind.Y, current.get_ypos(yref[0]),
+						EREFERENCE_TYPE);
+			}
+
+			/**
+			 * Check that all paths from <code>idx</code> in <code>lb</code>
+			 * to a remove_message pass an equality test on the same
+			 * reference-typed y register.
+			 */
+			private boolean receive_guarded(LabeledBlock lb, int idx,
+					int[] yref, Set<Integer> seen) {
+
+				if (lb == null || lb.isDeadCode())
+					return false;
+
+				for (; idx < lb.insns.size(); idx++) {
+					if (!seen.add((lb.block_label << 16) | idx))
+						return true;
+
+					ETuple insn = lb.insns.get(idx);
+					switch (BeamOpcode.get(insn.elm(1).testAtom())) {
+					case test_heap:
+						continue;
+
+					case move:
+						if (is_yreg(insn.elm(3)))
+							return false;
+						continue;
+
+					case get_tuple_element:
+						if (is_yreg(insn.elm(4)))
+							return false;
+						continue;
+
+					case get_list:
+						if (is_yreg(insn.elm(3)) || is_yreg(insn.elm(4)))
+							return false;
+						continue;
+
+					case bif:
+						if (is_yreg(insn.elm(5))
+								|| !receive_guarded_to(insn.elm(3), yref, seen))
+							return false;
+						continue;
+
+					case gc_bif:
+						if (is_yreg(insn.elm(6))
+								|| !receive_guarded_to(insn.elm(3), yref, seen))
+							return false;
+						continue;
+
+					case test: {
+						BeamOpcode test = BeamOpcode.get(insn.elm(2).testAtom());
+						if (test == BeamOpcode.is_eq_exact
+								|| test == BeamOpcode.is_eq) {
+							int y = ref_operand(lb.map[idx], insn.elm(4));
+							if (y >= 0) {
+								if (yref[0] >= 0 && yref[0] != y)
+									return false;
+								yref[0] = y;
+								// other clauses may still accept the message
+								return receive_guarded_to(insn.elm(3), yref,
+										seen);
+							}
+						}
+						if (!receive_guarded_to(insn.elm(3), yref, seen))
+							return false;
+						continue;
+					}
+
+					case jump:
+						return receive_guarded_to(insn.elm(2), yref, seen);
+
+					case select_val:
+					case select_tuple_arity: {
+						if (!receive_guarded_to(insn.elm(3), yref, seen))
+							return false;
+						ESeq cases = insn.elm(4).testTuple().elm(2).testSeq();
+						while (cases != ERT.NIL) {
+							if (!receive_guarded_to(cases.tail().head(), yref,
+									seen))
+								return false;
+							cases = cases.tail().tail();
+						}
+						return true;
+					}
+
+					case loop_rec_end:
+						// message was not accepted
+						return true;
+
+					default:
+						// remove_message, or something we don't understand
+						return false;
+					}
+				}
+
+				return receive_guarded(get_lb(lb.block_label + 1, false), 0,
+						yref, seen);
+			}
+
+			private boolean receive_guarded_to(EObject label, int[] yref,
+					Set<Integer> seen) {
+				int target = decode_labelref(label);
+				if (target == 0)
+					return true;
+				return receive_guarded(get_lb(target, false), 0, yref, seen);
+			}
+
+			private int ref_operand(TypeMap current, EObject operands) {
+				for (EObject op : operands.testSeq().toArray()) {
+					if (is_yreg(op)
+							&& EREFERENCE_TYPE.equals(getType(current, op))) {
+						return ((ETuple2) op).elem2.asInt();
+					}
+				}
+				return -1;
+			}
+
+			private boolean is_yreg(EObject src) {
+				return (src instanceof ETuple2)
+						&& ((ETuple2) src).elem1 == Y_ATOM;
+			}
+
+			/** is this a call to erlang:make_ref/0 or erlang:monitor/2 */
+			private boolean is_make_ref(ETuple insn) {
+				ETuple ft = insn.elm(3).testTuple();
+				if (ft == null || ft.arity() != 4
+						|| ft.elm(1) != EXTFUNC_ATOM
+						|| ft.elm(2) != ERLANG_ATOM)
+					return false;
+				return (ft.elm(3) == MAKE_REF_ATOM && ft.elm(4).asInt() == 0)
+						|| (ft.elm(3) == MONITOR_ATOM && ft.elm(4).asInt() == 2);
+			}
+
+			private boolean is_setelement(ETuple insn) {
+				ETuple ft = insn.elm(3).testTuple();
+				return ft != null && ft.arity() == 4
+						&& ft.elm(1) == EXTFUNC_ATOM
+						&& ft.elm(2) == ERLANG_ATOM
+						&& ft.elm(3) == SETELEMENT_ATOM
+						&& ft.elm(4).asInt() == 3;
+			}
+
+			private boolean is_get_stacktrace(ETuple insn) {
+				ETuple ft = insn.elm(3).testTuple();
+				return ft != null && ft.arity() == 4
+						&& ft.elm(1) == EXTFUNC_ATOM
+						&& ft.elm(2) == ERLANG_ATOM
+						&& ft.elm(3) == GET_STACKTRACE_ATOM
+						&& ft.elm(4).asInt() == 0;
+			}
+
+			/** is t one of the ETupleN types, as from getTupleType */
+			private boolean is_tuple_n(Type t) {
+				if (t == null || t.getSort() != Type.OBJECT)
+					return false;
+				String name = t.getInternalName();
+				String tuple = ETUPLE_TYPE.getInternalName();
+				return name.length() > tuple.length()
+						&& name.startsWith(tuple)
+						&& Character.isDigit(name.charAt(tuple.length()));
+			}
+
 			private void accept_2_test(BlockVisitor2 vis, ETuple insn,
 					int insn_idx) {
 
@@ -906,6 +1348,7 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 				case bs_get_binary2:
 				case bs_skip_bits2:
 				case bs_test_unit:
+				case bs_get_float2:
 					vis.visitBitStringTest(test, failLabel, args);
 					break;
 
@@ -1311,8 +1754,14 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 						// current = current.setx(0, EOBJECT_TYPE);
 						continue next_insn;
 
-					case loop_rec_end:
-					case timeout: {
+					case loop_rec_end: {
+						current = branch(current, insn.elm(2), insn_idx);
+						continue next_insn;
+					}
+
+					case timeout:
+					case recv_mark:
+					case recv_set: {
 						// System.err.println(insn);
 						continue next_insn;
 					}
@@ -1411,7 +1860,19 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 					case call_ext: {
 						int argCount = insn.elm(2).asInt();
 						current.touchx(0, argCount);
-						current = current.setx(0, EOBJECT_TYPE);
+						if (code == BeamOpcode.call_ext && is_get_stacktrace(insn)) {
+							uses_stacktrace = true;
+						}
+						if (code == BeamOpcode.call_ext && is_make_ref(insn)) {
+							current = current.setx(0, EREFERENCE_TYPE);
+						} else if (code == BeamOpcode.call_ext
+								&& is_setelement(insn)
+								&& is_tuple_n(current.getx(1))) {
+							// same arity as the original
+							current = current.setx(0, current.getx(1));
+						} else {
+							current = current.setx(0, EOBJECT_TYPE);
+						}
 						continue next_insn;
 					}
 
@@ -1425,6 +1886,9 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 					case call_ext_last:
 					case call_ext_only:
 						is_tail_recursive = true;
+						if (is_get_stacktrace(insn)) {
+							uses_stacktrace = true;
+						}
 						int argCount = insn.elm(2).asInt();
 						current.touchx(0, argCount);
 						continue next_insn;
@@ -1446,8 +1910,8 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 					}
 						
 					case bs_context_to_binary: {
-						Type ctx = getType(current, insn.elm(2));
-						current = current.setx(0, EBINARY_TYPE);
+						// a no-op unless it holds a match state
+						current = setType(current, insn.elm(2), EOBJECT_TYPE);
 						continue next_insn;
 					}
 
@@ -1462,19 +1926,31 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 
 
 					case bs_init2: {
-						// int size = insn.elm(3).asInt();
 						current = setType(current, insn.elm(7), EBINARY_TYPE);
 						continue next_insn;
 					}
 
-					case bs_put_string: {
+					case bs_init_bits: {
+						current = setType(current, insn.elm(7), EBITSTRING_TYPE);
+						continue next_insn;
+					}
+
+					case bs_append: {
+						current = setType(current, insn.elm(9), EBITSTRING_TYPE);
 						continue next_insn;
 					}
 
-					case bs_put_binary: {
+					case bs_private_append: {
+						current = setType(current, insn.elm(7), EBITSTRING_TYPE);
 						continue next_insn;
 					}
 
+					case bs_put_string: {
+						continue next_insn;
+					}
+
+					case bs_put_float:
+					case bs_put_binary:
 					case bs_put_integer: {
 						continue next_insn;
 					}
@@ -1531,6 +2007,7 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 				case apply_last:
 
 				case wait:
+				case loop_rec_end:
 				case select_tuple_arity:
 				case select_val:
 
@@ -1565,7 +2042,50 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 
 			private Type getBifResult(String name, Type[] parmTypes,
 					boolean is_guard) {
-				return BIFUtil.getBifResult(name, parmTypes, is_guard);
+				Type res = BIFUtil.getBifResult(name, parmTypes, is_guard);
+
+				// +, - and * of two integers is an integer; the bifs
+				// themselves are only declared to return ENumber
+				if (ENUMBER_TYPE.equals(res) && parmTypes.length == 2
+						&& is_arith_op(name) && is_integer(parmTypes[0])
+						&& is_integer(parmTypes[1])) {
+					return EINTEGER_TYPE;
+				}
+
+				return res;
+			}
+
+			private boolean is_arith_op(String name) {
+				return "+".equals(name) || "-".equals(name)
+						|| "*".equals(name);
+			}
+
+			/**
+			 * An integer +, - or * that can be compiled with an inline
+			 * fast path for small operands; i.e. one where no operand is
+			 * known to be a float.
+			 */
+			private boolean is_arith(String name, Arg[] in) {
+				if (in.length != 2 || !is_arith_op(name))
+					return false;
+
+				for (int i = 0; i < in.length; i++) {
+					if (in[i].kind == Kind.F
+							|| Type.DOUBLE_TYPE.equals(in[i].type)
+							|| EDOUBLE_TYPE.equals(in[i].type))
+						return false;
+					if (in[i].kind == Kind.IMMEDIATE
+							&& !ESMALL_TYPE.equals(in[i].type))
+						return false;
+				}
+
+				return true;
+			}
+
+			private boolean is_integer(Type t) {
+				return ESMALL_TYPE.equals(t) || EBIG_TYPE.equals(t)
+						|| EINTEGER_TYPE.equals(t)
+						|| Type.INT_TYPE.equals(t);
 			}
 
 			private Type[] parmTypes(TypeMap current, ESeq args) {
@@ -1710,16 +2230,7 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 						throw new Error("matching without a state");
 					}
 
-					ETuple tup;
-					if ((tup = args[3].testTuple()) != null) {
-						if (tup.elm(1) == INTEGER_ATOM
-								&& tup.elm(2).asInt() <= 32) {
-							current = setType(current, args[5], Type.INT_TYPE);
-							return current;
-						}
-					}
-
-					current = setType(current, args[5], ENUMBER_TYPE);
+					current = setType(current, args[5], EINTEGER_TYPE);
 					return current;
 				}
 
@@ -1728,7 +2239,8 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 						throw new Error("matching without a state");
 					}
 
-					current = setType(current, args[5], EBINARY_TYPE);
+					// a bitstring, unless the unit is a multiple of 8
+					current = setType(current, args[5], EBITSTRING_TYPE);
 					return current;
 				}
 
@@ -1737,7 +2249,7 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 						throw new Error("matching without a state");
 					}
 
-					current = setType(current, args[5], Type.DOUBLE_TYPE);
+					current = setType(current, args[5], EDOUBLE_TYPE);
 					return current;
 				}
 
@@ -0,0 +1,477 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.beam.analysis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.objectweb.asm.Type;
+
+import erjang.EAtom;
+import erjang.EObject;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.ESmall;
+import erjang.EString;
+import erjang.ETuple;
+import erjang.beam.BlockVisitor;
+import erjang.beam.FunctionVisitor;
+
+/**
+ * Splits a function that is too big for one JVM method into parts, each
+ * compiled as a function of its own. A method can hold no more than 64KB
+ * of bytecode, and HotSpot does not JIT compile methods of more than
+ * 8000 bytes, so a big function would otherwise fail to load or run
+ * interpreted.
+ * <p>
+ * The blocks of the function are cut into runs of consecutive labels.
+ * The first run stays in the function, and every other run becomes a
+ * helper function, <code>Name$Label</code>. A jump from one run into
+ * another becomes a tail call of the helper, which passes the x
+ * registers as arguments; if a helper can be entered at more than one
+ * label, an extra argument tells it where, and it starts with a
+ * <code>select_val</code> on that. Since the tail call goes through the
+ * usual trampoline, a loop across parts does not grow the stack.
+ * <p>
+ * The analysis of the whole function decides where it can be cut: only
+ * at labels where no stack frame is allocated and no float register is
+ * in use, where the x registers that are defined have no known type,
+ * so the helper compiles them as the function would, and which are not
+ * part of a receive loop. Runs that cannot be entered are merged with
+ * the run before them.
+ */
+public class FunctionSplitter {
+
+	/** -Derjang.split=false turns splitting off */
+	public static final boolean ENABLED = !"false".equals(System
+			.getProperty("erjang.split"));
+
+	/**
+	 * functions of more than this many instructions are split; at about 14
+	 * bytes of bytecode an instruction, that is what HotSpot will compile
+	 */
+	static final int MAX_FUNCTION_SIZE = 500;
+
+	/** parts are cut at the first possible label after this many instructions */
+	static final int PART_SIZE = 200;
+
+	/** EProc passes at most 7 arguments to a tail call */
+	static final int MAX_ARGS = 7;
+
+	/** the analysis packs labels in 16 bits */
+	static final int MAX_LABEL = 0xffff;
+
+	static final EAtom F_ATOM = EAtom.intern("f");
+	static final EAtom X_ATOM = EAtom.intern("x");
+	static final EAtom NIL_ATOM = EAtom.intern("nil");
+	static final EAtom LIST_ATOM = EAtom.intern("list");
+	static final EAtom INTEGER_ATOM = EAtom.intern("integer");
+	static final EAtom LITERAL_ATOM = EAtom.intern("literal");
+	static final EAtom MOVE_ATOM = EAtom.intern("move");
+	static final EAtom SELECT_VAL_ATOM = EAtom.intern("select_val");
+	static final EAtom CALL_ONLY_ATOM = EAtom.intern("call_only");
+
+	/** a function that the split function is compiled as */
+	static class Part {
+		final EAtom name;
+		final int arity;
+		final int startLabel;
+
+		/** the argument telling where to enter, or -1 */
+		int selector = -1;
+
+		final SortedMap<Integer, List<ETuple>> blocks = new TreeMap<Integer, List<ETuple>>();
+
+		/** label of the code entering another part at a label */
+		final Map<Integer, Integer> stubs = new HashMap<Integer, Integer>();
+
+		/** label of the tail call to another part */
+		final Map<EAtom, Integer> calls = new HashMap<EAtom, Integer>();
+
+		Part(EAtom name, int arity, int startLabel) {
+			this.name = name;
+			this.arity = arity;
+			this.startLabel = startLabel;
+		}
+
+		void accept(FunctionVisitor fv) {
+			for (Map.Entry<Integer, List<ETuple>> b : blocks.entrySet()) {
+				BlockVisitor vis = fv.visitLabeledBlock(b.getKey());
+				for (ETuple insn : b.getValue()) {
+					vis.visitInsn(BeamInliner.opcode(insn), insn);
+				}
+				vis.visitEnd();
+			}
+			fv.visitEnd();
+		}
+	}
+
+	private final EAtom module;
+	private final EAtom name;
+	private final int arity;
+	private final int startLabel;
+	private final SortedMap<Integer, List<ETuple>> blocks;
+	private final Map<Integer, TypeMap> entry;
+
+	private int func_info = -1;
+	private int next_label;
+
+	/** labels of receive loops */
+	private final Set<Integer> pinned = new HashSet<Integer>();
+
+	/**
+	 * @param entry
+	 *            the type map on entry to each block, or null if the block
+	 *            is not reached
+	 */
+	FunctionSplitter(EAtom module, EAtom name, int arity, int startLabel,
+			SortedMap<Integer, List<ETuple>> blocks, Map<Integer, TypeMap> entry) {
+		this.module = module;
+		this.name = name;
+		this.arity = arity;
+		this.startLabel = startLabel;
+		this.blocks = blocks;
+		this.entry = entry;
+	}
+
+	static int size(SortedMap<Integer, List<ETuple>> blocks) {
+		int size = 0;
+		for (List<ETuple> insns : blocks.values()) {
+			size += insns.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the function, followed by its helpers, or null if it cannot
+	 *         be split
+	 */
+	List<Part> split() {
+		for (Map.Entry<Integer, List<ETuple>> b : blocks.entrySet()) {
+			for (ETuple insn : b.getValue()) {
+				switch (BeamInliner.opcode(insn)) {
+				case func_info:
+					func_info = b.getKey();
+					break;
+				case loop_rec:
+				case loop_rec_end:
+				case wait:
+				case wait_timeout:
+					labels(insn, pinned);
+					break;
+				}
+			}
+		}
+		if (func_info == -1)
+			return null;
+
+		// the function itself keeps only the code up to the first cut,
+		// since it also gets the code that enters the other parts
+		TreeSet<Integer> bounds = new TreeSet<Integer>();
+		int size = 0;
+		for (Map.Entry<Integer, List<ETuple>> b : blocks.entrySet()) {
+			if ((bounds.isEmpty() || size >= PART_SIZE)
+					&& can_enter(b.getKey())) {
+				bounds.add(b.getKey());
+				size = 0;
+			}
+			size += b.getValue().size();
+		}
+
+		// merge runs until every jump between two of them can be a call
+		Map<Integer, SortedSet<Integer>> entries;
+		merge: while (true) {
+			entries = new HashMap<Integer, SortedSet<Integer>>();
+			for (int label : blocks.keySet()) {
+				int from = part_of(bounds, label);
+				for (int target : targets(label)) {
+					int to = part_of(bounds, target);
+					if (to == from || target == func_info)
+						continue;
+
+					if (to == 0 || !can_enter(target)) {
+						bounds.remove(Math.max(from, to));
+						continue merge;
+					}
+
+					SortedSet<Integer> in = entries.get(to);
+					if (in == null)
+						entries.put(to, in = new TreeSet<Integer>());
+					in.add(target);
+				}
+			}
+			break;
+		}
+
+		if (entries.isEmpty())
+			return null;
+
+		next_label = blocks.lastKey() + 1;
+
+		Map<Integer, Part> parts = new TreeMap<Integer, Part>();
+		parts.put(0, new Part(name, arity, startLabel));
+		for (int key : bounds) {
+			SortedSet<Integer> in = entries.get(key);
+			if (in == null)
+				continue;
+
+			int regs = 0;
+			for (int label : in) {
+				regs = Math.max(regs, xregs(label));
+			}
+
+			EAtom helper = EAtom.intern(name.getName() + "$" + key);
+			Part p;
+			if (in.size() == 1) {
+				p = new Part(helper, regs, in.first());
+			} else {
+				p = new Part(helper, regs + 1, next_label++);
+				p.selector = regs;
+				p.blocks.put(p.startLabel, select(p.selector, key - 1, in));
+			}
+
+			// the helper raises function_clause like the function did
+			p.blocks.put(key - 1, blocks.get(func_info));
+			parts.put(key, p);
+		}
+
+		for (Map.Entry<Integer, List<ETuple>> b : blocks.entrySet()) {
+			int key = part_of(bounds, b.getKey());
+			Part p = parts.get(key);
+			if (p == null)
+				continue;
+
+			List<ETuple> insns = new ArrayList<ETuple>(b.getValue());
+			int next = b.getKey() + 1;
+			if (!BeamInliner.is_term(BeamInliner.opcode(insns.get(insns
+					.size() - 1)))
+					&& blocks.containsKey(next)
+					&& part_of(bounds, next) != key) {
+				insns.add(BeamInliner.jump(next));
+			}
+
+			Map<Integer, Integer> map = new HashMap<Integer, Integer>();
+			for (int i = 0; i < insns.size(); i++) {
+				Set<Integer> targets = new HashSet<Integer>();
+				labels(insns.get(i), targets);
+				for (int target : targets) {
+					int to = part_of(bounds, target);
+					if (to == key || map.containsKey(target)
+							|| !blocks.containsKey(target))
+						continue;
+
+					if (target == func_info) {
+						map.put(target, key - 1);
+					} else {
+						map.put(target, stub(p, target, parts.get(to)));
+					}
+				}
+				if (!map.isEmpty()) {
+					insns.set(i, (ETuple) relabel(insns.get(i), map));
+				}
+			}
+
+			p.blocks.put(b.getKey(), insns);
+		}
+
+		if (next_label > MAX_LABEL)
+			return null;
+
+		return new ArrayList<Part>(parts.values());
+	}
+
+	/** can a helper function start at the label */
+	private boolean can_enter(int label) {
+		TypeMap map = entry.get(label);
+		if (map == null || map.stacksize != 0 || map.has_fregs()
+				|| label == startLabel || label == func_info
+				|| pinned.contains(label))
+			return false;
+
+		// leave room for the selector
+		int regs = xregs(label);
+		if (regs >= MAX_ARGS)
+			return false;
+
+		for (int i = 0; i < regs; i++) {
+			Type t = map.peekx(i);
+			if (t != null && !t.equals(BeamTypeAnalysis.EOBJECT_TYPE))
+				return false;
+		}
+		return true;
+	}
+
+	/** the number of x registers to pass on entry at the label */
+	private int xregs(int label) {
+		TypeMap map = entry.get(label);
+		int regs = map.max_xreg();
+		return regs == 1 && map.peekx(0) == null ? 0 : regs;
+	}
+
+	/** the run that the label is in, by its first label */
+	private static int part_of(TreeSet<Integer> bounds, int label) {
+		Integer key = bounds.floor(label);
+		return key == null ? 0 : key;
+	}
+
+	/** labels that the block jumps or falls through to */
+	private Set<Integer> targets(int label) {
+		List<ETuple> insns = blocks.get(label);
+		Set<Integer> res = new HashSet<Integer>();
+		for (ETuple insn : insns) {
+			labels(insn, res);
+		}
+		if (!BeamInliner.is_term(BeamInliner.opcode(insns.get(insns.size() - 1)))
+				&& blocks.containsKey(label + 1)) {
+			res.add(label + 1);
+		}
+		res.retainAll(blocks.keySet());
+		return res;
+	}
+
+	/** the label of a block in <code>from</code> entering <code>to</code> at <code>target</code> */
+	private int stub(Part from, int target, Part to) {
+		Integer label = from.stubs.get(target);
+		if (label != null)
+			return label;
+
+		label = next_label++;
+		List<ETuple> insns = new ArrayList<ETuple>();
+		TypeMap map = entry.get(target);
+		int regs = to.selector == -1 ? to.arity : to.selector;
+		for (int i = 0; i < regs; i++) {
+			if (map.peekx(i) == null)
+				insns.add(ETuple.make(MOVE_ATOM, NIL_ATOM, x(i)));
+		}
+
+		if (to.selector == -1) {
+			insns.add(call(to));
+		} else {
+			// the stubs for one helper share its call
+			Integer call = from.calls.get(to.name);
+			if (call == null) {
+				call = next_label++;
+				List<ETuple> block = new ArrayList<ETuple>();
+				block.add(call(to));
+				from.blocks.put(call, block);
+				from.calls.put(to.name, call);
+			}
+			insns.add(ETuple.make(MOVE_ATOM, ETuple.make(INTEGER_ATOM,
+					ESmall.make(target)), x(to.selector)));
+			insns.add(BeamInliner.jump(call));
+		}
+
+		from.blocks.put(label, insns);
+		from.stubs.put(target, label);
+		return label;
+	}
+
+	private ETuple call(Part to) {
+		return ETuple.make(CALL_ONLY_ATOM, ESmall.make(to.arity), ETuple.make(
+				module, to.name, ESmall.make(to.arity)));
+	}
+
+	private static List<ETuple> select(int reg, int fail, SortedSet<Integer> in) {
+		ESeq cases = ERT.NIL;
+		for (int label : in) {
+			cases = cases.cons(ETuple.make(F_ATOM, ESmall.make(label)));
+			cases = cases.cons(ETuple.make(INTEGER_ATOM, ESmall.make(label)));
+		}
+
+		List<ETuple> insns = new ArrayList<ETuple>();
+		insns.add(ETuple.make(SELECT_VAL_ATOM, x(reg), ETuple.make(F_ATOM,
+				ESmall.make(fail)), ETuple.make(LIST_ATOM, cases)));
+		return insns;
+	}
+
+	private static ETuple x(int reg) {
+		return ETuple.make(X_ATOM, ESmall.make(reg));
+	}
+
+	/** add the labels that the operand refers to */
+	static void labels(EObject arg, Set<Integer> out) {
+		ETuple t;
+		ESeq s;
+		if ((t = arg.testTuple()) != null) {
+			if (t.arity() == 2 && t.elm(1) == LITERAL_ATOM)
+				return;
+			if (t.arity() == 2 && t.elm(1) == F_ATOM) {
+				out.add(t.elm(2).asInt());
+				return;
+			}
+			for (int i = 1; i <= t.arity(); i++) {
+				labels(t.elm(i), out);
+			}
+		} else if ((s = arg.testSeq()) != null && !(s instanceof EString)) {
+			for (; s != ERT.NIL; s = s.tail()) {
+				labels(s.head(), out);
+			}
+		}
+	}
+
+	/** the operand with its labels replaced as in <code>map</code> */
+	static EObject relabel(EObject arg, Map<Integer, Integer> map) {
+		ETuple t;
+		ESeq s;
+		if ((t = arg.testTuple()) != null) {
+			if (t.arity() == 2 && t.elm(1) == LITERAL_ATOM)
+				return t;
+			if (t.arity() == 2 && t.elm(1) == F_ATOM) {
+				Integer label = map.get(t.elm(2).asInt());
+				return label == null ? t : ETuple.make(F_ATOM, ESmall
+						.make(label));
+			}
+
+			EObject[] elms = new EObject[t.arity()];
+			boolean changed = false;
+			for (int i = 0; i < elms.length; i++) {
+				elms[i] = relabel(t.elm(i + 1), map);
+				changed |= elms[i] != t.elm(i + 1);
+			}
+			return changed ? ETuple.make(elms) : t;
+
+		} else if ((s = arg.testSeq()) != null && !(s instanceof EString)
+				&& s != ERT.NIL) {
+			EObject[] elms = s.toArray();
+			boolean changed = false;
+			for (int i = 0; i < elms.length; i++) {
+				EObject e = relabel(elms[i], map);
+				changed |= e != elms[i];
+				elms[i] = e;
+			}
+			if (!changed)
+				return s;
+
+			ESeq res = ERT.NIL;
+			for (int i = elms.length - 1; i >= 0; i--) {
+				res = res.cons(elms[i]);
+			}
+			return res;
+		}
+		return arg;
+	}
+}
@@ -286,6 +286,20 @@ class TypeMap {
 		}
 	}
 
+	/** the type of an x register, without counting it as a use */
+	Type peekx(int reg) {
+		return reg < xregs.length ? xregs[reg] : null;
+	}
+
+	/** is any float register defined */
+	boolean has_fregs() {
+		for (int i = 0; i < fregs.length; i++) {
+			if (fregs[i] != null)
+				return true;
+		}
+		return false;
+	}
+
 	public Type getf(int reg) {
 		bb.use_fr(reg);
 
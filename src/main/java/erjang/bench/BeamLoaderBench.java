@@ -0,0 +1,87 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.bench;
+
+import java.io.File;
+import java.io.FilenameFilter;
+
+import erjang.beam.BeamLoader;
+import erjang.beam.Compiler;
+import erjang.beam.DirClassRepo;
+import erjang.beam.ErlangBeamDisLoader;
+import erjang.beam.JavaBeamLoader;
+
+/**
+ * Time to read, and then to compile, every .beam file in a directory;
+ * either in-process (<code>java</code>), or through an external
+ * <code>beam_loader</code> node (<code>erlang</code>):
+ *
+ * <pre>
+ * java -cp erjang-0.1.jar erjang.bench.BeamLoaderBench src/main/erl/preloaded/ebin java
+ * java -cp erjang-0.1.jar erjang.bench.BeamLoaderBench src/main/erl/preloaded/ebin erlang
+ * </pre>
+ */
+public class BeamLoaderBench {
+
+	static final int ROUNDS = 10;
+
+	public static void main(String[] args) throws Exception {
+		File dir = new File(args.length > 0 ? args[0]
+				: "src/main/erl/preloaded/ebin");
+		String mode = args.length > 1 ? args[1] : "java";
+
+		// must be set before the compiler picks its loader
+		System.setProperty("erjang.beam.loader", mode);
+
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File d, String name) {
+				return name.endsWith(".beam");
+			}
+		});
+
+		BeamLoader loader = mode.equals("erlang") ? new ErlangBeamDisLoader()
+				: new JavaBeamLoader();
+
+		// warm up, and then read everything ROUNDS times
+		for (File f : files) {
+			loader.load(f);
+		}
+		long t0 = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			for (File f : files) {
+				loader.load(f);
+			}
+		}
+		long read = (System.nanoTime() - t0) / ROUNDS;
+
+		File out = new File(System.getProperty("java.io.tmpdir"),
+				"beam_loader_bench");
+		Compiler compiler = new Compiler(new DirClassRepo(out));
+		long t1 = System.nanoTime();
+		for (File f : files) {
+			compiler.compile(f);
+		}
+		long compile = System.nanoTime() - t1;
+
+		System.out.println(mode + ": " + files.length + " files read in "
+				+ read / 1000 + "us (" + read / files.length / 1000
+				+ "us per file); compiled in " + compile / 1000000 + "ms");
+	}
+}
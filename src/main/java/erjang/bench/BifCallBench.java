@@ -0,0 +1,115 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.bench;
+
+import java.io.File;
+
+import kilim.Pausable;
+import erjang.EAtom;
+import erjang.EFun;
+import erjang.EModule;
+import erjang.EObject;
+import erjang.EProc;
+import erjang.ERT;
+import erjang.ESmall;
+import erjang.ETuple;
+import erjang.FunID;
+import erjang.beam.Compiler;
+import erjang.m.erlang.ErlBif;
+
+/**
+ * Time per <code>erlang:element(N, T)</code>, called through the EFun
+ * that an import is bound to, as compiled code used to, and directly on
+ * the best-typed overload, as it does now:
+ *
+ * <pre>
+ * java -cp erjang-0.1.jar -Derjpath=src/main/erl/preloaded/ebin erjang.bench.BifCallBench 10000000
+ * </pre>
+ */
+public class BifCallBench {
+
+	static class Caller extends EFun {
+		final EFun imported;
+		final int calls;
+		long import_ns, direct_ns;
+
+		Caller(EFun imported, int calls) {
+			this.imported = imported;
+			this.calls = calls;
+		}
+
+		@Override
+		public int arity() {
+			return 0;
+		}
+
+		@Override
+		public EObject go(EProc proc) throws Pausable {
+			ESmall[] idx = new ESmall[] { ERT.box(1), ERT.box(2), ERT.box(3) };
+			ETuple tup = ETuple.make(ERT.box(1), ERT.box(2), ERT.box(3));
+
+			// sum the results, so that the loops are not optimized away
+			EObject[] args = new EObject[] { null, tup };
+			long sum = 0;
+			long t0 = System.nanoTime();
+			for (int n = 0; n < calls; n++) {
+				args[0] = idx[n % 3];
+				sum += imported.invoke(proc, args).asInt();
+			}
+			long t1 = System.nanoTime();
+			for (int n = 0; n < calls; n++) {
+				sum -= ErlBif.element(idx[n % 3], tup).asInt();
+			}
+			long t2 = System.nanoTime();
+
+			import_ns = t1 - t0;
+			direct_ns = t2 - t1;
+			return ERT.box(sum);
+		}
+
+		@Override
+		public EObject invoke(EProc proc, EObject[] args) throws Pausable {
+			return go(proc);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+
+		EAtom erlang = EAtom.intern("erlang");
+		File jar = Compiler.find_and_compile(erlang.getName());
+		EModule.load_module(erlang, jar.toURI().toURL());
+
+		EFun element = EModule.resolve(new FunID(erlang, EAtom
+				.intern("element"), 2));
+
+		for (int round = 0; round < 5; round++) {
+			Caller caller = new Caller(element, calls);
+			EProc p = new EProc(null, caller, ERT.NIL);
+			ERT.run(p);
+			p.joinb();
+
+			System.out.println("round " + round + ": import "
+					+ caller.import_ns * 1000 / calls + "ps/call, direct "
+					+ caller.direct_ns * 1000 / calls + "ps/call");
+		}
+
+		System.exit(0);
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.bench;
+
+import erjang.EBitStringBuilder;
+import erjang.EObject;
+import erjang.ERT;
+import erjang.ESmall;
+
+/**
+ * Time per append in <code>Acc1 = &lt;&lt;Acc/binary, I:8&gt;&gt;</code>
+ * loops of growing length, making the same calls as compiled code; the
+ * time per append should not grow with the length:
+ *
+ * <pre>
+ * java -cp erjang-0.1.jar erjang.bench.BinAppendBench 1000000
+ * </pre>
+ */
+public class BinAppendBench {
+
+	static EObject loop(int n) {
+		EObject acc = ERT.EMPTY_BINARY;
+		for (int i = 0; i < n; i++) {
+			EBitStringBuilder b = EBitStringBuilder.bs_append(acc, 8, 8, 0);
+			acc = b.bitstring();
+			b.put_integer(ESmall.make(i), 8, 0);
+		}
+		return acc;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int max = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		for (int round = 0; round < 3; round++) {
+			for (int n = 1000; n <= max; n *= 10) {
+				int reps = max / n;
+				long t0 = System.nanoTime();
+				for (int r = 0; r < reps; r++) {
+					loop(n);
+				}
+				long ns = System.nanoTime() - t0;
+
+				System.out.println("round " + round + ": " + n + " appends, "
+						+ ns / ((long) reps * n) + "ns/append");
+			}
+		}
+	}
+}
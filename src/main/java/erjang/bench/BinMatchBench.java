@@ -0,0 +1,84 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.bench;
+
+import erjang.EBinMatchState;
+import erjang.EBinary;
+import erjang.EBitString;
+import erjang.EInteger;
+
+/**
+ * Time per match of a zip local file header, making the same calls as
+ * the code compiled for <code>prim_zip</code>'s
+ * <code>&lt;&lt;?LOCAL_FILE_MAGIC:32, ..., Rest/binary&gt;&gt;</code>:
+ *
+ * <pre>
+ * java -cp erjang-0.1.jar erjang.bench.BinMatchBench 10000000
+ * </pre>
+ */
+public class BinMatchBench {
+
+	static final EBinary MAGIC = new EBinary(new byte[] { 80, 75, 3, 4 });
+
+	static final int LITTLE = EBinMatchState.BSF_LITTLE;
+
+	static long match(EBinary header) {
+		EBinMatchState ms = EBinMatchState.bs_start_match2(header, 0);
+		if (ms.bs_match_string(32, MAGIC) == null)
+			return -1;
+
+		long sum = 0;
+		for (int i = 0; i < 5; i++) {
+			EInteger field = ms.bs_get_integer2(16, LITTLE);
+			sum += field.asInt();
+		}
+		for (int i = 0; i < 3; i++) {
+			EInteger field = ms.bs_get_integer2(32, LITTLE);
+			sum += (long) field.doubleValue();
+		}
+		sum += ms.bs_get_integer2(16, LITTLE).asInt();
+		sum += ms.bs_get_integer2(16, LITTLE).asInt();
+
+		EBitString rest = ms.bs_get_binary2(EBinMatchState.ATOM_ALL, 8, 0);
+		return sum + rest.bitCount();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+
+		byte[] data = new byte[30 + 16];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 37);
+		}
+		System.arraycopy(new byte[] { 80, 75, 3, 4 }, 0, data, 0, 4);
+		EBinary header = new EBinary(data);
+
+		for (int round = 0; round < 5; round++) {
+			long sum = 0;
+			long t0 = System.nanoTime();
+			for (int n = 0; n < calls; n++) {
+				sum += match(header);
+			}
+			long ns = System.nanoTime() - t0;
+
+			System.out.println("round " + round + ": " + ns / calls
+					+ "ns/match (" + sum + ")");
+		}
+	}
+}
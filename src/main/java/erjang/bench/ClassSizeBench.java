@@ -0,0 +1,128 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.bench;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import kilim.Pausable;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.EmptyVisitor;
+
+import erjang.beam.Compiler;
+import erjang.beam.analysis.BeamTypeAnalysis;
+
+/**
+ * Bytes of the classes compiled from each module on the load path, and how
+ * many of its functions cannot pause. Run it once more with
+ * <code>-Derjang.infer_pausable=false</code> to compare. A module that
+ * does not compile is listed with the error, and counted in the total.
+ *
+ * <pre>
+ * java -cp erjang-0.1.jar -Derjpath=src/main/erl/preloaded/ebin:src/main/erl erjang.bench.ClassSizeBench
+ * </pre>
+ */
+public class ClassSizeBench {
+
+	static final String PAUSABLE = Type.getInternalName(Pausable.class);
+
+	/** functions of the module class, and those that cannot pause */
+	static int[] count_functions(InputStream in) throws Exception {
+		final int[] res = new int[2];
+
+		new ClassReader(in).accept(new EmptyVisitor() {
+			@Override
+			public MethodVisitor visitMethod(int access, String name,
+					String desc, String signature, String[] exceptions) {
+				// name__arity; not $call, $tail or kilim's Fiber overload
+				if (name.matches(".*__[0-9]+") && desc.indexOf("kilim/Fiber") == -1) {
+					res[0] += 1;
+					if (exceptions == null
+							|| !Arrays.asList(exceptions).contains(PAUSABLE))
+						res[1] += 1;
+				}
+				return null;
+			}
+		}, true);
+
+		return res;
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("pausability inference "
+				+ (BeamTypeAnalysis.INFER_PAUSABLE ? "on" : "off"));
+
+		long total = 0;
+		int failed = 0;
+		String[] modules = Compiler.load_path_modules();
+		Arrays.sort(modules);
+
+		for (String module : modules) {
+			File jar;
+			try {
+				jar = Compiler.find_and_compile(module);
+			} catch (Throwable e) {
+				System.out.println(module + ": failed: " + e);
+				failed += 1;
+				continue;
+			}
+
+			String main = Compiler.moduleClassName(module) + ".class";
+			long bytes = 0;
+			int[] funs = null;
+
+			JarFile jf = new JarFile(jar);
+			try {
+				Enumeration<JarEntry> ents = jf.entries();
+				while (ents.hasMoreElements()) {
+					JarEntry ent = ents.nextElement();
+					if (!ent.getName().endsWith(".class"))
+						continue;
+					bytes += ent.getSize();
+					if (ent.getName().equals(main)) {
+						InputStream in = jf.getInputStream(ent);
+						try {
+							funs = count_functions(in);
+						} finally {
+							in.close();
+						}
+					}
+				}
+			} finally {
+				jf.close();
+			}
+
+			total += bytes;
+			System.out.println(module + ": " + bytes + " bytes, "
+					+ (funs == null ? "no module class" : funs[1] + "/"
+							+ funs[0] + " functions not pausable"));
+		}
+
+		System.out.println("total: " + total + " bytes in "
+				+ (modules.length - failed) + " modules, " + failed
+				+ " failed");
+	}
+}
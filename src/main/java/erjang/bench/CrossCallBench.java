@@ -0,0 +1,236 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import kilim.Pausable;
+import kilim.analysis.ClassInfo;
+
+import org.objectweb.asm.ClassWriter;
+
+import erjang.EAtom;
+import erjang.EFun;
+import erjang.EModule;
+import erjang.EObject;
+import erjang.EProc;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.ESmall;
+import erjang.ETuple;
+import erjang.FunID;
+import erjang.beam.BeamFileData;
+import erjang.beam.Compiler;
+import erjang.beam.CompilerVisitor;
+import erjang.beam.JarClassRepo;
+import erjang.beam.analysis.BeamInliner;
+import erjang.beam.analysis.BeamTypeAnalysis;
+
+/**
+ * Time per call of a doubly recursive fib, whose recursive calls go to
+ * the same function in another module, as external calls through the
+ * caller's import fields; and, to compare, of the same fib calling
+ * itself locally:
+ *
+ * <pre>
+ * java -cp erjang-0.1.jar erjang.bench.CrossCallBench 25 remote
+ * java -cp erjang-0.1.jar erjang.bench.CrossCallBench 25 local
+ * </pre>
+ */
+public class CrossCallBench {
+
+	static final EAtom FIB = EAtom.intern("fib");
+
+	static EAtom a(String name) {
+		return EAtom.intern(name);
+	}
+
+	static ETuple t(EObject... elms) {
+		return ETuple.make(elms);
+	}
+
+	static ESmall i(int value) {
+		return ERT.box(value);
+	}
+
+	static ESeq list(EObject... elms) {
+		ESeq res = ERT.NIL;
+		for (int n = elms.length - 1; n >= 0; n--) {
+			res = res.cons(elms[n]);
+		}
+		return res;
+	}
+
+	static ETuple x(int reg) {
+		return t(a("x"), i(reg));
+	}
+
+	static ETuple y(int reg) {
+		return t(a("y"), i(reg));
+	}
+
+	static ETuple f(int label) {
+		return t(a("f"), i(label));
+	}
+
+	static ETuple integer(int value) {
+		return t(a("integer"), i(value));
+	}
+
+	/**
+	 * <pre>
+	 * fib(N) when N < 2 -> N;
+	 * fib(N) -> callee:fib(N - 1) + callee:fib(N - 2).
+	 * </pre>
+	 *
+	 * where the calls are local if <code>callee</code> is
+	 * <code>module</code>.
+	 */
+	static ETuple fib(EAtom module, EAtom callee) {
+		EObject call = module == callee ? t(a("call"), i(1), t(module, FIB,
+				i(1))) : t(a("call_ext"), i(1), t(a("extfunc"), callee, FIB,
+				i(1)));
+
+		List<EObject> code = new ArrayList<EObject>();
+		code.add(t(a("label"), i(1)));
+		code.add(t(a("func_info"), t(a("atom"), module), t(a("atom"), FIB),
+				i(1)));
+		code.add(t(a("label"), i(2)));
+		code.add(t(a("test"), a("is_lt"), f(3), list(x(0), integer(2))));
+		code.add(a("return"));
+		code.add(t(a("label"), i(3)));
+		code.add(t(a("allocate_zero"), i(2), i(1)));
+		code.add(t(a("move"), x(0), y(0)));
+		code.add(t(a("gc_bif"), a("-"), f(0), i(1), list(x(0), integer(1)),
+				x(0)));
+		code.add(call);
+		code.add(t(a("move"), x(0), y(1)));
+		code.add(t(a("gc_bif"), a("-"), f(0), i(1), list(y(0), integer(2)),
+				x(0)));
+		code.add(call);
+		code.add(t(a("gc_bif"), a("+"), f(0), i(1), list(y(1), x(0)), x(0)));
+		code.add(t(a("deallocate"), i(2)));
+		code.add(a("return"));
+
+		ETuple function = t(a("function"), FIB, i(1), i(2), ESeq
+				.fromArray(code.toArray(new EObject[code.size()])));
+		return t(a("beam_file"), module, list(t(FIB, i(1), i(2))), ERT.NIL,
+				ERT.NIL, list(function));
+	}
+
+	static File compile(ETuple module) throws Exception {
+		File jar = File.createTempFile("cross_call_bench", ".jar");
+		jar.deleteOnExit();
+
+		JarClassRepo repo = new JarClassRepo(jar);
+		ClassWriter cw = new ClassWriter(true);
+		CompilerVisitor cv = new CompilerVisitor(cw, repo);
+		new BeamFileData(module).accept(new BeamInliner(new BeamTypeAnalysis(
+				cv)));
+		for (ClassInfo ci : Compiler.weave(cw.toByteArray(), cv
+				.getInternalClassName(), cv.getInternalClassName())) {
+			repo.store(ci.className.replace('.', '/'), ci.bytes);
+		}
+		repo.close();
+		return jar;
+	}
+
+	static void load(ETuple module) throws Exception {
+		EModule.load_module((EAtom) module.elm(2), compile(module).toURI()
+				.toURL());
+	}
+
+	static class Caller extends EFun {
+		final EFun fib;
+		final EObject[] args;
+		final int rounds;
+		long ns;
+		EObject result;
+
+		Caller(EFun fib, int n, int rounds) {
+			this.fib = fib;
+			this.args = new EObject[] { ERT.box(n) };
+			this.rounds = rounds;
+		}
+
+		@Override
+		public int arity() {
+			return 0;
+		}
+
+		@Override
+		public EObject go(EProc proc) throws Pausable {
+			long t0 = System.nanoTime();
+			for (int r = 0; r < rounds; r++) {
+				result = fib.invoke(proc, args);
+			}
+			ns = System.nanoTime() - t0;
+			return result;
+		}
+
+		@Override
+		public EObject invoke(EProc proc, EObject[] args) throws Pausable {
+			return go(proc);
+		}
+	}
+
+	/** the number of calls that fib(n) makes, including itself */
+	static long calls(int n) {
+		long a = 1, b = 1;
+		for (int k = 1; k < n; k++) {
+			long c = a + b + 1;
+			a = b;
+			b = c;
+		}
+		return b;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 25;
+		boolean remote = args.length < 2 || args[1].equals("remote");
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+		EAtom entry;
+		if (remote) {
+			EAtom one = a("cross_call_a"), other = a("cross_call_b");
+			load(fib(one, other));
+			load(fib(other, one));
+			entry = one;
+		} else {
+			entry = a("cross_call_local");
+			load(fib(entry, entry));
+		}
+		EFun fib = EModule.resolve(new FunID(entry, FIB, 1));
+
+		for (int round = 0; round < 5; round++) {
+			Caller caller = new Caller(fib, n, rounds);
+			EProc p = new EProc(null, caller, ERT.NIL);
+			ERT.run(p);
+			p.joinb();
+
+			System.out.println("round " + round + ": "
+					+ (caller.ns * 1000 / (calls(n) * rounds)) + "ps/call ("
+					+ caller.result + ")");
+		}
+
+		System.exit(0);
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.bench;
+
+import kilim.Pausable;
+import erjang.EHandle;
+import erjang.EObject;
+import erjang.ERT;
+import erjang.ESmall;
+import erjang.ETask;
+
+/**
+ * Many senders, one receiver: <code>senders</code> tasks each send
+ * <code>count</code> messages to a single logger task.
+ *
+ * <pre>
+ * java -cp erjang-0.1.jar erjang.bench.FanInBench 10000 100
+ * </pre>
+ */
+public class FanInBench {
+
+	static class Logger extends ETask<EHandle> {
+		final int expect;
+		int received;
+
+		Logger(int expect) {
+			this.expect = expect;
+		}
+
+		@Override
+		protected void run_task() throws Pausable {
+			while (received < expect) {
+				mbox_get();
+				received += 1;
+			}
+		}
+
+		@Override
+		public EHandle self() {
+			return null;
+		}
+
+		@Override
+		protected void process_incoming_exit(EHandle from, EObject reason)
+				throws Pausable {
+		}
+	}
+
+	static class Sender extends ETask<EHandle> {
+		final Logger logger;
+		final int count;
+		long max_send_nanos;
+
+		Sender(Logger logger, int count) {
+			this.logger = logger;
+			this.count = count;
+		}
+
+		@Override
+		protected void run_task() throws Pausable {
+			for (int i = 0; i < count; i++) {
+				long t0 = System.nanoTime();
+				logger.mbox_send(new ESmall(i));
+				max_send_nanos = Math.max(max_send_nanos, System.nanoTime()
+						- t0);
+			}
+		}
+
+		@Override
+		public EHandle self() {
+			return null;
+		}
+
+		@Override
+		protected void process_incoming_exit(EHandle from, EObject reason)
+				throws Pausable {
+		}
+	}
+
+	public static void main(String[] args) {
+		int senders = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+		Logger logger = new Logger(senders * count);
+		Sender[] tasks = new Sender[senders];
+		for (int i = 0; i < senders; i++) {
+			tasks[i] = new Sender(logger, count);
+		}
+
+		long start = System.nanoTime();
+		ERT.run(logger);
+		for (Sender s : tasks) {
+			ERT.run(s);
+		}
+		logger.joinb();
+		long end = System.nanoTime();
+
+		long max_send = 0;
+		for (Sender s : tasks) {
+			s.joinb();
+			max_send = Math.max(max_send, s.max_send_nanos);
+		}
+
+		System.out.println(logger.received + " messages from " + senders
+				+ " senders in " + (end - start) / 1000000 + "ms, slowest send "
+				+ max_send / 1000 + "us");
+	}
+}
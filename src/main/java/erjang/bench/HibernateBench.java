@@ -0,0 +1,131 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kilim.Pausable;
+import erjang.EFun;
+import erjang.EObject;
+import erjang.EProc;
+import erjang.ERT;
+
+/**
+ * Heap bytes per idle process. Each process makes <code>depth</code>
+ * nested calls and then either waits for a message in a receive, or
+ * hibernates:
+ *
+ * <pre>
+ * java -cp erjang-0.1.jar erjang.bench.HibernateBench 100000 20 receive
+ * java -cp erjang-0.1.jar erjang.bench.HibernateBench 100000 20 hibernate
+ * </pre>
+ *
+ * With <code>new</code>, the processes are only made and not started,
+ * which gives the size of the process record itself.
+ */
+public class HibernateBench {
+
+	static final AtomicInteger idle = new AtomicInteger();
+
+	static class Idle extends EFun {
+		final int depth;
+		final boolean hibernate;
+
+		Idle(int depth, boolean hibernate) {
+			this.depth = depth;
+			this.hibernate = hibernate;
+		}
+
+		@Override
+		public int arity() {
+			return 0;
+		}
+
+		@Override
+		public EObject go(EProc proc) throws Pausable {
+			return nest(proc, depth);
+		}
+
+		private EObject nest(EProc proc, int n) throws Pausable {
+			if (n > 0) {
+				EObject res = nest(proc, n - 1);
+				return res;
+			}
+
+			idle.incrementAndGet();
+			if (hibernate) {
+				return proc.hibernate(this, ERT.NIL);
+			}
+			return proc.mbox_get();
+		}
+
+		@Override
+		public EObject invoke(EProc proc, EObject[] args) throws Pausable {
+			return go(proc);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int depth = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		String mode = args.length > 2 ? args[2] : "hibernate";
+
+		Idle fun = new Idle(depth, mode.equals("hibernate"));
+		EProc[] procs = new EProc[count];
+
+		// load the classes involved before measuring
+		ERT.run(new EProc(null, fun, ERT.NIL));
+		while (idle.get() < 1) {
+			Thread.sleep(10);
+		}
+		idle.set(0);
+
+		long before = used();
+		for (int i = 0; i < count; i++) {
+			procs[i] = new EProc(null, fun, ERT.NIL);
+			if (!mode.equals("new")) {
+				ERT.run(procs[i]);
+			}
+		}
+		if (!mode.equals("new")) {
+			while (idle.get() < count) {
+				Thread.sleep(10);
+			}
+			// give the last ones time to pause
+			Thread.sleep(500);
+		}
+		long after = used();
+
+		System.out.println(mode + ": " + count + " idle processes, depth "
+				+ depth + ": " + (after - before) / count + " bytes each");
+
+		System.exit(procs.length > 0 ? 0 : 1);
+	}
+
+	private static long used() throws InterruptedException {
+		MemoryMXBean mem = ManagementFactory.getMemoryMXBean();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return mem.getHeapMemoryUsage().getUsed();
+	}
+}
@@ -0,0 +1,248 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import kilim.Pausable;
+import kilim.analysis.ClassInfo;
+
+import org.objectweb.asm.ClassWriter;
+
+import erjang.EAtom;
+import erjang.EFun;
+import erjang.EModule;
+import erjang.EObject;
+import erjang.EProc;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.ESmall;
+import erjang.ETuple;
+import erjang.FunID;
+import erjang.beam.BeamFileData;
+import erjang.beam.Compiler;
+import erjang.beam.CompilerVisitor;
+import erjang.beam.JarClassRepo;
+import erjang.beam.analysis.BeamInliner;
+import erjang.beam.analysis.BeamTypeAnalysis;
+
+/**
+ * Time per element of a loop over a list of <code>{point,X,Y}</code>
+ * tuples that reads each point through two accessor functions, which the
+ * compiler inlines into the loop; compare
+ *
+ * <pre>
+ * java -cp erjang-0.1.jar -Derjang.inline=false erjang.bench.InlineBench
+ * java -cp erjang-0.1.jar erjang.bench.InlineBench
+ * </pre>
+ */
+public class InlineBench {
+
+	static final EAtom MODULE = EAtom.intern("inline_bench");
+
+	static EAtom a(String name) {
+		return EAtom.intern(name);
+	}
+
+	static ETuple t(EObject... elms) {
+		return ETuple.make(elms);
+	}
+
+	static ESmall i(int value) {
+		return ERT.box(value);
+	}
+
+	static ESeq list(EObject... elms) {
+		return list(Arrays.asList(elms));
+	}
+
+	static ESeq list(List<EObject> elms) {
+		ESeq res = ERT.NIL;
+		for (int n = elms.size() - 1; n >= 0; n--) {
+			res = res.cons(elms.get(n));
+		}
+		return res;
+	}
+
+	static ETuple x(int reg) {
+		return t(a("x"), i(reg));
+	}
+
+	static ETuple y(int reg) {
+		return t(a("y"), i(reg));
+	}
+
+	static ETuple f(int label) {
+		return t(a("f"), i(label));
+	}
+
+	static EObject label(int label) {
+		return t(a("label"), i(label));
+	}
+
+	static ETuple func_info(String name, int arity) {
+		return t(a("func_info"), t(a("atom"), MODULE), t(a("atom"), a(name)),
+				i(arity));
+	}
+
+	/** <code>Name({point,_,_}=P) -> element(Pos, P).</code> */
+	static ETuple accessor(String name, int pos, int entry) {
+		List<EObject> code = new ArrayList<EObject>();
+		code.add(label(entry - 1));
+		code.add(func_info(name, 1));
+		code.add(label(entry));
+		code.add(t(a("test"), a("is_tuple"), f(entry - 1), list(x(0))));
+		code.add(t(a("test"), a("test_arity"), f(entry - 1), list(x(0), i(3))));
+		code.add(t(a("get_tuple_element"), x(0), i(pos - 1), x(0)));
+		code.add(a("return"));
+		return t(a("function"), a(name), i(1), i(entry), list(code));
+	}
+
+	/**
+	 * <pre>
+	 * x({point,X,_}) -> X.
+	 * y({point,_,Y}) -> Y.
+	 * sum([P|Ps], N) -> sum(Ps, N + x(P) * y(P));
+	 * sum([], N) -> N.
+	 * run(Ps) -> sum(Ps, 0).
+	 * </pre>
+	 */
+	static ETuple module() {
+		List<EObject> sum = new ArrayList<EObject>();
+		sum.add(label(5));
+		sum.add(func_info("sum", 2));
+		sum.add(label(6));
+		sum.add(t(a("test"), a("is_nonempty_list"), f(7), list(x(0))));
+		sum.add(t(a("allocate"), i(4), i(2)));
+		sum.add(t(a("get_list"), x(0), x(0), y(0)));
+		sum.add(t(a("move"), x(1), y(1)));
+		sum.add(t(a("move"), x(0), y(2)));
+		sum.add(t(a("call"), i(1), t(MODULE, a("x"), i(1))));
+		sum.add(t(a("move"), x(0), y(3)));
+		sum.add(t(a("move"), y(2), x(0)));
+		sum.add(t(a("call"), i(1), t(MODULE, a("y"), i(1))));
+		sum.add(t(a("gc_bif"), a("*"), f(0), i(1), list(y(3), x(0)), x(0)));
+		sum.add(t(a("gc_bif"), a("+"), f(0), i(1), list(y(1), x(0)), x(1)));
+		sum.add(t(a("move"), y(0), x(0)));
+		sum.add(t(a("call_last"), i(2), t(MODULE, a("sum"), i(2)), i(4)));
+		sum.add(label(7));
+		sum.add(t(a("test"), a("is_nil"), f(5), list(x(0))));
+		sum.add(t(a("move"), x(1), x(0)));
+		sum.add(a("return"));
+
+		List<EObject> run = new ArrayList<EObject>();
+		run.add(label(8));
+		run.add(func_info("run", 1));
+		run.add(label(9));
+		run.add(t(a("move"), t(a("integer"), i(0)), x(1)));
+		run.add(t(a("call_only"), i(2), t(MODULE, a("sum"), i(2))));
+
+		List<EObject> exports = new ArrayList<EObject>();
+		exports.add(t(a("run"), i(1), i(9)));
+		List<EObject> functions = new ArrayList<EObject>();
+		functions.add(accessor("x", 2, 2));
+		functions.add(accessor("y", 3, 4));
+		functions.add(t(a("function"), a("sum"), i(2), i(6), list(sum)));
+		functions.add(t(a("function"), a("run"), i(1), i(9), list(run)));
+
+		return t(a("beam_file"), MODULE, list(exports), ERT.NIL, ERT.NIL,
+				list(functions));
+	}
+	static File compile(ETuple module) throws Exception {
+		File jar = File.createTempFile("inline_bench", ".jar");
+		jar.deleteOnExit();
+
+		JarClassRepo repo = new JarClassRepo(jar);
+		ClassWriter cw = new ClassWriter(true);
+		CompilerVisitor cv = new CompilerVisitor(cw, repo);
+		new BeamFileData(module).accept(new BeamInliner(new BeamTypeAnalysis(
+				cv)));
+		for (ClassInfo ci : Compiler.weave(cw.toByteArray(), cv
+				.getInternalClassName(), cv.getInternalClassName())) {
+			repo.store(ci.className.replace('.', '/'), ci.bytes);
+		}
+		repo.close();
+		return jar;
+	}
+
+	static class Caller extends EFun {
+		final EFun run;
+		final ESeq points;
+		final int calls;
+		long ns;
+		EObject result;
+
+		Caller(EFun run, ESeq points, int calls) {
+			this.run = run;
+			this.points = points;
+			this.calls = calls;
+		}
+
+		@Override
+		public int arity() {
+			return 0;
+		}
+
+		@Override
+		public EObject go(EProc proc) throws Pausable {
+			EObject[] args = new EObject[] { points };
+			long t0 = System.nanoTime();
+			for (int n = 0; n < calls; n++) {
+				result = run.invoke(proc, args);
+			}
+			ns = System.nanoTime() - t0;
+			return result;
+		}
+
+		@Override
+		public EObject invoke(EProc proc, EObject[] args) throws Pausable {
+			return go(proc);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+		System.out.println("inlining " + (BeamInliner.ENABLED ? "on" : "off"));
+
+		EModule.load_module(MODULE, compile(module()).toURI().toURL());
+		EFun run = EModule.resolve(new FunID(MODULE, a("run"), 1));
+
+		List<EObject> points = new ArrayList<EObject>();
+		for (int n = 0; n < 1000; n++) {
+			points.add(t(a("point"), i(n % 7), i(n % 11)));
+		}
+
+		for (int round = 0; round < 5; round++) {
+			Caller caller = new Caller(run, list(points), calls);
+			EProc p = new EProc(null, caller, ERT.NIL);
+			ERT.run(p);
+			p.joinb();
+
+			System.out.println("round " + round + ": " + caller.ns
+					/ ((long) calls * points.size()) + "ns/point ("
+					+ caller.result + ")");
+		}
+
+		System.exit(0);
+	}
+}
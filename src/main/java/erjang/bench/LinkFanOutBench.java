@@ -0,0 +1,141 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kilim.Pausable;
+import erjang.EAtom;
+import erjang.EFun;
+import erjang.EObject;
+import erjang.EProc;
+import erjang.ERT;
+import erjang.ErlangError;
+
+/**
+ * One process linked to <code>links</code> others dies, and takes them all
+ * with it: measures the time from the exit until the dying process has
+ * delivered its exit signals, and until every linked process is done. Run
+ * it on the default (woven) jar, and with <code>-Derjang.threads=true</code>
+ * on the jar-threads jar, where every process is a native thread:
+ *
+ * <pre>
+ * java -cp erjang-0.1.jar erjang.bench.LinkFanOutBench 100000
+ * java -Derjang.threads=true -cp erjang-0.1-threads.jar:target/classes erjang.bench.LinkFanOutBench 10000
+ * </pre>
+ */
+public class LinkFanOutBench {
+
+	static final EAtom am_shutdown = EAtom.intern("shutdown");
+
+	static final AtomicInteger waiting = new AtomicInteger();
+	static CountDownLatch killed;
+	static volatile long exit_time;
+
+	/** waits for messages until it is killed */
+	static class Worker extends EFun {
+		@Override
+		public int arity() {
+			return 0;
+		}
+
+		@Override
+		public EObject go(EProc proc) throws Pausable {
+			waiting.incrementAndGet();
+			try {
+				while (true) {
+					proc.mbox_get();
+				}
+			} finally {
+				killed.countDown();
+			}
+		}
+
+		@Override
+		public EObject invoke(EProc proc, EObject[] args) throws Pausable {
+			return go(proc);
+		}
+	}
+
+	/** links to all workers, and then exits */
+	static class Hub extends EFun {
+		final EProc[] workers;
+		long link_nanos;
+
+		Hub(EProc[] workers) {
+			this.workers = workers;
+		}
+
+		@Override
+		public int arity() {
+			return 0;
+		}
+
+		@Override
+		public EObject go(EProc proc) throws Pausable {
+			long t0 = System.nanoTime();
+			for (EProc w : workers) {
+				proc.link(w.self());
+			}
+			link_nanos = System.nanoTime() - t0;
+
+			exit_time = System.nanoTime();
+			throw new ErlangError(am_shutdown);
+		}
+
+		@Override
+		public EObject invoke(EProc proc, EObject[] args) throws Pausable {
+			return go(proc);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int links = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+		killed = new CountDownLatch(links);
+		EProc[] workers = new EProc[links];
+		Worker worker = new Worker();
+		for (int i = 0; i < links; i++) {
+			workers[i] = new EProc(null, worker, ERT.NIL);
+			ERT.run(workers[i]);
+		}
+		while (waiting.get() < links) {
+			Thread.sleep(10);
+		}
+
+		Hub hub = new Hub(workers);
+		EProc p = new EProc(null, hub, ERT.NIL);
+		ERT.run(p);
+		// the hub is done once it has delivered its exit signals
+		p.joinb();
+		long delivered = System.nanoTime();
+
+		// joining each worker would time the main thread's wakeups
+		killed.await();
+		long end = System.nanoTime();
+
+		System.out.println(links + " links made in " + hub.link_nanos
+				/ 1000000 + "ms; signals delivered "
+				+ (delivered - exit_time) / 1000000 + "ms after the exit, "
+				+ (delivered - exit_time) / links + "ns per signal; "
+				+ "all linked processes done "
+				+ (end - exit_time) / 1000000 + "ms after the exit");
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.bench;
+
+import java.io.File;
+
+import erjang.EAtom;
+import erjang.EModule;
+import erjang.EProc;
+import erjang.ERT;
+import erjang.beam.Compiler;
+
+/**
+ * Measures module load time and call time of <code>Module:Function()</code>.
+ * Run it once with the default (woven) jar, and once with
+ * <code>-Derjang.threads=true</code> on the jar-threads jar, to compare the
+ * two process backends:
+ *
+ * <pre>
+ * java -cp erjang-0.1.jar:target/classes -Derjpath=src/main/erl erjang.bench.ModuleBench fib main 10
+ * </pre>
+ */
+public class ModuleBench {
+
+	public static void main(String[] args) throws Exception {
+		EAtom mod = EAtom.intern(args[0]);
+		EAtom fun = EAtom.intern(args[1]);
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+		System.out.println("backend: " + (ERT.USE_THREADS ? "threads" : "kilim"));
+
+		long t0 = System.nanoTime();
+		File jar = Compiler.find_and_compile(mod.getName());
+		long t1 = System.nanoTime();
+		EModule.load_module(mod, jar.toURI().toURL());
+		long t2 = System.nanoTime();
+
+		System.out.println("compile: " + (t1 - t0) / 1000000 + "ms, load: "
+				+ (t2 - t1) / 1000000 + "ms");
+
+		for (int i = 0; i < rounds; i++) {
+			long start = System.nanoTime();
+			EProc p = new EProc(null, mod, fun, ERT.NIL);
+			ERT.run(p);
+			p.joinb();
+			long end = System.nanoTime();
+			System.out.println("run " + i + ": " + (end - start) / 1000000 + "ms");
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.bench;
+
+import java.util.Arrays;
+
+import kilim.Pausable;
+import kilim.Task;
+import erjang.EHandle;
+import erjang.EInteger;
+import erjang.EObject;
+import erjang.ERT;
+import erjang.ETask;
+
+/**
+ * Response time of one process while <code>busy</code> processes at
+ * normal priority keep every scheduler saturated. The responder runs at
+ * <code>high</code> priority, or at <code>normal</code> to compare. Run it
+ * on the default (woven) jar, and with <code>-Derjang.threads=true</code>
+ * on the jar-threads jar:
+ *
+ * <pre>
+ * java -cp erjang-0.1.jar erjang.bench.PriorityBench 10000 high
+ * java -cp erjang-0.1.jar erjang.bench.PriorityBench 10000 normal
+ * java -Derjang.threads=true -cp erjang-0.1-threads.jar:target/classes erjang.bench.PriorityBench 1000 high
+ * </pre>
+ */
+public class PriorityBench {
+
+	static final int SAMPLES = 200;
+
+	static volatile boolean stop;
+
+	/** burns a little CPU, then yields; until stopped */
+	static class Busy extends ETask<EHandle> {
+		long sum;
+
+		@Override
+		protected void run_task() throws Pausable {
+			while (!stop) {
+				for (int i = 0; i < 20000; i++) {
+					sum += i ^ sum;
+				}
+				if (ERT.USE_THREADS) {
+					Thread.yield();
+				} else {
+					Task.yield();
+				}
+			}
+		}
+
+		@Override
+		public EHandle self() {
+			return null;
+		}
+
+		@Override
+		protected void process_incoming_exit(EHandle from, EObject reason)
+				throws Pausable {
+		}
+	}
+
+	/** records how long each message took to be received */
+	static class Responder extends ETask<EHandle> {
+		final long[] latency = new long[SAMPLES];
+
+		@Override
+		protected void run_task() throws Pausable {
+			for (int i = 0; i < SAMPLES; i++) {
+				EInteger sent_at = (EInteger) mbox_get();
+				latency[i] = System.nanoTime() - sent_at.longValue();
+			}
+		}
+
+		@Override
+		public EHandle self() {
+			return null;
+		}
+
+		@Override
+		protected void process_incoming_exit(EHandle from, EObject reason)
+				throws Pausable {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int busy = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		boolean high = args.length < 2 || args[1].equals("high");
+
+		Busy[] tasks = new Busy[busy];
+		for (int i = 0; i < busy; i++) {
+			tasks[i] = new Busy();
+			ERT.run(tasks[i]);
+		}
+
+		Responder r = new Responder();
+		if (high) {
+			r.set_priority(ETask.PRIORITY_HIGH);
+		}
+		ERT.run(r);
+
+		// let the busy tasks fill the run queues
+		Thread.sleep(500);
+
+		for (int i = 0; i < SAMPLES; i++) {
+			r.mbox_putb(ERT.box(System.nanoTime()));
+			Thread.sleep(10);
+		}
+		r.joinb();
+		stop = true;
+
+		long[] l = r.latency.clone();
+		Arrays.sort(l);
+		System.out.println((high ? "high" : "normal") + " priority, " + busy
+				+ " busy processes: median " + l[SAMPLES / 2] / 1000
+				+ "us, 99% " + l[SAMPLES * 99 / 100] / 1000 + "us, max "
+				+ l[SAMPLES - 1] / 1000 + "us");
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.bench;
+
+import kilim.Pausable;
+import erjang.EHandle;
+import erjang.EObject;
+import erjang.ERT;
+import erjang.ESmall;
+import erjang.ETask;
+
+/**
+ * The process ring of <code>ring.erl</code>: <code>procs</code> processes,
+ * each forwarding what it receives to the next, with <code>tokens</code>
+ * messages going round <code>cycles</code> times each. ring:main is the
+ * case of one token, which no number of schedulers can speed up; more
+ * tokens give the schedulers work to share. Set the number of schedulers
+ * with <code>-Derjang.schedulers</code>:
+ *
+ * <pre>
+ * java -Derjang.schedulers=4 -cp erjang-0.1.jar erjang.bench.RingBench 1000 100 16
+ * </pre>
+ */
+public class RingBench {
+
+	static class Node extends ETask<EHandle> {
+		Node next;
+		final int hops;
+		int forwarded;
+
+		Node(int hops) {
+			this.hops = hops;
+		}
+
+		@Override
+		protected void run_task() throws Pausable {
+			while (forwarded < hops) {
+				EObject token = mbox_get();
+				next.mbox_send(token);
+				forwarded += 1;
+			}
+		}
+
+		@Override
+		public EHandle self() {
+			return null;
+		}
+
+		@Override
+		protected void process_incoming_exit(EHandle from, EObject reason)
+				throws Pausable {
+		}
+	}
+
+	public static void main(String[] args) {
+		int procs = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int cycles = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int tokens = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+		for (int round = 0; round < 5; round++) {
+			Node[] ring = new Node[procs];
+			for (int i = 0; i < procs; i++) {
+				ring[i] = new Node(cycles * tokens);
+			}
+			for (int i = 0; i < procs; i++) {
+				ring[i].next = ring[(i + 1) % procs];
+				ERT.run(ring[i]);
+			}
+
+			long start = System.nanoTime();
+			for (int i = 0; i < tokens; i++) {
+				ring[(int) ((long) procs * i / tokens)].mbox_send(new ESmall(i));
+			}
+			for (Node n : ring) {
+				n.joinb();
+			}
+			long ns = System.nanoTime() - start;
+
+			long hops = (long) procs * cycles * tokens;
+			System.out.println("round " + round + ": " + hops + " messages in "
+					+ ns / 1000000 + "ms, " + (hops * 1000000000L / ns)
+					+ " msg/s");
+		}
+
+		System.exit(0);
+	}
+}
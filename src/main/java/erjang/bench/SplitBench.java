@@ -0,0 +1,246 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import kilim.Pausable;
+import kilim.analysis.ClassInfo;
+
+import org.objectweb.asm.ClassWriter;
+
+import erjang.EAtom;
+import erjang.EFun;
+import erjang.EModule;
+import erjang.EObject;
+import erjang.EProc;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.ESmall;
+import erjang.ETuple;
+import erjang.FunID;
+import erjang.beam.BeamFileData;
+import erjang.beam.Compiler;
+import erjang.beam.CompilerVisitor;
+import erjang.beam.JarClassRepo;
+import erjang.beam.analysis.BeamInliner;
+import erjang.beam.analysis.BeamTypeAnalysis;
+
+/**
+ * Time per token of a generated parser, a single function that
+ * dispatches on its state like the code yecc generates, with
+ * <code>states</code> states of two clauses each. With more than a few
+ * dozen states the function is too big for HotSpot to compile, unless it
+ * is split into helper functions; compare
+ *
+ * <pre>
+ * java -cp erjang-0.1.jar -Derjang.split=false erjang.bench.SplitBench 200
+ * java -cp erjang-0.1.jar erjang.bench.SplitBench 200
+ * </pre>
+ */
+public class SplitBench {
+
+	static final EAtom MODULE = EAtom.intern("split_bench");
+
+	static EAtom a(String name) {
+		return EAtom.intern(name);
+	}
+
+	static ETuple t(EObject... elms) {
+		return ETuple.make(elms);
+	}
+
+	static ESmall i(int value) {
+		return ERT.box(value);
+	}
+
+	static ESeq list(EObject... elms) {
+		return list(Arrays.asList(elms));
+	}
+
+	static ESeq list(List<EObject> elms) {
+		ESeq res = ERT.NIL;
+		for (int n = elms.size() - 1; n >= 0; n--) {
+			res = res.cons(elms.get(n));
+		}
+		return res;
+	}
+
+	static ETuple x(int reg) {
+		return t(a("x"), i(reg));
+	}
+
+	static ETuple f(int label) {
+		return t(a("f"), i(label));
+	}
+
+	static EObject label(int label) {
+		return t(a("label"), i(label));
+	}
+
+	/**
+	 * <pre>
+	 * p(State, [a|Ts], N) -> p(next_a(State), Ts, N + State);
+	 * p(State, [_|Ts], N) -> p(next_b(State), Ts, N + 1);
+	 * p(_, [], N) -> N.
+	 * </pre>
+	 */
+	static ETuple parser(int states) {
+		EObject call = t(a("call_only"), i(3), t(MODULE, a("p"), i(3)));
+		List<EObject> code = new ArrayList<EObject>();
+		List<EObject> cases = new ArrayList<EObject>();
+		int done = 3;
+
+		code.add(label(1));
+		code.add(t(a("func_info"), t(a("atom"), MODULE), t(a("atom"), a("p")),
+				i(3)));
+		code.add(label(2));
+		code.add(t(a("test"), a("is_nonempty_list"), f(done), list(x(1))));
+		code.add(t(a("get_list"), x(1), x(3), x(1)));
+		code.add(null);
+		code.add(label(done));
+		code.add(t(a("move"), x(2), x(0)));
+		code.add(a("return"));
+
+		for (int s = 0; s < states; s++) {
+			int l = done + 1 + 2 * s;
+			cases.add(t(a("integer"), i(s)));
+			cases.add(f(l));
+
+			code.add(label(l));
+			code.add(t(a("test"), a("is_eq_exact"), f(l + 1), list(x(3), t(
+					a("atom"), a("a")))));
+			code.add(t(a("gc_bif"), a("+"), f(0), i(4), list(x(2), t(
+					a("integer"), i(s))), x(2)));
+			code.add(t(a("move"), t(a("integer"), i((s * 7 + 1) % states)),
+					x(0)));
+			code.add(call);
+
+			code.add(label(l + 1));
+			code.add(t(a("gc_bif"), a("+"), f(0), i(4), list(x(2), t(
+					a("integer"), i(1))), x(2)));
+			code.add(t(a("move"), t(a("integer"), i((s * 3 + 2) % states)),
+					x(0)));
+			code.add(call);
+		}
+		code.set(code.indexOf(null), t(a("select_val"), x(0), f(1), t(
+				a("list"), list(cases))));
+
+		int entry = done + 1 + 2 * states + 1;
+		List<EObject> run = new ArrayList<EObject>();
+		run.add(label(entry - 1));
+		run.add(t(a("func_info"), t(a("atom"), MODULE),
+				t(a("atom"), a("run")), i(1)));
+		run.add(label(entry));
+		run.add(t(a("move"), x(0), x(1)));
+		run.add(t(a("move"), t(a("integer"), i(0)), x(0)));
+		run.add(t(a("move"), t(a("integer"), i(0)), x(2)));
+		run.add(call);
+
+		List<EObject> exports = new ArrayList<EObject>();
+		exports.add(t(a("run"), i(1), i(entry)));
+		List<EObject> functions = new ArrayList<EObject>();
+		functions.add(t(a("function"), a("p"), i(3), i(2), list(code)));
+		functions.add(t(a("function"), a("run"), i(1), i(entry), list(run)));
+
+		return t(a("beam_file"), MODULE, list(exports), ERT.NIL, ERT.NIL,
+				list(functions));
+	}
+
+	static File compile(ETuple module) throws Exception {
+		File jar = File.createTempFile("split_bench", ".jar");
+		jar.deleteOnExit();
+
+		JarClassRepo repo = new JarClassRepo(jar);
+		ClassWriter cw = new ClassWriter(true);
+		CompilerVisitor cv = new CompilerVisitor(cw, repo);
+		new BeamFileData(module).accept(new BeamInliner(new BeamTypeAnalysis(
+				cv)));
+		for (ClassInfo ci : Compiler.weave(cw.toByteArray(), cv
+				.getInternalClassName(), cv.getInternalClassName())) {
+			repo.store(ci.className.replace('.', '/'), ci.bytes);
+		}
+		repo.close();
+		return jar;
+	}
+
+	static class Caller extends EFun {
+		final EFun run;
+		final ESeq tokens;
+		final int calls;
+		long ns;
+		EObject result;
+
+		Caller(EFun run, ESeq tokens, int calls) {
+			this.run = run;
+			this.tokens = tokens;
+			this.calls = calls;
+		}
+
+		@Override
+		public int arity() {
+			return 0;
+		}
+
+		@Override
+		public EObject go(EProc proc) throws Pausable {
+			EObject[] args = new EObject[] { tokens };
+			long t0 = System.nanoTime();
+			for (int n = 0; n < calls; n++) {
+				result = run.invoke(proc, args);
+			}
+			ns = System.nanoTime() - t0;
+			return result;
+		}
+
+		@Override
+		public EObject invoke(EProc proc, EObject[] args) throws Pausable {
+			return go(proc);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int states = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int calls = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+		EModule.load_module(MODULE, compile(parser(states)).toURI().toURL());
+		EFun run = EModule.resolve(new FunID(MODULE, a("run"), 1));
+
+		List<EObject> tokens = new ArrayList<EObject>();
+		for (int n = 0; n < 1000; n++) {
+			tokens.add(a(n % 3 == 0 ? "b" : "a"));
+		}
+
+		for (int round = 0; round < 5; round++) {
+			Caller caller = new Caller(run, list(tokens), calls);
+			EProc p = new EProc(null, caller, ERT.NIL);
+			ERT.run(p);
+			p.joinb();
+
+			System.out.println("round " + round + ": " + caller.ns
+					/ ((long) calls * tokens.size()) + "ns/token ("
+					+ caller.result + ")");
+		}
+
+		System.exit(0);
+	}
+}
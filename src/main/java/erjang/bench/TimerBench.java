@@ -0,0 +1,89 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.bench;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import erjang.ETimerWheel;
+
+/**
+ * Start <code>count</code> timers with random timeouts up to
+ * <code>max_ms</code>, cancel every other one, and wait for the rest to
+ * expire.
+ *
+ * <pre>
+ * java -cp erjang-0.1.jar erjang.bench.TimerBench 1000000 5000
+ * </pre>
+ */
+public class TimerBench {
+
+	static class T extends ETimerWheel.Timer {
+		final long due;
+		final CountDownLatch done;
+		long late;
+
+		T(long due, CountDownLatch done) {
+			this.due = due;
+			this.done = done;
+		}
+
+		@Override
+		protected void on_timeout() {
+			late = System.currentTimeMillis() - due;
+			done.countDown();
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int max_ms = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+		ETimerWheel wheel = new ETimerWheel();
+		Random random = new Random(0);
+		CountDownLatch done = new CountDownLatch(count - count / 2);
+		T[] timers = new T[count];
+
+		long t0 = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			int ms = random.nextInt(max_ms);
+			timers[i] = new T(System.currentTimeMillis() + ms, done);
+			wheel.schedule(timers[i], ms);
+		}
+		long t1 = System.nanoTime();
+		for (int i = 1; i < count; i += 2) {
+			timers[i].cancel();
+		}
+		long t2 = System.nanoTime();
+
+		System.out.println("insert: " + (t1 - t0) / count + "ns/timer, cancel: "
+				+ (t2 - t1) / (count / 2) + "ns/timer, pending: "
+				+ wheel.size());
+
+		done.await();
+
+		long max_late = 0, sum_late = 0;
+		for (int i = 0; i < count; i += 2) {
+			max_late = Math.max(max_late, timers[i].late);
+			sum_late += timers[i].late;
+		}
+		System.out.println("expired: " + done.getCount() + " left, lateness avg "
+				+ sum_late / (count - count / 2) + "ms, max " + max_late + "ms");
+	}
+}
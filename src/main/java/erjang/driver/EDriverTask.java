@@ -229,7 +229,7 @@ public abstract class EDriverTask extends ETask<EInternalPort> implements
 	}
 
 	@Override
-	public void execute() throws Pausable {
+	protected void run_task() throws Pausable {
 		try {
 
 			EObject result = null;
@@ -287,7 +287,7 @@ public abstract class EDriverTask extends ETask<EInternalPort> implements
 		EObject msg;
 
 		next_message: while (true) {
-			msg = mbox.get();
+			msg = mbox_get();
 
 			ETuple2 t2;
 			EPortControl ctrl;
@@ -448,7 +448,7 @@ public abstract class EDriverTask extends ETask<EInternalPort> implements
 			throw new NotImplemented();
 		}
 
-		mbox.put(new EPortControl() {
+		mbox_send(new EPortControl() {
 
 			@Override
 			public void execute() throws Pausable {
@@ -467,7 +467,7 @@ public abstract class EDriverTask extends ETask<EInternalPort> implements
 	@Override
 	protected void process_incoming_exit(EHandle from, EObject reason)
 			throws Pausable {
-		mbox.put(ETuple.make(ERT.EXIT, from, reason));
+		mbox_send(ETuple.make(ERT.EXIT, from, reason));
 	}
 
 	/*
@@ -478,7 +478,7 @@ public abstract class EDriverTask extends ETask<EInternalPort> implements
 	 */
 	@Override
 	public void ready(final SelectableChannel ch, final int readyOps) {
-		mbox.putb(new EPortControl() {
+		mbox_putb(new EPortControl() {
 			@Override
 			public void execute() throws Pausable {
 				if ((readyOps & EDriverInstance.ERL_DRV_READ) == EDriverInstance.ERL_DRV_READ) {
@@ -505,7 +505,7 @@ public abstract class EDriverTask extends ETask<EInternalPort> implements
 	 */
 	@Override
 	public void released(final SelectableChannel ch) {
-		mbox.putb(new EPortControl() {
+		mbox_putb(new EPortControl() {
 			@Override
 			public void execute() throws Pausable {
 				instance.stopSelect(ch);
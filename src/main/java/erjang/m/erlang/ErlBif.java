@@ -42,6 +42,7 @@ import erjang.ETuple2;
 import erjang.ETuple3;
 import erjang.ErlFun;
 import erjang.ErlangError;
+import erjang.ErlangThrow;
 import erjang.FunID;
 import erjang.Module;
 import erjang.NotImplemented;
@@ -103,12 +104,6 @@ public class ErlBif {
 		return proc.self();
 	}
 
-	@BIF
-	@ErlFun(export = true)
-	static public EObject link(EObject other) {
-		throw new NotImplemented();
-	}
-
 	@BIF
 	@ErlFun(export = true)
 	static public ETuple3 date() {
@@ -172,10 +167,24 @@ public class ErlBif {
 		throw ERT.badarg();
 	}
 
+	@BIF(name = "throw")
+	static public EObject throw_ex(EObject reason) {
+		throw new ErlangThrow(reason);
+	}
+
 	@BIF
 	@ErlFun(export = true)
-	static public EObject error(EObject err) {
-		throw new NotImplemented();
+	static public EObject error(EObject reason) {
+		throw new ErlangError(reason);
+	}
+
+	@BIF
+	@ErlFun(export = true)
+	static public EObject error(EObject reason, EObject args) {
+		ESeq seq;
+		if ((seq = args.testSeq()) == null)
+			throw ERT.badarg(reason, args);
+		throw new ErlangError(reason, seq);
 	}
 
 	@BIF
@@ -191,13 +200,23 @@ public class ErlBif {
 	}
 
 	@BIF
-	static public EObject setelement(EObject a1, EObject a2, EObject a3) {
-		throw new NotImplemented();
+	static public ETuple setelement(EObject a1, EObject a2, EObject a3) {
+		ESmall idx = a1.testSmall();
+		ETuple tup = a2.testTuple();
+		if (idx == null || tup == null) {
+			throw ERT.badarg(a1, a2, a3);
+		}
+		return setelement(idx.value, tup, a3);
 	}
 
 	@BIF
-	static public EObject setelement(int a1, ETuple a2, EObject a3) {
-		throw new NotImplemented();
+	static public ETuple setelement(int a1, ETuple a2, EObject a3) {
+		if (a1 < 1 || a1 > a2.arity()) {
+			throw ERT.badarg(new ESmall(a1), a2, a3);
+		}
+		ETuple res = a2.copy();
+		res.set(a1, a3);
+		return res;
 	}
 
 	@BIF(type = Type.GUARD, name = "element")
@@ -863,7 +882,10 @@ public class ErlBif {
 
 	@BIF
 	public static EObject process_info(EObject pid, EObject what) {
-		throw new NotImplemented();
+		EPID p;
+		if ((p = pid.testPID()) == null)
+			throw ERT.badarg(pid, what);
+		return p.process_info(what);
 	}
 
 	@BIF
@@ -933,6 +955,37 @@ public class ErlBif {
 		return ERT.load_module(mod, bin);
 	}
 
+	@BIF
+	@ErlFun(export = true)
+	public static EAtom check_process_code(EObject pid, EObject mod) {
+		EPID p = pid.testPID();
+		EAtom m = mod.testAtom();
+		if (p == null || m == null)
+			throw ERT.badarg(pid, mod);
+
+		return ERT.box(p.check_process_code(m));
+	}
+
+	@BIF
+	@ErlFun(export = true)
+	public static EAtom purge_module(EObject mod) {
+		EAtom m = mod.testAtom();
+		if (m == null || !EModule.purge_module(m))
+			throw ERT.badarg(mod);
+
+		return ERT.TRUE;
+	}
+
+	@BIF
+	@ErlFun(export = true)
+	public static EObject delete_module(EObject mod) {
+		EAtom m = mod.testAtom();
+		if (m == null)
+			throw ERT.badarg(mod);
+
+		return EModule.delete_module(m) ? ERT.TRUE : ERT.am_undefined;
+	}
+
 	@BIF
 	public static EAtom is_integer(EObject o) {
 		return ERT.box(o.testInteger() != null);
@@ -27,15 +27,19 @@ import java.lang.management.MemoryType;
 import java.lang.management.MemoryUsage;
 import java.util.List;
 
+import kilim.Pausable;
+
 import erjang.BIF;
 import erjang.EAtom;
 import erjang.ECons;
 import erjang.EFun;
+import erjang.EHandle;
 import erjang.EModule;
 import erjang.EObject;
 import erjang.EPID;
 import erjang.EPort;
 import erjang.EProc;
+import erjang.EScheduler;
 import erjang.ERT;
 import erjang.ERef;
 import erjang.ESeq;
@@ -54,6 +58,10 @@ public class ErlProc {
 
 	private static final EAtom am_smp_support = EAtom.intern("smp_support");
 	private static final EAtom am_threads = EAtom.intern("threads");
+	private static final EAtom am_schedulers = EAtom.intern("schedulers");
+	private static final EAtom am_process = EAtom.intern("process");
+	private static final EAtom am_flush = EAtom.intern("flush");
+	private static final EAtom am_info = EAtom.intern("info");
 	private static final EAtom am_wordsize = EAtom.intern("wordsize");
 	private static final EAtom am_thread_pool_size = EAtom
 			.intern("thread_pool_size");
@@ -107,7 +115,7 @@ public class ErlProc {
 		
 		p2.link_to(proc);
 		
-		ERT.run(p2);
+		ERT.run(p2, proc);
 		
 		return p2.self();
 	}
@@ -124,11 +132,45 @@ public class ErlProc {
 		
 		EProc p2 = new EProc(proc.group_leader(), m, f, a);
 				
-		ERT.run(p2);
+		ERT.run(p2, proc);
 		
 		return p2.self();
 	}
 	
+	@BIF
+	public static EObject hibernate(EProc proc, EObject mod, EObject fun, EObject args) {
+		
+		EAtom m = mod.testAtom();
+		EAtom f = fun.testAtom();
+		ESeq  a = args.testSeq();
+		
+		if (m==null||f==null||a==null) 
+			throw ERT.badarg(mod, fun, args);
+		
+		return proc.hibernate(m, f, a);
+	}
+	
+	@BIF
+	public static EObject yield(EProc proc) throws Pausable {
+		ERT.yield(proc);
+		return ERT.TRUE;
+	}
+	
+	@BIF
+	public static EObject bump_reductions(EProc proc, EObject reductions) {
+		ESmall n;
+		if ((n = reductions.testSmall()) == null || n.value < 1)
+			throw ERT.badarg(reductions);
+		
+		proc.bump_reductions(n.value);
+		return ERT.TRUE;
+	}
+	
+	@BIF
+	public static EObject get_stacktrace(EProc proc) {
+		return proc.get_stacktrace();
+	}
+	
 	@BIF
 	public static EObject halt(EProc proc) {
 		System.exit(0);
@@ -155,9 +197,63 @@ public class ErlProc {
 
 	}
 	
+	@BIF
+	public static EObject link(EProc proc, EObject pid) {
+		EHandle h;
+		if ((h = pid.testPID()) == null && (h = pid.testPort()) == null)
+			throw ERT.badarg(pid);
+		proc.link(h);
+		return ERT.TRUE;
+	}
+
 	@BIF
 	public static EObject unlink(EProc proc, EObject pid) {
-		throw new NotImplemented();
+		EHandle h;
+		if ((h = pid.testPID()) == null && (h = pid.testPort()) == null)
+			throw ERT.badarg(pid);
+		proc.unlink(h);
+		return ERT.TRUE;
+	}
+
+	@BIF
+	public static EObject monitor(EProc proc, EObject type, EObject item) {
+		ERef ref;
+		if (type != am_process || (ref = proc.monitor(item)) == null)
+			throw ERT.badarg(type, item);
+		return ref;
+	}
+
+	@BIF
+	public static EObject demonitor(EProc proc, EObject ref) {
+		ERef r;
+		if ((r = ref.testReference()) == null)
+			throw ERT.badarg(ref);
+		proc.demonitor(r);
+		return ERT.TRUE;
+	}
+
+	@BIF
+	public static EObject demonitor(EProc proc, EObject ref, EObject options) {
+		ERef r;
+		ESeq opts;
+		if ((r = ref.testReference()) == null
+				|| (opts = options.testSeq()) == null)
+			throw ERT.badarg(ref, options);
+
+		boolean flush = false, info = false;
+		for (; !opts.isNil(); opts = opts.tail()) {
+			EObject opt = opts.head();
+			if (opt == am_flush) {
+				flush = true;
+			} else if (opt == am_info) {
+				info = true;
+			} else {
+				throw ERT.badarg(ref, options);
+			}
+		}
+
+		boolean active = proc.demonitor(r, flush);
+		return info ? ERT.box(active) : ERT.TRUE;
 	}
 
 	@BIF
@@ -173,7 +269,9 @@ public class ErlProc {
 	@BIF
 	public static ERef make_ref(EProc proc)
 	{
-		return ERT.getLocalNode().createRef();
+		ERef ref = ERT.getLocalNode().createRef();
+		proc.mbox_mark(ref);
+		return ref;
 	}
 	
 	@BIF
@@ -268,6 +366,9 @@ public class ErlProc {
 				return ETuple.make(am_unix, new EString(os));
 			}
 
+		} else if (type == am_schedulers) {
+			return new ESmall(EScheduler.count());
+			
 		} else if (type == am_threads) {
 			return ERT.TRUE;
 			
@@ -0,0 +1,142 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.erlang;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import erjang.BIF;
+import erjang.EAtom;
+import erjang.EInteger;
+import erjang.EObject;
+import erjang.EPID;
+import erjang.EProc;
+import erjang.ERT;
+import erjang.ERef;
+import erjang.ETimerWheel;
+import erjang.ETuple;
+
+/**
+ * erlang:send_after/3, start_timer/3, cancel_timer/1 and read_timer/1, on
+ * the timing wheel of the calling process' scheduler.
+ */
+public class ErlTimer {
+
+	private static final EAtom am_timeout = EAtom.intern("timeout");
+
+	/** the largest timeout erlang allows, 2^32-1 ms */
+	private static final long MAX_TIME = 0xffffffffL;
+
+	/** pending timers, by timer reference */
+	private static final Map<ERef, TimerMessage> timers = new ConcurrentHashMap<ERef, TimerMessage>();
+
+	static final class TimerMessage extends ETimerWheel.Timer {
+		final ERef ref;
+		final EObject dest;
+		final EObject msg;
+
+		TimerMessage(ERef ref, EObject dest, EObject msg) {
+			this.ref = ref;
+			this.dest = dest;
+			this.msg = msg;
+		}
+
+		@Override
+		protected void on_timeout() {
+			timers.remove(ref);
+
+			EObject to = dest;
+			if (to.testAtom() != null) {
+				// registered names are looked up when the timer expires
+				to = ERT.whereis(to);
+			}
+
+			EPID pid;
+			if ((pid = to.testPID()) != null) {
+				pid.sendb(msg);
+			}
+		}
+	}
+
+	@BIF
+	public static ERef send_after(EProc proc, EObject time, EObject dest,
+			EObject msg) {
+		return start(proc, time, dest, msg, false);
+	}
+
+	@BIF
+	public static ERef start_timer(EProc proc, EObject time, EObject dest,
+			EObject msg) {
+		return start(proc, time, dest, msg, true);
+	}
+
+	@BIF
+	public static EObject cancel_timer(EObject ref) {
+		ERef r;
+		if ((r = ref.testReference()) == null)
+			throw ERT.badarg(ref);
+
+		TimerMessage t = timers.remove(r);
+		if (t == null)
+			return ERT.FALSE;
+
+		long left = t.time_left();
+		if (!t.cancel())
+			return ERT.FALSE;
+
+		return ERT.box(left);
+	}
+
+	@BIF
+	public static EObject read_timer(EObject ref) {
+		ERef r;
+		if ((r = ref.testReference()) == null)
+			throw ERT.badarg(ref);
+
+		TimerMessage t = timers.get(r);
+		long left;
+		if (t == null || (left = t.time_left()) < 0)
+			return ERT.FALSE;
+
+		return ERT.box(left);
+	}
+
+	private static ERef start(EProc proc, EObject time, EObject dest,
+			EObject msg, boolean wrap) {
+		EInteger ms;
+		if ((ms = time.testInteger()) == null || ms.longValue() < 0
+				|| ms.longValue() > MAX_TIME)
+			throw ERT.badarg(time, dest, msg);
+
+		if (dest.testPID() == null && dest.testAtom() == null)
+			throw ERT.badarg(time, dest, msg);
+
+		ERef ref = ERT.getLocalNode().createRef();
+		if (wrap) {
+			msg = ETuple.make(am_timeout, ref, msg);
+		}
+
+		TimerMessage t = new TimerMessage(ref, dest, msg);
+		timers.put(ref, t);
+		proc.timer_wheel().schedule(t, ms.longValue());
+
+		return ref;
+	}
+
+}
@@ -0,0 +1,148 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Loading a new version of a module over an old one, purging and deleting
+ * it, and check_process_code; the current and old version of each module
+ * are kept by EModule.ModuleInfo.
+ */
+public class EModuleTest extends TestCase {
+
+	static final EAtom FIB = EAtom.intern("fib");
+	static final EAtom RING = EAtom.intern("ring");
+	static final FunID FIBO2 = new FunID(FIB, EAtom.intern("fibo2"), 1);
+
+	static final ETuple LOADED_FIB = ETuple.make(ERT.AM_MODULE, FIB);
+	static final ETuple NOT_PURGED = ETuple.make(ErlangException.am_error,
+			ERT.AM_NOT_PURGED);
+
+	/** no version of <code>m</code> left, from an earlier test */
+	static void unload(EAtom m) {
+		EModule.purge_module(m);
+		if (EModule.delete_module(m))
+			EModule.purge_module(m);
+	}
+
+	static EBinary beam(EAtom m) throws IOException {
+		File file = new File("src/main/erl/" + m.getName() + ".beam");
+		byte[] data = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		return new EBinary(data);
+	}
+
+	static ClassLoader loader(FunID fun) {
+		return EModule.resolve(fun).getClass().getClassLoader();
+	}
+
+	public void testReload() throws IOException {
+		unload(FIB);
+		EBinary bin = beam(FIB);
+
+		assertEquals(LOADED_FIB, ERT.load_module(FIB, bin));
+		assertFalse(EModule.has_old_code(FIB));
+		ClassLoader v1 = loader(FIBO2);
+
+		// the first version becomes old
+		assertEquals(LOADED_FIB, ERT.load_module(FIB, bin));
+		assertTrue(EModule.has_old_code(FIB));
+		ClassLoader v2 = loader(FIBO2);
+		assertNotSame(v1, v2);
+
+		// until it is purged, there is no room for a third
+		assertEquals(NOT_PURGED, ERT.load_module(FIB, bin));
+		assertSame(v2, loader(FIBO2));
+
+		assertTrue(EModule.purge_module(FIB));
+		assertFalse(EModule.purge_module(FIB));
+		assertFalse(EModule.has_old_code(FIB));
+
+		assertEquals(LOADED_FIB, ERT.load_module(FIB, bin));
+		assertNotSame(v2, loader(FIBO2));
+		assertTrue(EModule.has_old_code(FIB));
+	}
+
+	public void testDelete() throws IOException {
+		unload(FIB);
+		EBinary bin = beam(FIB);
+
+		assertFalse(EModule.delete_module(FIB));
+
+		ERT.load_module(FIB, bin);
+		assertTrue(EModule.function_exported(FIB, FIBO2.function, 1));
+
+		// the current version becomes old, and exports nothing
+		assertTrue(EModule.delete_module(FIB));
+		assertFalse(EModule.function_exported(FIB, FIBO2.function, 1));
+		assertTrue(EModule.has_old_code(FIB));
+
+		// nothing current to delete, and the old version is in the way
+		assertFalse(EModule.delete_module(FIB));
+		assertEquals(NOT_PURGED, ERT.load_module(FIB, bin));
+
+		assertTrue(EModule.purge_module(FIB));
+		assertEquals(LOADED_FIB, ERT.load_module(FIB, bin));
+		assertTrue(EModule.function_exported(FIB, FIBO2.function, 1));
+
+		// a current version cannot become old while there is one
+		assertEquals(LOADED_FIB, ERT.load_module(FIB, bin));
+		try {
+			EModule.delete_module(FIB);
+			fail("deleted with old code");
+		} catch (ErlangError e) {
+			assertEquals(ERT.AM_BADARG, ((ETuple) e.reason()).elm(1));
+		}
+		assertTrue(EModule.function_exported(FIB, FIBO2.function, 1));
+	}
+
+	/**
+	 * A process that has not run yet is about to call the function it was
+	 * spawned with, so it runs the version that function belongs to.
+	 */
+	public void testCheckProcessCode() throws IOException {
+		unload(RING);
+		EBinary bin = beam(RING);
+		EAtom main = EAtom.intern("main");
+
+		ERT.load_module(RING, bin);
+		EProc before = new EProc(null, RING, main, ERT.NIL);
+		assertFalse(EModule.check_process_code(before, RING));
+
+		ERT.load_module(RING, bin);
+		EProc after = new EProc(null, RING, main, ERT.NIL);
+		assertTrue(EModule.check_process_code(before, RING));
+		assertFalse(EModule.check_process_code(after, RING));
+
+		assertTrue(EModule.purge_module(RING));
+		assertFalse(EModule.check_process_code(before, RING));
+		assertFalse(EModule.check_process_code(after, RING));
+	}
+}
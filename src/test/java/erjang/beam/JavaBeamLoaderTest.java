@@ -0,0 +1,254 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.beam;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import erjang.EAtom;
+import erjang.EObject;
+import erjang.ETuple;
+
+/**
+ * Decodes .beam files with {@link JavaBeamLoader}, and checks the result
+ * against the assembler listings (.S) checked in next to them.
+ */
+public class JavaBeamLoaderTest extends TestCase {
+
+	static final String ERL = "src/main/erl/";
+	static final String PRELOADED = "src/main/erl/preloaded/";
+
+	/**
+	 * test1.beam is not compiled from test1.erl (nor is test1.S), so its
+	 * expected decoding is spelled out here.
+	 */
+	public void testTest1() throws IOException {
+		Listing l = decode(new File(ERL + "test1.beam"));
+
+		assertEquals("test1", l.module);
+		assertEquals(Arrays.asList("module_info/1 11", "module_info/0 9",
+				"bar/1 5", "foo/1 2"), l.exports);
+		assertEquals(Arrays.asList("foo/1 2", "bar/1 5", "module_info/0 9",
+				"module_info/1 11"), l.function_names());
+
+		assertEquals(Arrays.asList("label 1", "func_info", "label 2",
+				"gc_bif", "test", "move", "return", "label 3", "test_heap",
+				"fmove", "fconv", "fclearerror", "arithfbif", "fcheckerror",
+				"fmove", "return"), l.function("foo/1 2").ops);
+		assertEquals(Arrays.asList("label 4", "func_info", "label 5",
+				"allocate", "catch", "move", "call_ext", "label 6",
+				"catch_end", "test", "move", "deallocate", "return",
+				"label 7", "move", "deallocate", "return"), l
+				.function("bar/1 5").ops);
+
+		List<String> foo = l.function("foo/1 2").insns;
+		assertEquals("{gc_bif,'/',{f,3},1,[{x,0},{float,2.0}],{x,1}}", foo
+				.get(1));
+		assertEquals("{test,is_eq,{f,3},[{x,1},{float,3.3}]}", foo.get(2));
+		assertEquals("{fmove,{float,2.0},{fr,0}}", foo.get(6));
+
+		List<String> bar = l.function("bar/1 5").insns;
+		assertEquals("{catch,{y,1},{f,6}}", bar.get(2));
+		assertEquals("{call_ext,1,{extfunc,foo,bar,1}}", bar.get(4));
+		assertEquals("{catch_end,{y,1}}", bar.get(5));
+	}
+
+	public void testPrimFile() throws IOException {
+		compare("prim_file");
+	}
+
+	public void testPrimInet() throws IOException {
+		compare("prim_inet");
+	}
+
+	public void testErlPrimLoader() throws IOException {
+		compare("erl_prim_loader");
+	}
+
+	/**
+	 * Same functions, entry points, labels and instructions as the
+	 * listing. Operands are not compared: the disassembler names call
+	 * targets where the listing has labels, and so on.
+	 */
+	void compare(String module) throws IOException {
+		Listing beam = decode(new File(PRELOADED + "ebin/" + module + ".beam"));
+		Listing asm = read_listing(new File(PRELOADED + "src/" + module + ".S"));
+
+		assertEquals(module, beam.module);
+		assertEquals(asm.function_names(), beam.function_names());
+
+		for (int i = 0; i < asm.functions.size(); i++) {
+			Function f = asm.functions.get(i);
+			assertEquals(f.name, f.ops, beam.functions.get(i).ops);
+		}
+	}
+
+	static class Function {
+		final String name;
+		final List<String> ops = new ArrayList<String>();
+		final List<String> insns = new ArrayList<String>();
+
+		Function(String name) {
+			this.name = name;
+		}
+	}
+
+	static class Listing {
+		String module;
+		final List<String> exports = new ArrayList<String>();
+		final List<Function> functions = new ArrayList<Function>();
+
+		List<String> function_names() {
+			List<String> res = new ArrayList<String>();
+			for (Function f : functions) {
+				res.add(f.name);
+			}
+			return res;
+		}
+
+		Function function(String name) {
+			for (Function f : functions) {
+				if (f.name.equals(name))
+					return f;
+			}
+			throw new AssertionError("no function " + name);
+		}
+	}
+
+	static Listing decode(File file) throws IOException {
+		final Listing l = new Listing();
+
+		new JavaBeamLoader().load(file).accept(new ModuleVisitor() {
+
+			public void visitModule(EAtom name) {
+				l.module = name.getName();
+			}
+
+			public void visitExport(EAtom fun, int arity, int entry) {
+				l.exports.add(fun.getName() + "/" + arity + " " + entry);
+			}
+
+			public void visitAttribute(EAtom att, EObject value) {
+			}
+
+			public FunctionVisitor visitFunction(EAtom name, int arity,
+					int startLabel) {
+				final Function f = new Function(name.getName() + "/" + arity
+						+ " " + startLabel);
+				l.functions.add(f);
+
+				return new FunctionVisitor() {
+
+					public BlockVisitor visitLabeledBlock(int label) {
+						f.ops.add("label " + label);
+
+						return new BlockVisitor() {
+							public void visitInsn(BeamOpcode opcode, ETuple et) {
+								f.ops.add(((EAtom) et.elm(1)).getName());
+								f.insns.add(et.toString());
+							}
+
+							public void visitEnd() {
+							}
+						};
+					}
+
+					public void visitEnd() {
+					}
+				};
+			}
+
+			public void visitEnd() {
+			}
+		});
+
+		return l;
+	}
+
+	/**
+	 * Functions start in the first column, labels are indented by two
+	 * and instructions by four; more indentation continues an
+	 * instruction. The listing has <code>kill</code> and
+	 * <code>{bif,raise,...}</code> where the beam file has
+	 * <code>init</code> and <code>raise</code>, and compiler comments
+	 * (<code>{'%',...}</code>) that are not in the beam file at all.
+	 */
+	static Listing read_listing(File file) throws IOException {
+		Listing l = new Listing();
+		Function f = null;
+
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("{module, ")) {
+					l.module = line.substring(9, line.indexOf('}'));
+
+				} else if (line.startsWith("{function, ")) {
+					String[] parts = line.substring(11, line.indexOf('}'))
+							.split(", ");
+					f = new Function(unquote(parts[0]) + "/" + parts[1] + " "
+							+ parts[2]);
+					l.functions.add(f);
+
+				} else if (f != null && line.startsWith("  {label,")) {
+					f.ops.add("label "
+							+ line.substring(9, line.indexOf('}')));
+
+				} else if (f != null && line.startsWith("    ")
+						&& line.charAt(4) != ' ') {
+					String op = op_name(line.substring(4));
+					if (op.equals("%"))
+						continue;
+					if (op.equals("kill"))
+						op = "init";
+					else if (op.equals("bif")
+							&& line.startsWith("    {bif,raise,"))
+						op = "raise";
+					f.ops.add(op);
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		return l;
+	}
+
+	/** <code>{'try',...}.</code> or <code>return.</code> */
+	static String op_name(String insn) {
+		int start = insn.startsWith("{") ? 1 : 0;
+		int end = start;
+		while (end < insn.length() && ",}.".indexOf(insn.charAt(end)) == -1)
+			end += 1;
+		return unquote(insn.substring(start, end));
+	}
+
+	static String unquote(String atom) {
+		if (atom.startsWith("'"))
+			return atom.substring(1, atom.length() - 1);
+		return atom;
+	}
+}